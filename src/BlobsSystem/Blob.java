@@ -1,8 +1,9 @@
 package BlobsSystem;
 
+import Utils.SnapshotReader;
+import Utils.SnapshotWriter;
 import Utils.Vector;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
 
 /**
  * A blob is something that interfere with the simulation.
@@ -14,17 +15,36 @@ import java.util.List;
  */
 public class Blob
 {
+	// Default parameters
+	private static final int	MAX_MOUVEMENTS	= 64;
+	
+	/** Number of values describing a mouvement : {x, y, deltaX, deltaY} */
+	public static final int		MOUVEMENT_SIZE	= 4;
+	
 	/** Blob's last center coordinate scaled into ParticlesSystem.ENGINE_X */
 	protected Vector position;
 	
 	/** Difference between the two last blob's position */
 	protected Vector delta;
 	
-	/** List of all delta values since the last call to getMouvements() */
-	protected List<Vector> deltaList;
+	/** 
+	 * Ring buffer of the mouvements since the last call to getMouvements() :
+	 * {x, y, deltaX, deltaY} each. When it is full, the oldest mouvement is 
+	 * dropped.
+	 */
+	protected double[] mouvements;
+	
+	/** Index of the oldest mouvement in the ring buffer */
+	protected int firstMouvement;
+	
+	/** Number of mouvements in the ring buffer */
+	protected int nbMouvements;
 	
-	/** List of all positions since the last call to getMouvements() */
-	protected List<Vector> positionList;
+	/** 
+	 * Position of the blob before its oldest mouvement in the ring buffer :
+	 * the path since the last call to getMouvements() starts there
+	 */
+	protected double originX, originY;
 	
 	/** Force of this blob : use to weight delta */
 	protected double force;
@@ -59,8 +79,11 @@ public class Blob
 	{
 		this.position			= new Vector(position);
 		this.delta				= new Vector();
-		this.positionList		= new ArrayList<Vector>();
-		this.deltaList			= new ArrayList<Vector>();
+		this.mouvements			= new double[MAX_MOUVEMENTS * MOUVEMENT_SIZE];
+		this.firstMouvement		= 0;
+		this.nbMouvements		= 0;
+		this.originX			= position.x;
+		this.originY			= position.y;
 		this.force				= 0.f;
 		this.brush				= new CircleBrush();
 		this.applyEraser		= false;
@@ -83,22 +106,55 @@ public class Blob
 	 * Move a blob to a new position
 	 * @param newPosition	New blob's position
 	 */
-	public void Move(Vector newPosition)
+	public void Move(Vector newPosition) {
+		Move(newPosition.x, newPosition.y);
+	}
+	
+	/**
+	 * Move a blob to a new position
+	 * @param x New blob's position on X axis
+	 * @param y New blob's position on Y axis
+	 */
+	public void Move(double x, double y)
 	{
-		Vector newDelta = new Vector(newPosition).Subtract(position);
-		double norm = newDelta.getNorm();
+		double deltaX = x - position.x;
+		double deltaY = y - position.y;
+		double norm = Math.sqrt((deltaX * deltaX) + (deltaY * deltaY));
 
 		// Maximum threshold is overpassed
 		if(norm > threshold.y) {
-			newPosition.Scalar(threshold.y / norm);
+			x *= threshold.y / norm;
+			y *= threshold.y / norm;
 		}
 		
 		// Minimum threshold is overpassed
-		if(norm > threshold.x) {
-			delta = newDelta;
-			position = new Vector(newPosition);
-			positionList.add(position);
-			deltaList.add(delta);
+		if(norm > threshold.x)
+		{
+			// Le chemin commence à la position appliquée en dernier
+			if(nbMouvements == 0)
+			{
+				originX = position.x;
+				originY = position.y;
+			}
+			
+			delta.Set(deltaX, deltaY);
+			position.Set(x, y);
+			
+			// On écrase le plus vieux mouvement si le buffer est plein : le chemin commence alors à sa position
+			if(nbMouvements == MAX_MOUVEMENTS)
+			{
+				originX = mouvements[firstMouvement * MOUVEMENT_SIZE];
+				originY = mouvements[(firstMouvement * MOUVEMENT_SIZE) + 1];
+				firstMouvement = (firstMouvement + 1) % MAX_MOUVEMENTS;
+				nbMouvements--;
+			}
+			
+			int offset = ((firstMouvement + nbMouvements) % MAX_MOUVEMENTS) * MOUVEMENT_SIZE;
+			mouvements[offset]		= x;
+			mouvements[offset + 1]	= y;
+			mouvements[offset + 2]	= deltaX;
+			mouvements[offset + 3]	= deltaY;
+			nbMouvements++;
 		}
 	}
 	
@@ -108,11 +164,38 @@ public class Blob
 	 * @return <code>true</code> if the blob's last movements are significants, otherwise <code>false</code>
 	 */
 	public boolean hasMoved() {
-		return !positionList.isEmpty();
+		return nbMouvements > 0;
+	}
+	
+	/**
+	 * Get the position where the path of the pending mouvements starts : the
+	 * position of the last mouvement returned by getMouvements() (or the 
+	 * creation's one)
+	 * @return Origin on X axis
+	 */
+	public double getOriginX() {
+		return originX;
+	}
+	
+	/**
+	 * Get the position where the path of the pending mouvements starts
+	 * @return Origin on Y axis
+	 * @see #getOriginX()
+	 */
+	public double getOriginY() {
+		return originY;
+	}
+	
+	/**
+	 * Get the number of mouvements since the last call of getMouvements()
+	 * @return Number of pending mouvements
+	 */
+	public int getMouvementCount() {
+		return nbMouvements;
 	}
 
 	/**
-	 * Get current position
+	 * Get current position (updated in place by Move())
 	 * @return	position
      * @since	1.0
      */
@@ -130,24 +213,31 @@ public class Blob
 	}
 	
 	/**
-	 * List all mouvements of this blob since the last call of this method.
+	 * Copy all mouvements of this blob since the last call of this method.
 	 * This method helps to treat asynchronous blobs (event based).
 	 * Mouvements are describes as a position (x, y) and a deplacement (deltaX, deltaY).
 	 * Please note that deltas are weighted by simulation.blobForce()
-	 * @return {..., [position(i), delta(i)], ...} for every i since last call
+	 * @param result Array filled with {..., x(i), y(i), deltaX(i), deltaY(i), ...}
+	 * for every i since last call (getMouvementCount() * MOUVEMENT_SIZE values)
+	 * @param offset Index of the first value to fill in <code>result</code>
+	 * @return Number of copied mouvements
 	 */
-	public List<Vector[]> getMouvements()
+	public int getMouvements(double[] result, int offset)
 	{
-		List<Vector[]> result = new ArrayList<Vector[]>();
-		int size = positionList.size();
+		int count = nbMouvements;
 		
-		for(int i = 0; i < size; i++)
+		for(int m = 0; m < count; m++, offset += MOUVEMENT_SIZE)
 		{
-			Vector[] mouvement = {positionList.remove(0), deltaList.remove(0).Scalar(force)};
-			result.add(mouvement);
+			int from = ((firstMouvement + m) % MAX_MOUVEMENTS) * MOUVEMENT_SIZE;
+			result[offset]		= mouvements[from];
+			result[offset + 1]	= mouvements[from + 1];
+			result[offset + 2]	= mouvements[from + 2] * force;
+			result[offset + 3]	= mouvements[from + 3] * force;
 		}
 		
-		return result;
+		firstMouvement	= 0;
+		nbMouvements	= 0;
+		return count;
 	}
 
 	/**
@@ -280,4 +370,46 @@ public class Blob
 	public String toString() {
 		return "Blob " + brush.toString();
 	}
+	
+	/**
+	 * Save the settings and the position of this blob (pending mouvements are
+	 * not saved)
+	 * @param out Snapshot being written
+	 * @throws IOException If the snapshot cannot be written
+	 */
+	public void save(SnapshotWriter out) throws IOException
+	{
+		out.writeDouble(position.x);
+		out.writeDouble(position.y);
+		out.writeDouble(force);
+		out.writeDouble(attractiveForce);
+		out.writeBoolean(applyForce);
+		out.writeBoolean(applyEraser);
+		out.writeBoolean(applyAttractivity);
+		out.writeInt(toAdd);
+		out.writeDouble(threshold.x);
+		out.writeDouble(threshold.y);
+		brush.save(out);
+	}
+	
+	/**
+	 * Restore a blob saved by save()
+	 * @param in Snapshot being read
+	 * @return The restored blob
+	 * @throws IOException If the snapshot is truncated
+	 */
+	public static Blob restore(SnapshotReader in) throws IOException
+	{
+		Blob result = new Blob(new Vector(in.readDouble(), in.readDouble()));
+		
+		result.force				= in.readDouble();
+		result.attractiveForce		= in.readDouble();
+		result.applyForce			= in.readBoolean();
+		result.applyEraser			= in.readBoolean();
+		result.applyAttractivity	= in.readBoolean();
+		result.toAdd				= in.readInt();
+		result.threshold			= new Vector(in.readDouble(), in.readDouble());
+		result.brush				= Brush.restore(in);
+		return result;
+	}
 }
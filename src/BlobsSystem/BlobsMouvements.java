@@ -0,0 +1,169 @@
+package BlobsSystem;
+
+import java.util.Arrays;
+
+/**
+ * Blobs' mouvements of a frame, in flat arrays reused from one frame to the
+ * next : the b'th moved blob owns the mouvements [getStart(b), getEnd(b)[,
+ * and each mouvement is a position (x, y) and a deplacement (deltaX, deltaY)
+ * weighted by the blob's force. The path of a blob starts at its origin, its
+ * position at the previous frame.
+ * Arrays only grow, so filling the view allocates nothing once it is large
+ * enough (see BlobsSystem.getBlobsMouvements).
+ *
+ * @author	CreArtCom's Studio
+ * @author	Léo LEFEBVRE
+ * @version	1.0
+ */
+public class BlobsMouvements
+{
+	// Default parameters
+	private static final int	BLOBS		= 8;
+	private static final int	MOUVEMENTS	= 64;
+
+	/** Moved blobs, in the order of their first mouvement */
+	protected Blob[] blobs;
+
+	/** Index of the first mouvement of each moved blob (one more entry for the end) */
+	protected int[] starts;
+
+	/** Mouvements of every moved blob : {x, y, deltaX, deltaY} each */
+	protected double[] mouvements;
+
+	/** Origin of the path of each moved blob : {x, y} each */
+	protected double[] origins;
+
+	/** Number of moved blobs */
+	protected int nbBlobs;
+
+	/** Construct an empty view */
+	public BlobsMouvements()
+	{
+		this.blobs		= new Blob[BLOBS];
+		this.starts		= new int[BLOBS + 1];
+		this.mouvements	= new double[MOUVEMENTS * Blob.MOUVEMENT_SIZE];
+		this.origins	= new double[BLOBS * 2];
+		this.nbBlobs	= 0;
+	}
+
+	/** Remove every blob of the view (arrays are kept) */
+	public void clear()
+	{
+		Arrays.fill(blobs, 0, nbBlobs, null);
+		nbBlobs = 0;
+	}
+
+	/**
+	 * Move every pending mouvement of a blob into the view
+	 * @param blob Moved blob
+	 */
+	protected void add(Blob blob)
+	{
+		if(nbBlobs == blobs.length)
+		{
+			blobs = Arrays.copyOf(blobs, blobs.length * 2);
+			starts = Arrays.copyOf(starts, blobs.length + 1);
+			origins = Arrays.copyOf(origins, blobs.length * 2);
+		}
+
+		int start = starts[nbBlobs];
+		int end = start + blob.getMouvementCount();
+		if(end * Blob.MOUVEMENT_SIZE > mouvements.length)
+			mouvements = Arrays.copyOf(mouvements, Math.max(mouvements.length * 2, end * Blob.MOUVEMENT_SIZE));
+
+		origins[2 * nbBlobs]		= blob.getOriginX();
+		origins[(2 * nbBlobs) + 1]	= blob.getOriginY();
+		blob.getMouvements(mouvements, start * Blob.MOUVEMENT_SIZE);
+		blobs[nbBlobs++] = blob;
+		starts[nbBlobs] = end;
+	}
+
+	/**
+	 * Get the number of moved blobs
+	 * @return Number of blobs in the view
+	 */
+	public int size() {
+		return nbBlobs;
+	}
+
+	/**
+	 * Get a moved blob
+	 * @param b Index of the blob in the view
+	 * @return The blob
+	 */
+	public Blob getBlob(int b) {
+		return blobs[b];
+	}
+
+	/**
+	 * Get the origin of the path of a blob : its position at the previous frame
+	 * @param b Index of the blob in the view
+	 * @return Origin on X axis
+	 */
+	public double getOriginX(int b) {
+		return origins[2 * b];
+	}
+
+	/**
+	 * Get the origin of the path of a blob : its position at the previous frame
+	 * @param b Index of the blob in the view
+	 * @return Origin on Y axis
+	 */
+	public double getOriginY(int b) {
+		return origins[(2 * b) + 1];
+	}
+
+	/**
+	 * Get the index of the first mouvement of a blob
+	 * @param b Index of the blob in the view
+	 * @return Index of its first mouvement
+	 */
+	public int getStart(int b) {
+		return starts[b];
+	}
+
+	/**
+	 * Get the index after the last mouvement of a blob
+	 * @param b Index of the blob in the view
+	 * @return Index after its last mouvement
+	 */
+	public int getEnd(int b) {
+		return starts[b + 1];
+	}
+
+	/**
+	 * Get the position of a mouvement on X axis
+	 * @param m Index of the mouvement
+	 * @return Blob's position on X axis
+	 */
+	public double getX(int m) {
+		return mouvements[m * Blob.MOUVEMENT_SIZE];
+	}
+
+	/**
+	 * Get the position of a mouvement on Y axis
+	 * @param m Index of the mouvement
+	 * @return Blob's position on Y axis
+	 */
+	public double getY(int m) {
+		return mouvements[(m * Blob.MOUVEMENT_SIZE) + 1];
+	}
+
+	/**
+	 * Get the deplacement of a mouvement on X axis
+	 * @param m Index of the mouvement
+	 * @return Blob's deplacement on X axis, weighted by its force
+	 */
+	public double getDeltaX(int m) {
+		return mouvements[(m * Blob.MOUVEMENT_SIZE) + 2];
+	}
+
+	/**
+	 * Get the deplacement of a mouvement on Y axis
+	 * @param m Index of the mouvement
+	 * @return Blob's deplacement on Y axis, weighted by its force
+	 */
+	public double getDeltaY(int m) {
+		return mouvements[(m * Blob.MOUVEMENT_SIZE) + 3];
+	}
+}
@@ -1,11 +1,16 @@
 package BlobsSystem;
 
 import Simulation.Simulation;
+import Utils.SnapshotReader;
+import Utils.SnapshotWriter;
 import Utils.Vector;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 
@@ -19,11 +24,21 @@ public class BlobsSystem
 	protected static final int RECTANGLEBRUSH = 1;
 	
 	// Attributes
-	/** Map of all blobs : blob_index => blob */
+	/** 
+	 * Map of all blobs : blob_index => blob.
+	 * The map is concurrent : settings messages may create blobs while the 
+	 * simulation reads it.
+	 */
 	protected Map<Integer, Blob> blobs;
 	
-	/** List of last updated blob indexes since last call to getUpdatedBlobs() */
-	protected List<Integer> updatedIndexes;
+	/** 
+	 * Blobs which have moved since last call to getBlobsMouvements(), in the 
+	 * order of their first mouvement
+	 */
+	protected Blob[] updatedBlobs;
+	
+	/** Number of blobs in updatedBlobs */
+	protected int nbUpdated;
 	
 	/** Object responsible for the simulation */
 	protected Simulation simulation;
@@ -34,44 +49,47 @@ public class BlobsSystem
 	 */
 	public BlobsSystem(Simulation simulation) {
 		this.simulation		= simulation;
-		this.blobs			= new HashMap<Integer, Blob>();
-		this.updatedIndexes	= new ArrayList<Integer>();
+		this.blobs			= new ConcurrentHashMap<Integer, Blob>();
+		this.updatedBlobs	= new Blob[8];
+		this.nbUpdated		= 0;
 	}
 	
 	/**
-	 * Getter : UpdatedBlobs
-	 * @return	A list of all blobs that have moved since the last call
+	 * Getter : blobMouvements.
+	 * Nothing is allocated once the view is large enough.
+	 * @param result View filled with all blob's mouvements since last call
      * @since	1.0
      */
-	protected List<Blob> getUpdatedBlobs()
+	public void getBlobsMouvements(BlobsMouvements result)
 	{
-		List<Blob> result = new ArrayList<Blob>();
+		result.clear();
 		
-		for(Integer index : updatedIndexes)
+		for(int b = 0; b < nbUpdated; b++)
 		{
-			Blob blob = blobs.get(index);
-			if(blob.hasMoved())
-				result.add(blob);
+			result.add(updatedBlobs[b]);
+			updatedBlobs[b] = null;
 		}
 		
-		updatedIndexes.clear();
-		
-		return result;
+		nbUpdated = 0;
 	}
 	
 	/**
-	 * Getter : blobMouvements
-	 * @return	A list of all blob's mouvements since last UpdatedBlobs() call
-     * @since	1.0
-     */
-	public Map<Blob, List<Vector[]>> getBlobsMouvements()
+	 * Move a blob and remember it if it starts moving
+	 * @param blob Blob to move
+	 * @param x New blob's position on X axis
+	 * @param y New blob's position on Y axis
+	 */
+	private void move(Blob blob, double x, double y)
 	{
-		Map<Blob, List<Vector[]>> result = new HashMap<Blob, List<Vector[]>>();
+		boolean hadMoved = blob.hasMoved();
+		blob.Move(x, y);
 		
-		for(Blob blob : getUpdatedBlobs())
-			result.put(blob, blob.getMouvements());
+		if(hadMoved || !blob.hasMoved())
+			return;
 		
-		return result;
+		if(nbUpdated == updatedBlobs.length)
+			updatedBlobs = Arrays.copyOf(updatedBlobs, nbUpdated * 2);
+		updatedBlobs[nbUpdated++] = blob;
 	}
 
 	public List<Blob> getBlobs(int index)
@@ -223,24 +241,87 @@ public class BlobsSystem
 
 	public void reset() {
 		blobs.clear();
-		updatedIndexes.clear();
+		Arrays.fill(updatedBlobs, 0, nbUpdated, null);
+		nbUpdated = 0;
 	}
 
 	public Blob setPosition(int index, Vector position)
 	{
-		Blob blob = null;
+		Blob blob = blobs.get(index);
 		
-		if(blobs.containsKey(index))
-		{
-			blob = blobs.get(index);
-			blob.Move(position);
-		}
+		if(blob != null)
+			move(blob, position.x, position.y);
 		else
 			blobs.put(index, new Blob(position));
 		
-		if(!updatedIndexes.contains(index))
-			updatedIndexes.add(index);
-		
 		return blob;
 	}
+	
+	/**
+	 * Move several blobs in one pass (see setPosition)
+	 * @param rows Blobs' rows {index, x, y[, force]}, planes values per row
+	 * @param planes Number of values per row : with 4 values, the force of the blob is set too
+	 * @param positions Positions of the rows, already scaled : {x0, y0, x1, y1...}
+	 * @param count Number of rows
+	 * @param moved Filled with the moved blob of each row (<code>null</code> if the blob was created)
+	 */
+	public void setPositions(float[] rows, int planes, double[] positions, int count, Blob[] moved)
+	{
+		for(int i = 0, row = 0; i < count; i++, row += planes)
+		{
+			int index = (int) rows[row];
+			Blob blob = blobs.get(index);
+			
+			if(blob != null)
+			{
+				move(blob, positions[2 * i], positions[(2 * i) + 1]);
+				moved[i] = blob;
+			}
+			else
+			{
+				blob = new Blob(new Vector(positions[2 * i], positions[(2 * i) + 1]));
+				blobs.put(index, blob);
+				moved[i] = null;
+			}
+			
+			if(planes > 3)
+				blob.setForce(rows[row + 3]);
+		}
+	}
+	
+	/**
+	 * Save every blob of this system.
+	 * Must be called by the thread which moves blobs.
+	 * @param out Snapshot being written
+	 * @throws IOException If the snapshot cannot be written
+	 */
+	public void save(SnapshotWriter out) throws IOException
+	{
+		out.writeInt(blobs.size());
+		for(Map.Entry<Integer, Blob> pair : blobs.entrySet())
+		{
+			out.writeInt(pair.getKey());
+			pair.getValue().save(out);
+		}
+	}
+	
+	/**
+	 * Replace every blob of this system by the saved ones.
+	 * Must be called by the thread which moves blobs.
+	 * @param in Snapshot being read
+	 * @throws IOException If the snapshot is truncated
+	 */
+	public void restore(SnapshotReader in) throws IOException
+	{
+		// Les blobs sont lus avant de remplacer les actuels
+		Map<Integer, Blob> restored = new HashMap<Integer, Blob>();
+		for(int count = in.readInt(); count > 0; count--)
+		{
+			int index = in.readInt();
+			restored.put(index, Blob.restore(in));
+		}
+		
+		reset();
+		blobs.putAll(restored);
+	}
 }
@@ -1,6 +1,9 @@
 package BlobsSystem;
 
+import Utils.SnapshotReader;
+import Utils.SnapshotWriter;
 import Utils.Vector;
+import java.io.IOException;
 
 /**
  * A brush is a geometric form attached to a blob and which can interfere with 
@@ -18,5 +21,103 @@ public abstract class Brush
 	 * @param blobPos Current blob position
 	 * @return <code>true</code> if the given point is in the Brush, <code>false</code> otherwise
 	 */
-	public abstract boolean intersect(Vector position, Vector blobPos);
+	public boolean intersect(Vector position, Vector blobPos) {
+		return intersect(position.x, position.y, blobPos);
+	}
+
+	/**
+	 * Determine whether the given position is in the current blob's position of this brush
+	 * @param x Position of the given point on X axis
+	 * @param y Position of the given point on Y axis
+	 * @param blobPos Current blob position
+	 * @return <code>true</code> if the given point is in the Brush, <code>false</code> otherwise
+	 */
+	public boolean intersect(double x, double y, Vector blobPos) {
+		return intersect(x, y, blobPos.x, blobPos.y);
+	}
+
+	/**
+	 * Determine whether the given position is in this brush at the given blob's position
+	 * @param x Position of the given point on X axis
+	 * @param y Position of the given point on Y axis
+	 * @param blobX Blob position on X axis
+	 * @param blobY Blob position on Y axis
+	 * @return <code>true</code> if the given point is in the Brush, <code>false</code> otherwise
+	 */
+	public abstract boolean intersect(double x, double y, double blobX, double blobY);
+
+	/**
+	 * Determine whether the given position is covered by this brush when the
+	 * blob moves in straight line from <code>from</code> to <code>to</code>
+	 * @param x Position of the given point on X axis
+	 * @param y Position of the given point on Y axis
+	 * @param from Blob position at the beginning of the mouvement
+	 * @param to Blob position at the end of the mouvement
+	 * @return <code>true</code> if the given point is in the swept Brush, <code>false</code> otherwise
+	 */
+	public boolean intersectSwept(double x, double y, Vector from, Vector to) {
+		return intersectSwept(x, y, from.x, from.y, to.x, to.y);
+	}
+
+	/**
+	 * Determine whether the given position is covered by this brush when the
+	 * blob moves in straight line from (fromX, fromY) to (toX, toY)
+	 * @param x Position of the given point on X axis
+	 * @param y Position of the given point on Y axis
+	 * @param fromX Blob position at the beginning of the mouvement on X axis
+	 * @param fromY Blob position at the beginning of the mouvement on Y axis
+	 * @param toX Blob position at the end of the mouvement on X axis
+	 * @param toY Blob position at the end of the mouvement on Y axis
+	 * @return <code>true</code> if the given point is in the swept Brush, <code>false</code> otherwise
+	 */
+	public abstract boolean intersectSwept(double x, double y, double fromX, double fromY, double toX, double toY);
+
+	/**
+	 * Get the bounding box of this brush at the given blob's position.
+	 * Every point intersecting the brush is in the box. A box with min > max is empty.
+	 * @param blobPos Current blob position
+	 * @param box Array filled with {minX, minY, maxX, maxY}
+	 */
+	public void getBoundingBox(Vector blobPos, double[] box) {
+		getBoundingBox(blobPos.x, blobPos.y, box);
+	}
+
+	/**
+	 * Get the bounding box of this brush at the given blob's position.
+	 * Every point intersecting the brush is in the box. A box with min > max is empty.
+	 * @param blobX Blob position on X axis
+	 * @param blobY Blob position on Y axis
+	 * @param box Array filled with {minX, minY, maxX, maxY}
+	 */
+	public abstract void getBoundingBox(double blobX, double blobY, double[] box);
+	
+	/**
+	 * Save this brush : its type and its dimensions
+	 * @param out Snapshot being written
+	 * @throws IOException If the snapshot cannot be written
+	 */
+	public abstract void save(SnapshotWriter out) throws IOException;
+	
+	/**
+	 * Restore a brush saved by save()
+	 * @param in Snapshot being read
+	 * @return The restored brush
+	 * @throws IOException If the snapshot is truncated or the type is unknown
+	 */
+	public static Brush restore(SnapshotReader in) throws IOException
+	{
+		int type = in.readInt();
+		
+		switch(type)
+		{
+			case BlobsSystem.CIRCLEBRUSH:
+				return new CircleBrush(in.readDouble());
+				
+			case BlobsSystem.RECTANGLEBRUSH:
+				return new RectangleBrush(in.readDouble(), in.readDouble(), in.readInt());
+				
+			default:
+				throw new IOException("Unknown brush type " + type);
+		}
+	}
 }
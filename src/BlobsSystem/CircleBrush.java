@@ -1,6 +1,8 @@
 package BlobsSystem;
 
+import Utils.SnapshotWriter;
 import Utils.Vector;
+import java.io.IOException;
 
 /**
  * A circle brush is a brush materialized by a 2D circle.
@@ -29,16 +31,49 @@ public class CircleBrush extends Brush
 	
 	/**
 	 * Determine whether the given position is in the current blob's position of this circle
-	 * @param position Position of the given point
-	 * @param blobPos Current blob position
+	 * @param x Position of the given point on X axis
+	 * @param y Position of the given point on Y axis
+	 * @param blobX Blob position on X axis
+	 * @param blobY Blob position on Y axis
 	 * @return <code>true</code> if the given position is in the current circle's position, <code>false</code> otherwise
 	 */
 	@Override
-	public boolean intersect(Vector position, Vector blobPos)
+	public boolean intersect(double x, double y, double blobX, double blobY)
 	{
-		Vector temp = new Vector(position);
-		temp.Subtract(blobPos);
-		return (temp.getNorm() <= radius);
+		double dx = x - blobX;
+		double dy = y - blobY;
+		return (Math.sqrt((dx * dx) + (dy * dy)) <= radius);
+	}
+	
+	/**
+	 * Determine whether the given position is in the capsule swept by this 
+	 * circle from (fromX, fromY) to (toX, toY)
+	 * @param x Position of the given point on X axis
+	 * @param y Position of the given point on Y axis
+	 * @param fromX Blob position at the beginning of the mouvement on X axis
+	 * @param fromY Blob position at the beginning of the mouvement on Y axis
+	 * @param toX Blob position at the end of the mouvement on X axis
+	 * @param toY Blob position at the end of the mouvement on Y axis
+	 * @return <code>true</code> if the given position is in the capsule, <code>false</code> otherwise
+	 */
+	@Override
+	public boolean intersectSwept(double x, double y, double fromX, double fromY, double toX, double toY) {
+		return (Vector.DistanceToSegment(x, y, fromX, fromY, toX, toY) <= radius);
+	}
+	
+	/**
+	 * Get the bounding box of this circle at the given blob's position
+	 * @param blobX Blob position on X axis
+	 * @param blobY Blob position on Y axis
+	 * @param box Array filled with {minX, minY, maxX, maxY}
+	 */
+	@Override
+	public void getBoundingBox(double blobX, double blobY, double[] box)
+	{
+		box[0] = blobX - radius;
+		box[1] = blobY - radius;
+		box[2] = blobX + radius;
+		box[3] = blobY + radius;
 	}
 	
 	/**
@@ -48,4 +83,11 @@ public class CircleBrush extends Brush
 	public void setRadius(double radius) {
 		this.radius		= radius;
 	}
+	
+	@Override
+	public void save(SnapshotWriter out) throws IOException
+	{
+		out.writeInt(BlobsSystem.CIRCLEBRUSH);
+		out.writeDouble(radius);
+	}
 }
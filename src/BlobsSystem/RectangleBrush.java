@@ -1,6 +1,7 @@
 package BlobsSystem;
 
-import Utils.Vector;
+import Utils.SnapshotWriter;
+import java.io.IOException;
 
 /**
  * A rectangle brush is a brush materialized by a 2D rectangle.
@@ -74,20 +75,22 @@ public class RectangleBrush extends Brush
 	
 	/**
 	 * Determine whether the given position is in the current blob's position of this rectangle
-	 * @param position Position of the given point
-	 * @param blobPos Current blob position
+	 * @param x Position of the given point on X axis
+	 * @param y Position of the given point on Y axis
+	 * @param blobX Blob position on X axis
+	 * @param blobY Blob position on Y axis
 	 * @return <code>true</code> if the given position is in the current rectangle's position, <code>false</code> otherwise
 	 */
 	@Override
-	public boolean intersect(Vector position, Vector blobPos)
+	public boolean intersect(double x, double y, double blobX, double blobY)
 	{
 		switch(blobCenter)
 		{
 			case CENTER:
-				return (blobPos.x > (position.x - hWidth) && blobPos.x < (position.x + hWidth) && blobPos.y > (position.y - hHeight) && blobPos.y < (position.y + hHeight));
+				return (blobX > (x - hWidth) && blobX < (x + hWidth) && blobY > (y - hHeight) && blobY < (y + hHeight));
 
 			case BOTTOM_LEFT:
-				return (blobPos.x >= position.x && blobPos.x < (position.x + width) && blobPos.y >= position.y && blobPos.y < (position.y + height));
+				return (blobX >= x && blobX < (x + width) && blobY >= y && blobY < (y + height));
 				
 			case TOP_LEFT:
 				return false;
@@ -101,6 +104,115 @@ public class RectangleBrush extends Brush
 		return false;
 	}
 
+	/**
+	 * Determine whether the given position is in the box swept by this 
+	 * rectangle from (fromX, fromY) to (toX, toY).
+	 * The point is in the swept box if the segment [from, to] crosses the box
+	 * of blob positions for which the point is in the rectangle.
+	 * @param x Position of the given point on X axis
+	 * @param y Position of the given point on Y axis
+	 * @param fromX Blob position at the beginning of the mouvement on X axis
+	 * @param fromY Blob position at the beginning of the mouvement on Y axis
+	 * @param toX Blob position at the end of the mouvement on X axis
+	 * @param toY Blob position at the end of the mouvement on Y axis
+	 * @return <code>true</code> if the given position is in the swept box, <code>false</code> otherwise
+	 */
+	@Override
+	public boolean intersectSwept(double x, double y, double fromX, double fromY, double toX, double toY)
+	{
+		if(fromX == toX && fromY == toY)
+			return intersect(x, y, toX, toY);
+		
+		switch(blobCenter)
+		{
+			case CENTER:
+				return crosses(fromX, fromY, toX, toY, x - hWidth, y - hHeight, x + hWidth, y + hHeight);
+
+			case BOTTOM_LEFT:
+				return crosses(fromX, fromY, toX, toY, x, y, x + width, y + height);
+		}
+		return false;
+	}
+	
+	/**
+	 * Determine if the segment [from, to] crosses a box (slab method)
+	 * @param fromX Beginning of the segment on X axis
+	 * @param fromY Beginning of the segment on Y axis
+	 * @param toX End of the segment on X axis
+	 * @param toY End of the segment on Y axis
+	 * @param minX Lower bound of the box on X axis
+	 * @param minY Lower bound of the box on Y axis
+	 * @param maxX Higher bound of the box on X axis
+	 * @param maxY Higher bound of the box on Y axis
+	 * @return <code>true</code> if the segment crosses the box, <code>false</code> otherwise
+	 */
+	private static boolean crosses(double fromX, double fromY, double toX, double toY, double minX, double minY, double maxX, double maxY)
+	{
+		double t0 = 0.;
+		double t1 = 1.;
+		double dx = toX - fromX;
+		double dy = toY - fromY;
+		
+		if(dx == 0.)
+		{
+			if(fromX < minX || fromX > maxX)
+				return false;
+		}
+		else
+		{
+			double ta = (minX - fromX) / dx;
+			double tb = (maxX - fromX) / dx;
+			t0 = Math.max(t0, Math.min(ta, tb));
+			t1 = Math.min(t1, Math.max(ta, tb));
+		}
+		
+		if(dy == 0.)
+		{
+			if(fromY < minY || fromY > maxY)
+				return false;
+		}
+		else
+		{
+			double ta = (minY - fromY) / dy;
+			double tb = (maxY - fromY) / dy;
+			t0 = Math.max(t0, Math.min(ta, tb));
+			t1 = Math.min(t1, Math.max(ta, tb));
+		}
+		
+		return t0 <= t1;
+	}
+	
+	/**
+	 * Get the bounding box of this rectangle at the given blob's position
+	 * @param blobX Blob position on X axis
+	 * @param blobY Blob position on Y axis
+	 * @param box Array filled with {minX, minY, maxX, maxY}
+	 */
+	@Override
+	public void getBoundingBox(double blobX, double blobY, double[] box)
+	{
+		switch(blobCenter)
+		{
+			case CENTER:
+				box[0] = blobX - hWidth;
+				box[1] = blobY - hHeight;
+				box[2] = blobX + hWidth;
+				box[3] = blobY + hHeight;
+				break;
+
+			case BOTTOM_LEFT:
+				box[0] = blobX - width;
+				box[1] = blobY - height;
+				box[2] = blobX;
+				box[3] = blobY;
+				break;
+
+			default:
+				box[0] = box[1] = 0.;
+				box[2] = box[3] = -1.;
+		}
+	}
+
 	/**
 	 * Set the rectangle height
 	 * @param height New height
@@ -118,4 +230,13 @@ public class RectangleBrush extends Brush
 		this.width = width;
 		this.hWidth = width / 2.f;
 	}
+	
+	@Override
+	public void save(SnapshotWriter out) throws IOException
+	{
+		out.writeInt(BlobsSystem.RECTANGLEBRUSH);
+		out.writeDouble(width);
+		out.writeDouble(height);
+		out.writeInt(blobCenter);
+	}
 }
@@ -0,0 +1,155 @@
+package FluidSystem;
+
+/**
+ * A fluid engine solves the Navier-Stokes equations on a 2D grid of 
+ * (width x height) cells, a border of one cell included, and advects three
+ * dye channels (red, green, blue).
+ * Fields are flat arrays of cells stored row by row. Forces and dyes are added 
+ * in the "old" arrays, which are consumed by the next update.
+ * Engines may swap their arrays during an update : never keep a reference on 
+ * an array across updates.
+ *
+ * @author	CreArtCom's Studio
+ * @author	Léo LEFEBVRE
+ * @version	1.0
+ * @see FluidSolver
+ */
+public interface FluidEngine
+{
+	/** Pressure solved by a fixed number of relaxation iterations */
+	public static final int PROJECTION_RELAXATION	= 0;
+	
+	/** Pressure solved by multigrid V-cycles until a residual is reached */
+	public static final int PROJECTION_MULTIGRID	= 1;
+	
+	/**
+	 * Resize the engine and reset every field
+	 * @param cellsX Number of cells in width (border excluded)
+	 * @param cellsY Number of cells in height (border excluded)
+	 */
+	public void setup(int cellsX, int cellsY);
+	
+	/** Compute the next step of the fluid */
+	public void update();
+	
+	/** Reset every field */
+	public void reset();
+	
+	/** Release the engine's resources */
+	public void destroy();
+	
+	/**
+	 * Set the fade speed of dyes
+	 * @param fadeSpeed New fade speed
+	 */
+	public void setFadeSpeed(float fadeSpeed);
+	
+	/**
+	 * Set the time step
+	 * @param deltaT New time step
+	 */
+	public void setDeltaT(float deltaT);
+	
+	/**
+	 * Set the viscosity
+	 * @param viscosity New viscosity
+	 */
+	public void setVisc(float viscosity);
+	
+	/**
+	 * Set the number of iterations of the linear solver
+	 * @param solverIterations New number of iterations
+	 */
+	public void setSolverIterations(int solverIterations);
+	
+	/**
+	 * Set the number of threads used to compute each update
+	 * @param threads New number of threads (less than two : calling thread only)
+	 */
+	public void setThreads(int threads);
+	
+	/**
+	 * Set the method used to solve the pressure of the projection step
+	 * @param method PROJECTION_RELAXATION or PROJECTION_MULTIGRID
+	 * @param tolerance Relative residual to reach (multigrid only)
+	 * @return <code>true</code> if the method is supported, <code>false</code> otherwise
+	 */
+	public boolean setProjection(int method, float tolerance);
+	
+	/**
+	 * Set the residual under which the pressure solver stops before its
+	 * maximum number of iterations (see setSolverIterations)
+	 * @param residual Root mean square of the residual per cell (0 : always use every iteration)
+	 */
+	public void setResidualTolerance(float residual);
+	
+	/**
+	 * Get the number of iterations (relaxation sweeps or V-cycles) used by a
+	 * single pressure solve during the last update (the highest one, if the
+	 * update solves the pressure several times)
+	 * @return Number of iterations
+	 */
+	public int getIterationsUsed();
+	
+	/**
+	 * Get the residual of the pressure solver after the last update
+	 * @return Root mean square of the residual per cell, -1 if it is not measured
+	 */
+	public float getResidual();
+	
+	/**
+	 * Get the index of the cell which contains a normalized position
+	 * @param x Position on X axis in [0, 1]
+	 * @param y Position on Y axis in [0, 1]
+	 * @return Index of the cell (border excluded)
+	 */
+	public int getIndexForNormalizedPosition(float x, float y);
+	
+	/**
+	 * Get the number of cells in width
+	 * @return Number of cells in width, border included
+	 */
+	public int getWidth();
+	
+	/**
+	 * Get the number of cells in height
+	 * @return Number of cells in height, border included
+	 */
+	public int getHeight();
+	
+	/**
+	 * Get the total number of cells
+	 * @return Number of cells, border included
+	 */
+	public int getNumCells();
+	
+	/** @return Velocities on X axis */
+	public float[] getU();
+	
+	/** @return Velocities on Y axis */
+	public float[] getV();
+	
+	/** @return Forces on X axis added for the next update */
+	public float[] getUOld();
+	
+	/** @return Forces on Y axis added for the next update */
+	public float[] getVOld();
+	
+	/** @return Red dye */
+	public float[] getR();
+	
+	/** @return Green dye */
+	public float[] getG();
+	
+	/** @return Blue dye */
+	public float[] getB();
+	
+	/** @return Red dye added for the next update */
+	public float[] getROld();
+	
+	/** @return Green dye added for the next update */
+	public float[] getGOld();
+	
+	/** @return Blue dye added for the next update */
+	public float[] getBOld();
+}
@@ -0,0 +1,160 @@
+package FluidSystem;
+
+import Utils.LinearScale2;
+
+/**
+ * A fluid sampler reads the velocities of a fluid frame on many positions at
+ * once, by bilinear interpolation of the four nearest cells' centers.
+ * The transform from positions to cells is computed once per frame by
+ * prepare(), then sample() only reads and writes primitive columns.
+ *
+ * @author	CreArtCom's Studio
+ * @author	Léo LEFEBVRE
+ * @version	1.0
+ * @see VelocityField
+ */
+public class FluidSampler
+{
+	/** Frame currently sampled */
+	protected VelocityField.Frame frame;
+
+	/** Coefficient applied on sampled velocities */
+	protected double force;
+
+	/** Position to cell on X axis : cellX = (scaleX * x) + offsetX */
+	protected double scaleX;
+
+	/** @see #scaleX */
+	protected double offsetX;
+
+	/** Position to cell on Y axis : cellY = (scaleY * y) + offsetY */
+	protected double scaleY;
+
+	/** @see #scaleY */
+	protected double offsetY;
+
+	/** Construct a sampler of an empty frame */
+	public FluidSampler() {
+		this.frame = null;
+	}
+
+	/**
+	 * Prepare the sampler for a new frame
+	 * @param frame Frame to sample
+	 * @param scale Scale from positions to normalized fluid positions ([0, 1])
+	 * @param force Coefficient applied on sampled velocities
+	 */
+	public void prepare(VelocityField.Frame frame, LinearScale2 scale, double force)
+	{
+		this.frame	= frame;
+		this.force	= force;
+
+		// Le centre de la case w est en (w + 0.5) / width
+		scaleX	= (scale.ScaleX(1.) - scale.ScaleX(0.)) * frame.width;
+		offsetX	= (scale.ScaleX(0.) * frame.width) - 0.5;
+		scaleY	= (scale.ScaleY(1.) - scale.ScaleY(0.)) * frame.height;
+		offsetY	= (scale.ScaleY(0.) * frame.height) - 0.5;
+	}
+
+	/**
+	 * Sample the weighted velocities on the positions indexes[from, to[.
+	 * Positions out of the fluid get the velocity of the nearest border.
+	 * @param x Positions on X axis
+	 * @param y Positions on Y axis
+	 * @param indexes Indexes of the positions to sample
+	 * @param from First index in indexes
+	 * @param to Index after the last index in indexes
+	 * @param u Velocities on X axis (written on sampled indexes)
+	 * @param v Velocities on Y axis (written on sampled indexes)
+	 */
+	public void sample(double[] x, double[] y, int[] indexes, int from, int to, double[] u, double[] v)
+	{
+		if(frame == null || frame.width == 0 || frame.height == 0)
+		{
+			for(int k = from; k < to; k++)
+				u[indexes[k]] = v[indexes[k]] = 0.;
+			return;
+		}
+
+		int width = frame.width;
+		int height = frame.height;
+		float[] frameU = frame.u;
+		float[] frameV = frame.v;
+
+		for(int k = from; k < to; k++)
+		{
+			int i = indexes[k];
+			double cellX = Math.max(0., Math.min(width - 1, (scaleX * x[i]) + offsetX));
+			double cellY = Math.max(0., Math.min(height - 1, (scaleY * y[i]) + offsetY));
+			int x0 = (int) cellX;
+			int y0 = (int) cellY;
+			int x1 = Math.min(x0 + 1, width - 1);
+			int y1 = Math.min(y0 + 1, height - 1);
+			double fx = cellX - x0;
+			double fy = cellY - y0;
+
+			int c00 = (y0 * width) + x0;
+			int c10 = (y0 * width) + x1;
+			int c01 = (y1 * width) + x0;
+			int c11 = (y1 * width) + x1;
+
+			double w00 = (1. - fx) * (1. - fy);
+			double w10 = fx * (1. - fy);
+			double w01 = (1. - fx) * fy;
+			double w11 = fx * fy;
+
+			u[i] = ((w00 * frameU[c00]) + (w10 * frameU[c10]) + (w01 * frameU[c01]) + (w11 * frameU[c11])) * force;
+			v[i] = ((w00 * frameV[c00]) + (w10 * frameV[c10]) + (w01 * frameV[c01]) + (w11 * frameV[c11])) * force;
+		}
+	}
+
+	/**
+	 * Determine if the weighted velocity of a cell is over a threshold
+	 * @param cellX Column of the cell
+	 * @param cellY Row of the cell
+	 * @param speed Threshold on each axis
+	 * @return <code>true</code> if the cell is faster than speed on one axis, <code>false</code> otherwise
+	 */
+	public boolean isFaster(int cellX, int cellY, double speed)
+	{
+		int cell = (cellY * frame.width) + cellX;
+		return Math.abs(frame.u[cell] * force) > speed || Math.abs(frame.v[cell] * force) > speed;
+	}
+
+	/**
+	 * Compute the box of the positions whose sampled velocity depends on a 
+	 * cell : between the centers of its neighbours
+	 * @param cellX Column of the cell
+	 * @param cellY Row of the cell
+	 * @param box Box (result) : {minX, minY, maxX, maxY}
+	 */
+	public void getCellBox(int cellX, int cellY, double[] box)
+	{
+		double x0 = (cellX - 1 - offsetX) / scaleX;
+		double x1 = (cellX + 1 - offsetX) / scaleX;
+		double y0 = (cellY - 1 - offsetY) / scaleY;
+		double y1 = (cellY + 1 - offsetY) / scaleY;
+
+		box[0] = Math.min(x0, x1);
+		box[1] = Math.min(y0, y1);
+		box[2] = Math.max(x0, x1);
+		box[3] = Math.max(y0, y1);
+	}
+
+	/**
+	 * Forget the sampled frame before it is released : a released frame may be
+	 * overwritten by the solver, so it is never sampled again (velocities are
+	 * null until the next call to prepare())
+	 */
+	public void release() {
+		frame = null;
+	}
+
+	/**
+	 * Get the frame currently sampled
+	 * @return The frame, <code>null</code> before the first call to prepare() or after release()
+	 */
+	public VelocityField.Frame getFrame() {
+		return frame;
+	}
+}
@@ -1,22 +1,32 @@
 package FluidSystem;
 
+import Utils.ActivityTracker;
+import Utils.PhaseTimer;
+import Utils.SnapshotReader;
+import Utils.SnapshotWriter;
 import Utils.Vector;
 import com.cycling74.jitter.JitterMatrix;
 import java.awt.Color;
-import msafluid.MSAFluidSolver2D;
+import java.io.IOException;
 
 /**
- * FluidSolver provides an interface for the MSAFluidSolver2D lib.
+ * FluidSolver provides an interface for fluid engines : the MSAFluidSolver2D 
+ * lib or the in-tree stable fluid engine.
  * 
  * @author	CreArtCom's Studio
  * @author	Léo LEFEBVRE
  * @version	1.0
- * @see msafluid.MSAFluidSolver2D
+ * @see FluidEngine
  */
 public class FluidSolver
 {
+	/** Engine backed by the MSAFluidSolver2D lib */
+	public static final int		SOLVER_MSA		= 0;
+	
+	/** In-tree pure Java engine */
+	public static final int		SOLVER_JAVA		= 1;
+	
 	// Default parameters
-	private final boolean	ENABLE_RGB		= true;
 	private final int		FLUID_WIDTH		= 120;
 	private final int		FLUID_HEIGHT	= 80;
 	private final float		FADE_SPEED		= 0.003f;
@@ -25,28 +35,52 @@ public class FluidSolver
 	private final float		VELOCITY		= 30.0f;
 	private final boolean	RANDOMIZE_COLOR	= true;
 	private final boolean	APPLY_COLOR		= true;
+	private final float		COLOR_SCALE		= 3.f;
+	private final int		ITERATIONS		= 10;
+	private final float		TOLERANCE		= 0.001f;
 
 	/**
 	 * Object responsible for the fluid simulation 
-	 * @see MSAFluidSolver2D
+	 * @see FluidEngine
 	 */
-	protected MSAFluidSolver2D msa;
+	protected FluidEngine engine;
+	
+	/** Type of the current engine (SOLVER_MSA or SOLVER_JAVA) */
+	protected int solverType;
+	
+	/** Number of iterations of the engine's linear solver (maximum for the pressure) */
+	protected int solverIterations;
+	
+	/** Percentage of solverIterations used by the updates (lowered to hold a frame budget) */
+	protected int iterationsPercent;
+	
+	/** Residual under which the pressure solver stops (0 : every iteration is used) */
+	protected float residualTolerance;
+	
+	/** Number of threads used by the engine (only the Java engine is parallel) */
+	protected int threads;
+	
+	/** Method used to solve the pressure (FluidEngine.PROJECTION_...) */
+	protected int projection;
+	
+	/** Relative residual to reach with the multigrid projection */
+	protected float tolerance;
 	
 	/** 
 	 * Fade speed
-	 * @see MSAFluidSolver2D
+	 * @see FluidEngine
 	 */
 	protected float fadeSpeed;
 	
 	/** 
 	 * Delta T
-	 * @see MSAFluidSolver2D
+	 * @see FluidEngine
 	 */
 	protected float deltaT;
 	
 	/** 
 	 * Viscosity
-	 * @see MSAFluidSolver2D
+	 * @see FluidEngine
 	 */
 	protected float viscosity;
 	
@@ -62,50 +96,228 @@ public class FluidSolver
 	/** Determine if color are randomly choosen (overpass fixed color) */
 	protected boolean randomizeColor;
 	
+	/** Coefficient applied on dye values when they are exported to imgFluid */
+	protected float colorScale;
+	
 	/** Current frame. Uses to generate random colors. */
 	protected int frameCount;
 
 	/** Matrix of current colors' marks */
 	protected JitterMatrix imgFluid;
+	
+	/** 
+	 * Content of imgFluid, reused from one update to another.
+	 * Cells are packed row by row : {alpha, red, green, blue} for each cell.
+	 */
+	protected byte[] imgBuffer;
+	
+	/** Velocities of the last completed update, shared with other objects */
+	protected VelocityField velocityField;
+	
+	/** Detect when the fluid is calm enough to skip its updates */
+	protected ActivityTracker activity;
+	
+	/** Highest velocity (on each axis) of a calm fluid */
+	protected float idleVelocity;
+	
+	/** Highest dye (in [0, 255] once scaled) of a calm fluid */
+	protected int idleDye;
+	
+	/** Timing of the updates */
+	protected PhaseTimer timer;
+	
+	// Phases of the updates measured by the timer
+	private final int phaseSolver;
+	private final int phasePublish;
+	private final int phaseImage;
+	private final int phaseIdle;
 
-    public FluidSolver()
+	/** Construct a fluid solver whose updates are not measured */
+    public FluidSolver() {
+		this(new PhaseTimer());
+	}
+	
+	/**
+	 * Construct a fluid solver
+	 * @param timer Timer measuring the phases of the updates
+	 */
+    public FluidSolver(PhaseTimer timer)
 	{
 		imgFluid		= new JitterMatrix("imgFluid", 4, "char", FLUID_WIDTH, FLUID_HEIGHT);
 		velocity		= VELOCITY;
 		frameCount		= 0;
 		randomizeColor	= RANDOMIZE_COLOR;
 		applyColor		= APPLY_COLOR;
+		colorScale		= COLOR_SCALE;
 		color			= Color.white;
 		viscosity		= VISC;
 		deltaT			= DELTA_T;
 		fadeSpeed		= FADE_SPEED;
+		solverIterations	= ITERATIONS;
+		iterationsPercent	= 100;
+		residualTolerance	= 0.f;
+		threads			= 1;
+		projection		= FluidEngine.PROJECTION_RELAXATION;
+		tolerance		= TOLERANCE;
+		velocityField	= new VelocityField();
+		activity		= new ActivityTracker();
+		idleVelocity	= 0.f;
+		idleDye			= 0;
+		this.timer		= timer;
+		phaseSolver		= timer.addPhase("solver");
+		phasePublish	= timer.addPhase("publish");
+		phaseImage		= timer.addPhase("image");
+		phaseIdle		= timer.addPhase("idle");
 		
-        // Create and set up the MSAFluidSolver2D
-        msa = new MSAFluidSolver2D(FLUID_WIDTH, FLUID_HEIGHT);
-        msa.enableRGB(ENABLE_RGB).setFadeSpeed(fadeSpeed).setDeltaT(deltaT).setVisc(viscosity);
+        // Create and set up the engine
+		setSolver(SOLVER_MSA);
     }
+	
+	/**
+	 * Create and set up an engine with the current settings
+	 * @param type Type of the engine (SOLVER_MSA or SOLVER_JAVA)
+	 * @param cellsX Number of cells in width
+	 * @param cellsY Number of cells in height
+	 * @return The new engine, <code>null</code> if the type is unknown
+	 */
+	private FluidEngine createEngine(int type, int cellsX, int cellsY)
+	{
+		FluidEngine result;
+		
+		switch(type)
+		{
+			case SOLVER_MSA:
+				result = new MSAFluidEngine(cellsX, cellsY);
+				break;
+				
+			case SOLVER_JAVA:
+				result = new StableFluidEngine(cellsX, cellsY);
+				break;
+				
+			default:
+				return null;
+		}
+		
+		result.setFadeSpeed(fadeSpeed);
+		result.setDeltaT(deltaT);
+		result.setVisc(viscosity);
+		result.setSolverIterations(getEffectiveIterations());
+		result.setResidualTolerance(residualTolerance);
+		result.setThreads(threads);
+		if(!result.setProjection(projection, tolerance))
+			result.setProjection(FluidEngine.PROJECTION_RELAXATION, tolerance);
+		return result;
+	}
+	
+	/**
+	 * Replace the current engine (the fluid is reset)
+	 * @param type Type of the engine (SOLVER_MSA or SOLVER_JAVA)
+	 * @return <code>true</code> if the engine was replaced, <code>false</code> if the type is unknown
+	 */
+	public boolean setSolver(int type)
+	{
+		int cellsX = (engine != null) ? engine.getWidth() - 2 : FLUID_WIDTH;
+		int cellsY = (engine != null) ? engine.getHeight() - 2 : FLUID_HEIGHT;
+		FluidEngine newEngine = createEngine(type, cellsX, cellsY);
+		
+		if(newEngine == null)
+			return false;
+		
+		if(engine != null)
+			engine.destroy();
+		
+		engine		= newEngine;
+		solverType	= type;
+		imgFluid.setDim(new int[]{engine.getWidth(), engine.getHeight()});
+		imgBuffer	= new byte[engine.getNumCells() * 4];
+		imgFluid.setall(0);
+		return true;
+	}
 
 	/**
 	 * Update the current system.
 	 * Next iteration of forces and colors will be computes (if theirs enabled).
+	 * When the fluid is idle (see setIdle), the update is skipped : the image
+	 * and the velocity field keep their last values.
+	 * @return <code>true</code> if the fluid was updated, <code>false</code> if it is idle
 	 */
-	public void update()
+	public boolean update()
 	{
+		if(activity.isIdle())
+			return false;
+		
 		frameCount = (frameCount + 1) % 360;
-		msa.update();
+		engine.update();
+		timer.count(engine.getNumCells());
+		timer.lap(phaseSolver);
+		velocityField.publish(engine.getU(), engine.getV(), engine.getWidth(), engine.getHeight());
+		timer.lap(phasePublish);
 		
+		float maxDye = 0.f;
 		if(applyColor)
 		{
-			for(int i = 0; i < msa.getNumCells(); i++) 
+			int numCells = engine.getNumCells();
+			float[] r = engine.getR();
+			float[] g = engine.getG();
+			float[] b = engine.getB();
+			
+			for(int i = 0, cell = 0; i < numCells; i++) 
 			{
-				float d = 3.f;
-
-				int x = i % msa.getWidth();
-				int y = (int) Math.floor(i / msa.getWidth());
-
-				imgFluid.copyArrayToVector(4, new int[]{x, y}, new float[]{255, msa.r[i] * d, msa.g[i] * d, msa.b[i] * d}, 4, 0);
+				imgBuffer[cell++] = (byte) 255;
+				imgBuffer[cell++] = toChar(r[i] * colorScale);
+				imgBuffer[cell++] = toChar(g[i] * colorScale);
+				imgBuffer[cell++] = toChar(b[i] * colorScale);
+				maxDye = Math.max(maxDye, Math.max(r[i], Math.max(g[i], b[i])));
 			}
+			
+			imgFluid.copyArrayToMatrix(imgBuffer);
 		}
+		timer.lap(phaseImage);
+		
+		// On mesure l'activité seulement si la détection est active
+		if(idleVelocity > 0.f)
+			activity.report(isCalm(maxDye * colorScale));
+		timer.lap(phaseIdle);
+		
+		return true;
+	}
+	
+	/**
+	 * Determine if the fluid is calm : every velocity and dye is under its 
+	 * idle threshold
+	 * @param maxDye Highest dye of the image (scaled)
+	 * @return <code>true</code> if the fluid is calm, <code>false</code> otherwise
+	 */
+	private boolean isCalm(float maxDye)
+	{
+		if(maxDye > idleDye)
+			return false;
+		
+		int numCells = engine.getNumCells();
+		float[] u = engine.getU();
+		float[] v = engine.getV();
+		
+		for(int i = 0; i < numCells; i++)
+		{
+			if(Math.abs(u[i]) > idleVelocity || Math.abs(v[i]) > idleVelocity)
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Convert a dye value into a char matrix value
+	 * @param value Dye value
+	 * @return The value clamped in [0, 255]
+	 */
+	private static byte toChar(float value)
+	{
+		if(value <= 0.f)
+			return 0;
+		if(value >= 255.f)
+			return (byte) 255;
+		return (byte) value;
 	}
 	
 	/**
@@ -115,10 +327,11 @@ public class FluidSolver
 	 */
     public void addForce(Vector position, Vector delta)
     {
-		int index = msa.getIndexForNormalizedPosition((float)position.x, (float)position.y);
+		activity.wake();
+		int index = engine.getIndexForNormalizedPosition((float)position.x, (float)position.y);
 
-		msa.uOld[index] += delta.x * velocity;
-		msa.vOld[index] += delta.y * velocity;
+		engine.getUOld()[index] += delta.x * velocity;
+		engine.getVOld()[index] += delta.y * velocity;
 
 		if(applyColor)
 		{
@@ -141,9 +354,9 @@ public class FluidSolver
 		int green = (rgb >> 8) & 0xFF;
 		int blue = rgb & 0xFF;
 
-		msa.rOld[index] = red;
-		msa.gOld[index] = green;
-		msa.bOld[index] = blue;
+		engine.getROld()[index] = red;
+		engine.getGOld()[index] = green;
+		engine.getBOld()[index] = blue;
 	}
 	
 	/**
@@ -153,9 +366,9 @@ public class FluidSolver
 	 */
 	public void addFixedDye(int index)
 	{
-		msa.rOld[index] += (color.getRed() / 255.f) * 5.;
-		msa.gOld[index] += (color.getGreen() / 255.f) * 5.;
-		msa.bOld[index] += (color.getBlue() / 255.f) * 5.;
+		engine.getROld()[index] += (color.getRed() / 255.f) * 5.;
+		engine.getGOld()[index] += (color.getGreen() / 255.f) * 5.;
+		engine.getBOld()[index] += (color.getBlue() / 255.f) * 5.;
 	}
 	
 	/**
@@ -164,17 +377,50 @@ public class FluidSolver
 	 */
 	public void reset()
 	{
-		msa.reset();
+		activity.wake();
+		engine.reset();
 		imgFluid.setall(0);
+		velocityField.publish(engine.getU(), engine.getV(), engine.getWidth(), engine.getHeight());
 	}
 
 	/** Destroy the system and release memory */
 	public void destroy()
 	{
-		msa.destroy();
+		engine.destroy();
 		imgFluid.freePeer();
 	}
 
+	/**
+	 * Wake the fluid up : it will be updated until it is calm again.
+	 * May be called by any thread (forces, blobs, parameter changes).
+	 */
+	public void wake() {
+		activity.wake();
+	}
+	
+	/**
+	 * Set the thresholds under which the fluid is calm. After some 
+	 * consecutive calm updates, the fluid becomes idle and its updates are 
+	 * skipped until it is woken up.
+	 * @param velocity Highest velocity on each axis (0 : never idle)
+	 * @param dye Highest dye of the image in [0, 255]
+	 */
+	public void setIdle(float velocity, int dye)
+	{
+		this.idleVelocity	= velocity;
+		this.idleDye		= dye;
+		activity.setEnabled(velocity > 0.f);
+	}
+	
+	/**
+	 * Set the number of consecutive calm updates before being idle
+	 * @param updates New number of updates
+	 * @see ActivityTracker
+	 */
+	public void setIdleUpdates(int updates) {
+		activity.setIdleUpdates(updates);
+	}
+	
 	/**
 	 * Set the velocity value
 	 * @param velocity New velocity value
@@ -186,32 +432,32 @@ public class FluidSolver
 	/**
 	 * Set the fade speed value
 	 * @param fadeSpeed New fade speed value
-	 * @see MSAFluidSolver2D
+	 * @see FluidEngine
 	 */
 	public void setFadeSpeed(float fadeSpeed)
 	{
 		this.fadeSpeed = fadeSpeed;
-		msa.setFadeSpeed(fadeSpeed);
+		engine.setFadeSpeed(fadeSpeed);
 	}
 
 	/**
 	 * Set the viscosity value
 	 * @param viscosity New viscosity value
-	 * @see MSAFluidSolver2D
+	 * @see FluidEngine
 	 */
 	public void setViscosity(float viscosity) {
 		this.viscosity = viscosity;
-		msa.setVisc(viscosity);
+		engine.setVisc(viscosity);
 	}
 
 	/**
 	 * Set the delta T value
 	 * @param deltaT New delta T value
-	 * @see MSAFluidSolver2D
+	 * @see FluidEngine
 	 */
 	public void setDeltaT(float deltaT) {
 		this.deltaT = deltaT;
-		msa.setDeltaT(deltaT);
+		engine.setDeltaT(deltaT);
 	}
 
 	/**
@@ -221,18 +467,108 @@ public class FluidSolver
 	 */
 	public void setCells(int cellsX, int cellsY)
 	{
-		msa.setup(cellsX, cellsY);
-        msa.enableRGB(ENABLE_RGB).setFadeSpeed(fadeSpeed).setDeltaT(deltaT).setVisc(viscosity);
-		imgFluid.setDim(new int[]{msa.getWidth(), msa.getHeight()});
+		engine.setup(cellsX, cellsY);
+		engine.setFadeSpeed(fadeSpeed);
+		engine.setDeltaT(deltaT);
+		engine.setVisc(viscosity);
+		engine.setSolverIterations(getEffectiveIterations());
+		imgFluid.setDim(new int[]{engine.getWidth(), engine.getHeight()});
+		imgBuffer = new byte[engine.getNumCells() * 4];
 	}
 
 	/**
 	 * Set the solver iterations value
 	 * @param solverIterations New solver iterations value
-	 * @see MSAFluidSolver2D
+	 * @see FluidEngine
 	 */
 	public void setSolverIterations(int solverIterations) {
-		msa.setSolverIterations(solverIterations);
+		this.solverIterations = solverIterations;
+		engine.setSolverIterations(getEffectiveIterations());
+	}
+	
+	/**
+	 * Set the percentage of the solver iterations actually used by the 
+	 * updates, to trade accuracy for time (see Utils.FrameGovernor)
+	 * @param percent Percentage of the solver iterations (at least one iteration is used)
+	 */
+	public void setIterationsPercent(int percent) {
+		this.iterationsPercent = percent;
+		engine.setSolverIterations(getEffectiveIterations());
+	}
+	
+	/**
+	 * Get the solver iterations actually used by the updates
+	 * @return solverIterations scaled by iterationsPercent (at least 1 once lowered)
+	 */
+	public int getEffectiveIterations()
+	{
+		if(iterationsPercent >= 100)
+			return solverIterations;
+		return Math.max(1, (solverIterations * iterationsPercent) / 100);
+	}
+	
+	/**
+	 * Set the residual under which the pressure solver stops before using its
+	 * maximum number of iterations : calm fluids then cost only a few
+	 * iterations. Only the Java engine measures its residual.
+	 * @param residual Root mean square of the residual per cell (0 : every iteration is used)
+	 * @see FluidEngine
+	 */
+	public void setResidualTolerance(float residual) {
+		this.residualTolerance = residual;
+		engine.setResidualTolerance(residual);
+	}
+	
+	/**
+	 * Get the number of iterations used by a single pressure solve of the 
+	 * last update (see FluidEngine.getIterationsUsed)
+	 * @return Number of relaxation sweeps or V-cycles
+	 */
+	public int getIterationsUsed() {
+		return engine.getIterationsUsed();
+	}
+	
+	/**
+	 * Get the pressure residual after the last update
+	 * @return Root mean square of the residual per cell, -1 if the engine does not measure it
+	 */
+	public float getResidual() {
+		return engine.getResidual();
+	}
+	
+	/**
+	 * Set the number of threads used to update the fluid.
+	 * Only the Java engine is parallel, MSAFluid always uses one thread.
+	 * @param threads New number of threads
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+		engine.setThreads(threads);
+	}
+	
+	/**
+	 * Set the method used to solve the pressure of the projection step.
+	 * Multigrid is only supported by the Java engine.
+	 * @param method FluidEngine.PROJECTION_RELAXATION or FluidEngine.PROJECTION_MULTIGRID
+	 * @param tolerance Relative residual to reach (multigrid only)
+	 * @return <code>true</code> if the current engine supports the method, <code>false</code> otherwise
+	 */
+	public boolean setProjection(int method, float tolerance)
+	{
+		if(!engine.setProjection(method, tolerance))
+			return false;
+		
+		this.projection	= method;
+		this.tolerance	= tolerance;
+		return true;
+	}
+	
+	/**
+	 * Get the relative residual to reach with the multigrid projection
+	 * @return Current tolerance
+	 */
+	public float getTolerance() {
+		return tolerance;
 	}
 	
 	/**
@@ -243,6 +579,14 @@ public class FluidSolver
 		this.color = color;
 	}
 
+	/**
+	 * Set the coefficient applied on dye values in the fluid image
+	 * @param colorScale New color scale value
+	 */
+	public void setColorScale(float colorScale) {
+		this.colorScale = colorScale;
+	}
+
 	/**
 	 * Enable or disable the use of randomize colors
 	 * @param randomizeColor <code>true</code> to enable random colors, <code>false</code> otherwise
@@ -268,13 +612,21 @@ public class FluidSolver
 		return imgFluid.getName();
 	}
 
+	/**
+	 * Get the shared velocity field, updated at the end of each update
+	 * @return	The velocity field of this solver
+	 */
+	public VelocityField getVelocityField() {
+		return velocityField;
+	}
+
 	/**
 	 * Get array of U values
 	 * @return	Array which contains current applied forces on X axis
      * @since	1.0
      */
 	public float[] getUArray() {
-		return msa.u;
+		return engine.getU();
 	}
 	
 	/**
@@ -283,7 +635,7 @@ public class FluidSolver
      * @since	1.0
      */
 	public float[] getVArray() {
-		return msa.v;
+		return engine.getV();
 	}
 
 	/**
@@ -292,7 +644,7 @@ public class FluidSolver
      * @since	1.0
      */
 	public int getCells() {
-		return msa.getNumCells();
+		return engine.getNumCells();
 	}
 
 	/**
@@ -301,7 +653,7 @@ public class FluidSolver
      * @since	1.0
      */
 	public int getWidth() {
-		return msa.getWidth();
+		return engine.getWidth();
 	}
 	
 	/**
@@ -310,6 +662,98 @@ public class FluidSolver
      * @since	1.0
      */
 	public int getHeight() {
-		return msa.getHeight();
+		return engine.getHeight();
+	}
+	
+	/**
+	 * Save the settings of this solver and every field of its engine 
+	 * (velocities and dyes, current and previous)
+	 * @param out Snapshot being written
+	 * @throws IOException If the snapshot cannot be written
+	 */
+	public void save(SnapshotWriter out) throws IOException
+	{
+		out.writeInt(solverType);
+		out.writeInt(engine.getWidth() - 2);
+		out.writeInt(engine.getHeight() - 2);
+		
+		out.writeFloat(fadeSpeed);
+		out.writeFloat(deltaT);
+		out.writeFloat(viscosity);
+		out.writeInt(solverIterations);
+		out.writeFloat(residualTolerance);
+		out.writeInt(projection);
+		out.writeFloat(tolerance);
+		out.writeFloat(velocity);
+		out.writeBoolean(applyColor);
+		out.writeInt(color.getRGB());
+		out.writeBoolean(randomizeColor);
+		out.writeFloat(colorScale);
+		out.writeInt(frameCount);
+		out.writeFloat(idleVelocity);
+		out.writeInt(idleDye);
+		
+		int numCells = engine.getNumCells();
+		for(float[] field : getFields())
+			out.writeFloats(field, 0, numCells);
+	}
+	
+	/**
+	 * Replace the settings of this solver and the fields of its engine by the
+	 * saved ones. The engine is replaced or resized if needed.
+	 * @param in Snapshot being read
+	 * @throws IOException If the snapshot is truncated or its engine is unknown
+	 */
+	public void restore(SnapshotReader in) throws IOException
+	{
+		int type	= in.readInt();
+		int cellsX	= in.readInt();
+		int cellsY	= in.readInt();
+		
+		// On vérifie la longueur des réglages (54 octets) et des champs avant de toucher au solveur
+		if(cellsX <= 0 || cellsY <= 0)
+			throw new IOException("Corrupted fluid");
+		in.require(54 + (40L * (cellsX + 2) * (cellsY + 2)));
+		
+		if(type != solverType && !setSolver(type))
+			throw new IOException("Unknown fluid solver " + type);
+		if(cellsX != engine.getWidth() - 2 || cellsY != engine.getHeight() - 2)
+			setCells(cellsX, cellsY);
+		
+		setFadeSpeed(in.readFloat());
+		setDeltaT(in.readFloat());
+		setViscosity(in.readFloat());
+		setSolverIterations(in.readInt());
+		setResidualTolerance(in.readFloat());
+		int method = in.readInt();
+		setProjection(method, in.readFloat());
+		
+		velocity		= in.readFloat();
+		applyColor		= in.readBoolean();
+		color			= new Color(in.readInt(), true);
+		randomizeColor	= in.readBoolean();
+		colorScale		= in.readFloat();
+		frameCount		= in.readInt();
+		float idle		= in.readFloat();
+		setIdle(idle, in.readInt());
+		
+		int numCells = engine.getNumCells();
+		for(float[] field : getFields())
+			in.readFloats(field, 0, numCells);
+		
+		velocityField.publish(engine.getU(), engine.getV(), engine.getWidth(), engine.getHeight());
+	}
+	
+	/**
+	 * Get every field of the engine, in the order of the snapshots
+	 * @return {u, v, uOld, vOld, r, g, b, rOld, gOld, bOld}
+	 */
+	private float[][] getFields()
+	{
+		return new float[][]{
+			engine.getU(), engine.getV(), engine.getUOld(), engine.getVOld(),
+			engine.getR(), engine.getG(), engine.getB(),
+			engine.getROld(), engine.getGOld(), engine.getBOld()
+		};
 	}
 }
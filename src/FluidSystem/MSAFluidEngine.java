@@ -0,0 +1,185 @@
+package FluidSystem;
+
+import msafluid.MSAFluidSolver2D;
+
+/**
+ * Fluid engine backed by the MSAFluidSolver2D lib (RGB enabled).
+ *
+ * @author	CreArtCom's Studio
+ * @author	Léo LEFEBVRE
+ * @version	1.0
+ * @see msafluid.MSAFluidSolver2D
+ */
+public class MSAFluidEngine implements FluidEngine
+{
+	/** Object responsible for the fluid simulation */
+	protected MSAFluidSolver2D msa;
+
+	/** Number of iterations of the linear solver (always all used) */
+	protected int iterations;
+
+	/**
+	 * Construct a MSA engine
+	 * @param cellsX Number of cells in width (border excluded)
+	 * @param cellsY Number of cells in height (border excluded)
+	 */
+	public MSAFluidEngine(int cellsX, int cellsY)
+	{
+		msa = new MSAFluidSolver2D(cellsX, cellsY);
+		msa.enableRGB(true);
+		iterations = 0;
+	}
+
+	@Override
+	public void setup(int cellsX, int cellsY) {
+		msa.setup(cellsX, cellsY);
+		msa.enableRGB(true);
+	}
+
+	@Override
+	public void update() {
+		msa.update();
+	}
+
+	@Override
+	public void reset() {
+		msa.reset();
+	}
+
+	@Override
+	public void destroy() {
+		msa.destroy();
+	}
+
+	@Override
+	public void setFadeSpeed(float fadeSpeed) {
+		msa.setFadeSpeed(fadeSpeed);
+	}
+
+	@Override
+	public void setDeltaT(float deltaT) {
+		msa.setDeltaT(deltaT);
+	}
+
+	@Override
+	public void setVisc(float viscosity) {
+		msa.setVisc(viscosity);
+	}
+
+	@Override
+	public void setSolverIterations(int solverIterations) {
+		msa.setSolverIterations(solverIterations);
+		iterations = solverIterations;
+	}
+
+	/** 
+	 * MSAFluidSolver2D always updates on the calling thread
+	 * @param threads Ignored
+	 */
+	@Override
+	public void setThreads(int threads) {
+	}
+
+	/** 
+	 * MSAFluidSolver2D only supports relaxation
+	 * @param method PROJECTION_RELAXATION or PROJECTION_MULTIGRID
+	 * @param tolerance Ignored
+	 * @return <code>true</code> for PROJECTION_RELAXATION only
+	 */
+	@Override
+	public boolean setProjection(int method, float tolerance) {
+		return method == PROJECTION_RELAXATION;
+	}
+
+	/** 
+	 * MSAFluidSolver2D always uses every iteration
+	 * @param residual Ignored
+	 */
+	@Override
+	public void setResidualTolerance(float residual) {
+	}
+
+	@Override
+	public int getIterationsUsed() {
+		return iterations;
+	}
+
+	/** 
+	 * MSAFluidSolver2D does not measure its residual
+	 * @return -1
+	 */
+	@Override
+	public float getResidual() {
+		return -1.f;
+	}
+
+	@Override
+	public int getIndexForNormalizedPosition(float x, float y) {
+		return msa.getIndexForNormalizedPosition(x, y);
+	}
+
+	@Override
+	public int getWidth() {
+		return msa.getWidth();
+	}
+
+	@Override
+	public int getHeight() {
+		return msa.getHeight();
+	}
+
+	@Override
+	public int getNumCells() {
+		return msa.getNumCells();
+	}
+
+	@Override
+	public float[] getU() {
+		return msa.u;
+	}
+
+	@Override
+	public float[] getV() {
+		return msa.v;
+	}
+
+	@Override
+	public float[] getUOld() {
+		return msa.uOld;
+	}
+
+	@Override
+	public float[] getVOld() {
+		return msa.vOld;
+	}
+
+	@Override
+	public float[] getR() {
+		return msa.r;
+	}
+
+	@Override
+	public float[] getG() {
+		return msa.g;
+	}
+
+	@Override
+	public float[] getB() {
+		return msa.b;
+	}
+
+	@Override
+	public float[] getROld() {
+		return msa.rOld;
+	}
+
+	@Override
+	public float[] getGOld() {
+		return msa.gOld;
+	}
+
+	@Override
+	public float[] getBOld() {
+		return msa.bOld;
+	}
+}
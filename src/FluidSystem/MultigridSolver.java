@@ -0,0 +1,378 @@
+package FluidSystem;
+
+import java.util.Arrays;
+
+/**
+ * A multigrid solver solves the pressure equation of the projection step :
+ * 4 * p - (sum of p's neighbours) = div, with p continued on the border.
+ * Each V-cycle relaxes the equation (red-black Gauss-Seidel), then solves the
+ * error on a grid twice coarser, recursively, and corrects the solution.
+ * V-cycles are repeated until the residual is lower than a tolerance, so the
+ * cost does not depend on the size of the grid.
+ * Grids have the same layout as the fluid : (nx + 2) x (ny + 2) cells stored
+ * row by row, border included.
+ *
+ * @author	CreArtCom's Studio
+ * @author	Léo LEFEBVRE
+ * @version	1.0
+ * @see StableFluidEngine
+ */
+public class MultigridSolver
+{
+	// Default parameters
+	private static final int	PRE_SMOOTHING	= 2;
+	private static final int	POST_SMOOTHING	= 2;
+	private static final int	COARSE_ITERATIONS	= 40;
+	private static final int	COARSEST_SIZE	= 4;
+	private static final int	MAX_CYCLES		= 20;
+
+	/** Number of cells in width of each level (border excluded) */
+	protected int[] levelNx;
+
+	/** Number of cells in height of each level (border excluded) */
+	protected int[] levelNy;
+
+	/** Solution (level 0) or error (coarser levels) of each level */
+	protected float[][] x;
+
+	/** Right hand side of each level */
+	protected float[][] b;
+
+	/** Residual of each level */
+	protected float[][] residual;
+
+	/** Maximum number of V-cycles for one solve */
+	protected int maxCycles;
+
+	/** Number of V-cycles used by the last solve */
+	protected int cyclesUsed;
+
+	/** Residual (root mean square per cell) after the last solve */
+	protected double lastResidual;
+
+	/**
+	 * Construct a multigrid solver for a grid
+	 * @param nx Number of cells in width (border excluded)
+	 * @param ny Number of cells in height (border excluded)
+	 */
+	public MultigridSolver(int nx, int ny)
+	{
+		this.maxCycles		= MAX_CYCLES;
+		this.cyclesUsed		= 0;
+		this.lastResidual	= 0.;
+
+		// On compte les niveaux
+		int nbLevels = 1;
+		for(int w = nx, h = ny; Math.min(w, h) > COARSEST_SIZE; w = (w + 1) / 2, h = (h + 1) / 2)
+			nbLevels++;
+
+		levelNx		= new int[nbLevels];
+		levelNy		= new int[nbLevels];
+		x			= new float[nbLevels][];
+		b			= new float[nbLevels][];
+		residual	= new float[nbLevels][];
+
+		for(int l = 0, w = nx, h = ny; l < nbLevels; l++, w = (w + 1) / 2, h = (h + 1) / 2)
+		{
+			int cells = (w + 2) * (h + 2);
+
+			levelNx[l]	= w;
+			levelNy[l]	= h;
+			residual[l]	= new float[cells];
+
+			// Le niveau 0 utilise les tableaux du fluide
+			if(l > 0) {
+				x[l] = new float[cells];
+				b[l] = new float[cells];
+			}
+		}
+	}
+
+	/**
+	 * Determine if the solver was built for the given grid
+	 * @param nx Number of cells in width (border excluded)
+	 * @param ny Number of cells in height (border excluded)
+	 * @return <code>true</code> if the grid has the same size, <code>false</code> otherwise
+	 */
+	public boolean fits(int nx, int ny) {
+		return levelNx[0] == nx && levelNy[0] == ny;
+	}
+
+	/**
+	 * Solve the pressure equation.
+	 * As p is only defined up to a constant, the equation only has a solution
+	 * if div has a null mean : its mean is removed first.
+	 * @param p Pressure : initial guess, then solution
+	 * @param div Divergence (right hand side), its mean is removed
+	 * @param tolerance Relative residual (||residual|| / ||div||) to reach
+	 * @param minResidual Residual (root mean square per cell) to reach
+	 */
+	public void solve(float[] p, float[] div, double tolerance, double minResidual)
+	{
+		x[0] = p;
+		b[0] = div;
+		removeMean(0);
+
+		double cells = Math.sqrt(levelNx[0] * levelNy[0]);
+		double norm = norm(b[0], 0);
+		double residualNorm = norm;
+		cyclesUsed = 0;
+
+		// Un fluide calme peut n'avoir besoin d'aucun cycle
+		while(residualNorm > tolerance * norm && residualNorm > minResidual * cells && cyclesUsed < maxCycles)
+		{
+			vCycle(0);
+			cyclesUsed++;
+			computeResidual(0);
+			residualNorm = norm(residual[0], 0);
+		}
+
+		lastResidual = residualNorm / cells;
+	}
+
+	/**
+	 * Compute one V-cycle from the given level
+	 * @param l Level
+	 */
+	private void vCycle(int l)
+	{
+		if(l == levelNx.length - 1)
+		{
+			relax(l, COARSE_ITERATIONS);
+			return;
+		}
+
+		relax(l, PRE_SMOOTHING);
+		computeResidual(l);
+		restrict(l);
+		removeMean(l + 1);
+
+		Arrays.fill(x[l + 1], 0.f);
+		vCycle(l + 1);
+
+		prolongate(l);
+		relax(l, POST_SMOOTHING);
+	}
+
+	/**
+	 * Relax the equation of a level by red-black Gauss-Seidel
+	 * @param l Level
+	 * @param iterations Number of sweeps
+	 */
+	private void relax(int l, int iterations)
+	{
+		int nx = levelNx[l];
+		int ny = levelNy[l];
+		int width = nx + 2;
+		float[] xl = x[l];
+		float[] bl = b[l];
+
+		for(int k = 0; k < iterations; k++)
+		{
+			for(int color = 0; color < 2; color++)
+			{
+				for(int j = 1; j <= ny; j++)
+				{
+					int first = 1 + ((1 + j + color) & 1);
+					int index = (j * width) + first;
+
+					for(int i = first; i <= nx; i += 2, index += 2)
+						xl[index] = (bl[index] + xl[index - 1] + xl[index + 1] + xl[index - width] + xl[index + width]) * 0.25f;
+				}
+			}
+
+			setBoundary(xl, nx, ny);
+		}
+	}
+
+	/**
+	 * Compute the residual of a level : b - (4 * x - sum of x's neighbours)
+	 * @param l Level
+	 */
+	private void computeResidual(int l)
+	{
+		int nx = levelNx[l];
+		int ny = levelNy[l];
+		int width = nx + 2;
+		float[] xl = x[l];
+		float[] bl = b[l];
+		float[] rl = residual[l];
+
+		for(int j = 1; j <= ny; j++)
+		{
+			int index = (j * width) + 1;
+
+			for(int i = 1; i <= nx; i++, index++)
+				rl[index] = bl[index] - ((4.f * xl[index]) - (xl[index - 1] + xl[index + 1] + xl[index - width] + xl[index + width]));
+		}
+	}
+
+	/**
+	 * Restrict the residual of a level on the right hand side of the next one.
+	 * A coarse cell covers 2 x 2 fine cells : as its neighbours are twice
+	 * farther, its right hand side is the sum of the fine residuals.
+	 * @param l Fine level
+	 */
+	private void restrict(int l)
+	{
+		int nx = levelNx[l];
+		int ny = levelNy[l];
+		int width = nx + 2;
+		int coarseNx = levelNx[l + 1];
+		int coarseNy = levelNy[l + 1];
+		int coarseWidth = coarseNx + 2;
+		float[] rl = residual[l];
+		float[] bc = b[l + 1];
+
+		for(int cj = 1; cj <= coarseNy; cj++)
+		{
+			for(int ci = 1; ci <= coarseNx; ci++)
+			{
+				float sum = 0.f;
+
+				// Case incomplète sur un bord impair : on ne somme que ses cases fines
+				for(int j = (2 * cj) - 1; j <= Math.min(2 * cj, ny); j++)
+					for(int i = (2 * ci) - 1; i <= Math.min(2 * ci, nx); i++)
+						sum += rl[(j * width) + i];
+
+				bc[(cj * coarseWidth) + ci] = sum;
+			}
+		}
+	}
+
+	/**
+	 * Correct the solution of a level with the error of the next one.
+	 * The error is interpolated bilinearly : a fine cell's center is at a
+	 * quarter of its coarse cell, so it takes 9/16 of its coarse cell, 3/16 of
+	 * both nearest neighbours and 1/16 of the diagonal one.
+	 * @param l Fine level
+	 */
+	private void prolongate(int l)
+	{
+		int nx = levelNx[l];
+		int ny = levelNy[l];
+		int width = nx + 2;
+		int coarseWidth = levelNx[l + 1] + 2;
+		float[] xl = x[l];
+		float[] xc = x[l + 1];
+
+		for(int j = 1; j <= ny; j++)
+		{
+			int coarseRow = ((j + 1) / 2) * coarseWidth;
+			int neighbourRow = coarseRow + (((j & 1) == 1) ? -coarseWidth : coarseWidth);
+			int index = (j * width) + 1;
+
+			for(int i = 1; i <= nx; i++, index++)
+			{
+				int ci = (i + 1) / 2;
+				int neighbour = ((i & 1) == 1) ? ci - 1 : ci + 1;
+
+				xl[index] += (0.5625f * xc[coarseRow + ci]) + (0.1875f * (xc[coarseRow + neighbour] + xc[neighbourRow + ci])) + (0.0625f * xc[neighbourRow + neighbour]);
+			}
+		}
+
+		setBoundary(xl, nx, ny);
+	}
+
+	/**
+	 * Remove the mean of the right hand side of a level, so that the equation
+	 * has a solution whatever the rounding errors and incomplete cells
+	 * @param l Level
+	 */
+	private void removeMean(int l)
+	{
+		int nx = levelNx[l];
+		int ny = levelNy[l];
+		int width = nx + 2;
+		float[] bl = b[l];
+		double sum = 0.;
+
+		for(int j = 1; j <= ny; j++)
+			for(int i = 1, index = (j * width) + 1; i <= nx; i++, index++)
+				sum += bl[index];
+
+		float mean = (float) (sum / (nx * ny));
+
+		for(int j = 1; j <= ny; j++)
+			for(int i = 1, index = (j * width) + 1; i <= nx; i++, index++)
+				bl[index] -= mean;
+	}
+
+	/**
+	 * Compute the euclidean norm of the inside of a level's field
+	 * @param field Field
+	 * @param l Level
+	 * @return The norm
+	 */
+	private double norm(float[] field, int l)
+	{
+		int nx = levelNx[l];
+		int ny = levelNy[l];
+		int width = nx + 2;
+		double sum = 0.;
+
+		for(int j = 1; j <= ny; j++)
+		{
+			int index = (j * width) + 1;
+
+			for(int i = 1; i <= nx; i++, index++)
+				sum += field[index] * field[index];
+		}
+
+		return Math.sqrt(sum);
+	}
+
+	/**
+	 * Continue a field on its border
+	 * @param field Field
+	 * @param nx Number of cells in width (border excluded)
+	 * @param ny Number of cells in height (border excluded)
+	 */
+	private static void setBoundary(float[] field, int nx, int ny)
+	{
+		int width = nx + 2;
+		int top = (ny + 1) * width;
+
+		for(int i = 1; i <= nx; i++) {
+			field[i]		= field[i + width];
+			field[top + i]	= field[top - width + i];
+		}
+
+		for(int j = 1; j <= ny; j++) {
+			int row = j * width;
+			field[row]			= field[row + 1];
+			field[row + nx + 1]	= field[row + nx];
+		}
+
+		field[0]				= 0.5f * (field[1] + field[width]);
+		field[nx + 1]			= 0.5f * (field[nx] + field[width + nx + 1]);
+		field[top]				= 0.5f * (field[top + 1] + field[top - width]);
+		field[top + nx + 1]		= 0.5f * (field[top + nx] + field[top - width + nx + 1]);
+	}
+
+	/**
+	 * Set the maximum number of V-cycles for one solve.
+	 * StableFluidEngine gives its solver iterations : with the multigrid 
+	 * projection, each iteration is one V-cycle.
+	 * @param maxCycles New maximum
+	 */
+	public void setMaxCycles(int maxCycles) {
+		this.maxCycles = Math.max(1, maxCycles);
+	}
+
+	/**
+	 * Get the number of V-cycles used by the last solve
+	 * @return Number of V-cycles
+	 */
+	public int getCyclesUsed() {
+		return cyclesUsed;
+	}
+
+	/**
+	 * Get the residual after the last solve
+	 * @return Root mean square of the residual per cell
+	 */
+	public double getLastResidual() {
+		return lastResidual;
+	}
+}
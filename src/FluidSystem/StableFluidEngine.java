@@ -0,0 +1,755 @@
+package FluidSystem;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pure Java fluid engine based on Jos Stam's "Stable Fluids" (semi-Lagrangian
+ * advection, implicit diffusion and pressure projection solved by red-black
+ * Gauss-Seidel relaxation).
+ * The grid has the same layout as MSAFluidSolver2D : (cellsX + 2) x (cellsY + 2)
+ * cells stored row by row, border included. Every field is a public flat
+ * array so that kernels can work on them directly.
+ * Each step is computed by kernels on horizontal bands of rows. With more 
+ * than one thread, bands are computed in parallel : red-black ordering lets
+ * bands relax at the same time without data races, and gives the same 
+ * result whatever the number of threads.
+ *
+ * @author	CreArtCom's Studio
+ * @author	Léo LEFEBVRE
+ * @version	1.0
+ * @see FluidEngine
+ */
+public class StableFluidEngine implements FluidEngine
+{
+	// Default parameters
+	private static final float	DELTA_T		= 0.1f;
+	private static final float	VISC		= 0.0001f;
+	private static final float	FADE_SPEED	= 0.f;
+	private static final int	ITERATIONS	= 10;
+	private static final int	MIN_BAND	= 8;
+	private static final float	TOLERANCE	= 0.001f;
+
+	// Types of field for boundaries
+	protected static final int	SCALAR		= 0;
+	protected static final int	HORIZONTAL	= 1;
+	protected static final int	VERTICAL	= 2;
+
+	/** Velocities on X axis */
+	public float[] u;
+
+	/** Velocities on Y axis */
+	public float[] v;
+
+	/** Forces on X axis added for the next update, then temporary field */
+	public float[] uOld;
+
+	/** Forces on Y axis added for the next update, then temporary field */
+	public float[] vOld;
+
+	/** Red dye */
+	public float[] r;
+
+	/** Green dye */
+	public float[] g;
+
+	/** Blue dye */
+	public float[] b;
+
+	/** Red dye added for the next update, then temporary field */
+	public float[] rOld;
+
+	/** Green dye added for the next update, then temporary field */
+	public float[] gOld;
+
+	/** Blue dye added for the next update, then temporary field */
+	public float[] bOld;
+
+	/** Number of cells in width (border excluded) */
+	protected int nx;
+
+	/** Number of cells in height (border excluded) */
+	protected int ny;
+
+	/** Number of cells in width (border included) : offset of a row */
+	protected int width;
+
+	/** Total number of cells (border included) */
+	protected int numCells;
+
+	/** Time step */
+	protected float deltaT;
+
+	/** Viscosity */
+	protected float viscosity;
+
+	/** Fade speed of dyes */
+	protected float fadeSpeed;
+
+	/** Number of iterations of the linear solver (maximum for the pressure) */
+	protected int iterations;
+
+	/** Residual (root mean square per cell) under which the pressure solver stops */
+	protected float residualTolerance;
+
+	/** Squared residual of each row, measured by the pressure relaxation */
+	protected double[] rowResiduals;
+
+	/** Residual measured by the last pressure relaxation sweep */
+	protected float sweepResidual;
+
+	/** Highest number of iterations used by a pressure solve of the last update */
+	protected int iterationsUsed;
+
+	/** Highest pressure residual of the last update */
+	protected float residual;
+
+	/** 
+	 * Pool used to compute bands in parallel.
+	 * <code>null</code> means that bands are computed on the calling thread.
+	 */
+	protected ForkJoinPool pool;
+
+	/** 
+	 * Number of threads requested by setThreads(), applied at the beginning of
+	 * the next update (-1 : no request)
+	 */
+	protected AtomicInteger pendingThreads;
+
+	/** Number of rows of each band of a parallel step */
+	protected int bandRows;
+
+	/** Method used to solve the pressure (PROJECTION_...) */
+	protected int projection;
+
+	/** Relative residual to reach with the multigrid projection */
+	protected float tolerance;
+
+	/** Multigrid pressure solver, <code>null</code> when relaxation is used */
+	protected MultigridSolver multigrid;
+
+	/**
+	 * Construct a stable fluid engine
+	 * @param cellsX Number of cells in width (border excluded)
+	 * @param cellsY Number of cells in height (border excluded)
+	 */
+	public StableFluidEngine(int cellsX, int cellsY)
+	{
+		this.deltaT		= DELTA_T;
+		this.viscosity	= VISC;
+		this.fadeSpeed	= FADE_SPEED;
+		this.iterations	= ITERATIONS;
+		this.pool		= null;
+		this.pendingThreads		= new AtomicInteger(-1);
+		this.residualTolerance	= 0.f;
+		this.iterationsUsed		= 0;
+		this.residual			= 0.f;
+		this.projection	= PROJECTION_RELAXATION;
+		this.tolerance	= TOLERANCE;
+		this.multigrid	= null;
+		setup(cellsX, cellsY);
+	}
+
+	@Override
+	public void setup(int cellsX, int cellsY)
+	{
+		nx			= cellsX;
+		ny			= cellsY;
+		width		= nx + 2;
+		numCells	= width * (ny + 2);
+
+		u		= new float[numCells];
+		v		= new float[numCells];
+		uOld	= new float[numCells];
+		vOld	= new float[numCells];
+		r		= new float[numCells];
+		g		= new float[numCells];
+		b		= new float[numCells];
+		rOld	= new float[numCells];
+		gOld	= new float[numCells];
+		bOld	= new float[numCells];
+		rowResiduals = new double[ny + 2];
+		computeBandRows();
+	}
+
+	/**
+	 * A kernel is a part of a step computed on a band of rows.
+	 * Bands of a same kernel must be independent.
+	 */
+	protected abstract class Kernel
+	{
+		/**
+		 * Compute the kernel on a band
+		 * @param fromRow First row of the band
+		 * @param toRow Row after the last row of the band
+		 */
+		abstract void run(int fromRow, int toRow);
+	}
+
+	/**
+	 * Fork/join task which computes a kernel on a band of rows.
+	 * The band is split until it is not larger than bandRows.
+	 */
+	private class BandTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Kernel kernel;
+		private final int fromRow;
+		private final int toRow;
+
+		BandTask(Kernel kernel, int fromRow, int toRow)
+		{
+			this.kernel		= kernel;
+			this.fromRow	= fromRow;
+			this.toRow		= toRow;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if(toRow - fromRow <= bandRows)
+				kernel.run(fromRow, toRow);
+			else
+			{
+				int middle = (fromRow + toRow) >>> 1;
+				invokeAll(new BandTask(kernel, fromRow, middle), new BandTask(kernel, middle, toRow));
+			}
+		}
+	}
+
+	/**
+	 * Compute a kernel on every band of [fromRow, toRow[
+	 * @param kernel Kernel to compute
+	 * @param fromRow First row
+	 * @param toRow Row after the last row
+	 */
+	protected void forEachBand(Kernel kernel, int fromRow, int toRow)
+	{
+		if(pool == null)
+			kernel.run(fromRow, toRow);
+		else
+			pool.invoke(new BandTask(kernel, fromRow, toRow));
+	}
+
+	/** Compute the height of bands : one band per thread */
+	private void computeBandRows()
+	{
+		int threads = (pool != null) ? pool.getParallelism() : 1;
+		bandRows = Math.max(MIN_BAND, ((ny + 2) + threads - 1) / threads);
+	}
+
+	/**
+	 * Set the number of threads used to compute each step.
+	 * With less than two threads, steps are computed on the calling thread.
+	 * The pool is replaced at the beginning of the next update, so a running
+	 * update never loses its pool.
+	 * @param threads New number of threads
+	 */
+	@Override
+	public void setThreads(int threads) {
+		pendingThreads.set(Math.max(1, threads));
+	}
+
+	/** Replace the pool if setThreads() was called since the last update */
+	private void applyThreads()
+	{
+		int threads = pendingThreads.getAndSet(-1);
+		if(threads < 0)
+			return;
+
+		if(pool != null)
+			pool.shutdown();
+
+		pool = threads > 1 ? new ForkJoinPool(threads) : null;
+		computeBandRows();
+	}
+
+	@Override
+	public void update()
+	{
+		applyThreads();
+		iterationsUsed = 0;
+		residual = 0.f;
+
+		// Vitesses : sources, diffusion, projection, advection, projection
+		addSource(u, uOld);
+		addSource(v, vOld);
+
+		swapU();
+		swapV();
+		diffuse(HORIZONTAL, u, uOld, viscosity);
+		diffuse(VERTICAL, v, vOld, viscosity);
+		project(u, v, uOld, vOld);
+
+		swapU();
+		swapV();
+		advect(HORIZONTAL, u, uOld, uOld, vOld);
+		advect(VERTICAL, v, vOld, uOld, vOld);
+		project(u, v, uOld, vOld);
+
+		// Couleurs : sources, advection (sans diffusion) et fondu
+		addSource(r, rOld);
+		addSource(g, gOld);
+		addSource(b, bOld);
+
+		swapRGB();
+		advect(SCALAR, r, rOld, u, v);
+		advect(SCALAR, g, gOld, u, v);
+		advect(SCALAR, b, bOld, u, v);
+
+		fade();
+	}
+
+	/**
+	 * Add a source to a field : x += deltaT * source
+	 * @param x Field
+	 * @param source Source to add
+	 */
+	protected void addSource(final float[] x, final float[] source)
+	{
+		forEachBand(new Kernel() {
+			@Override
+			void run(int fromRow, int toRow)
+			{
+				for(int i = fromRow * width; i < toRow * width; i++)
+					x[i] += deltaT * source[i];
+			}
+		}, 0, ny + 2);
+	}
+
+	/**
+	 * Diffuse a field (implicit step)
+	 * @param type Type of field (SCALAR, HORIZONTAL or VERTICAL)
+	 * @param x Diffused field
+	 * @param x0 Field to diffuse
+	 * @param diffusion Diffusion rate
+	 */
+	protected void diffuse(int type, float[] x, float[] x0, float diffusion)
+	{
+		float a = deltaT * diffusion * nx * ny;
+		linearSolve(type, x, x0, a, 1.f + (4.f * a), null);
+	}
+
+	/**
+	 * Solve x = (x0 + a * (sum of x's neighbours)) / c by red-black Gauss-Seidel
+	 * relaxation : red cells ((i + j) even) are relaxed first, then black ones.
+	 * A cell only reads cells of the other color, so each half sweep can be
+	 * computed on bands in parallel.
+	 * When residuals are measured, the relaxation stops as soon as the residual
+	 * of a sweep is under residualTolerance.
+	 * @param type Type of field (SCALAR, HORIZONTAL or VERTICAL)
+	 * @param x Unknown field
+	 * @param x0 Right hand side
+	 * @param a Neighbours' coefficient
+	 * @param c Divisor
+	 * @param residuals Squared residual of each row, <code>null</code> to use every iteration without measure
+	 * @return Number of sweeps used
+	 */
+	protected int linearSolve(int type, float[] x, float[] x0, float a, float c, double[] residuals)
+	{
+		Kernel red = new RelaxKernel(x, x0, a, c, 0, residuals);
+		Kernel black = new RelaxKernel(x, x0, a, c, 1, residuals);
+		int k = 0;
+
+		while(k < iterations)
+		{
+			if(residuals != null)
+				Arrays.fill(residuals, 0.);
+
+			forEachBand(red, 1, ny + 1);
+			forEachBand(black, 1, ny + 1);
+			setBoundary(type, x);
+			k++;
+
+			if(residuals != null)
+			{
+				double sum = 0.;
+				for(int j = 1; j <= ny; j++)
+					sum += residuals[j];
+
+				sweepResidual = (float) Math.sqrt(sum / (nx * ny));
+				if(sweepResidual <= residualTolerance)
+					break;
+			}
+		}
+
+		return k;
+	}
+
+	/** Relaxation of the cells of one color */
+	private class RelaxKernel extends Kernel
+	{
+		private final float[] x;
+		private final float[] x0;
+		private final float a;
+		private final float c;
+		private final float invC;
+		private final int color;
+		private final double[] residuals;
+
+		RelaxKernel(float[] x, float[] x0, float a, float c, int color, double[] residuals)
+		{
+			this.x			= x;
+			this.x0			= x0;
+			this.a			= a;
+			this.c			= c;
+			this.invC		= 1.f / c;
+			this.color		= color;
+			this.residuals	= residuals;
+		}
+
+		@Override
+		void run(int fromRow, int toRow)
+		{
+			for(int j = fromRow; j < toRow; j++)
+			{
+				// Première case de la ligne de cette couleur
+				int first = 1 + ((1 + j + color) & 1);
+				int index = (j * width) + first;
+
+				if(residuals == null)
+				{
+					for(int i = first; i <= nx; i += 2, index += 2)
+						x[index] = (x0[index] + (a * (x[index - 1] + x[index + 1] + x[index - width] + x[index + width]))) * invC;
+				}
+				else
+				{
+					// Le résidu de la case avant relaxation est c * (nouvelle - ancienne valeur)
+					double sum = 0.;
+
+					for(int i = first; i <= nx; i += 2, index += 2)
+					{
+						float value = (x0[index] + (a * (x[index - 1] + x[index + 1] + x[index - width] + x[index + width]))) * invC;
+						float delta = c * (value - x[index]);
+						sum += delta * delta;
+						x[index] = value;
+					}
+
+					residuals[j] += sum;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Move a field along the velocities (semi-Lagrangian advection)
+	 * @param type Type of field (SCALAR, HORIZONTAL or VERTICAL)
+	 * @param d Advected field
+	 * @param d0 Field to advect
+	 * @param du Velocities on X axis
+	 * @param dv Velocities on Y axis
+	 */
+	protected void advect(int type, final float[] d, final float[] d0, final float[] du, final float[] dv)
+	{
+		final float dtX = deltaT * nx;
+		final float dtY = deltaT * ny;
+
+		forEachBand(new Kernel() {
+			@Override
+			void run(int fromRow, int toRow)
+			{
+				for(int j = fromRow; j < toRow; j++)
+				{
+					int index = (j * width) + 1;
+
+					for(int i = 1; i <= nx; i++, index++)
+					{
+						// On remonte la vitesse pour trouver la case d'origine
+						float x = Math.max(0.5f, Math.min(nx + 0.5f, i - (dtX * du[index])));
+						float y = Math.max(0.5f, Math.min(ny + 0.5f, j - (dtY * dv[index])));
+						int i0 = (int) x;
+						int j0 = (int) y;
+						float s1 = x - i0;
+						float s0 = 1.f - s1;
+						float t1 = y - j0;
+						float t0 = 1.f - t1;
+						int origin = (j0 * width) + i0;
+
+						d[index] = (s0 * ((t0 * d0[origin]) + (t1 * d0[origin + width])))
+								+ (s1 * ((t0 * d0[origin + 1]) + (t1 * d0[origin + width + 1])));
+					}
+				}
+			}
+		}, 1, ny + 1);
+
+		setBoundary(type, d);
+	}
+
+	/**
+	 * Remove the divergence of the velocities (pressure projection)
+	 * @param x Velocities on X axis
+	 * @param y Velocities on Y axis
+	 * @param p Temporary field for the pressure
+	 * @param div Temporary field for the divergence
+	 */
+	protected void project(final float[] x, final float[] y, final float[] p, final float[] div)
+	{
+		forEachBand(new Kernel() {
+			@Override
+			void run(int fromRow, int toRow)
+			{
+				for(int j = fromRow; j < toRow; j++)
+				{
+					int index = (j * width) + 1;
+
+					for(int i = 1; i <= nx; i++, index++)
+					{
+						div[index] = -0.5f * (((x[index + 1] - x[index - 1]) / nx) + ((y[index + width] - y[index - width]) / ny));
+						p[index] = 0.f;
+					}
+				}
+			}
+		}, 1, ny + 1);
+
+		setBoundary(SCALAR, div);
+		setBoundary(SCALAR, p);
+
+		if(projection == PROJECTION_MULTIGRID)
+		{
+			if(multigrid == null || !multigrid.fits(nx, ny))
+				multigrid = new MultigridSolver(nx, ny);
+			
+			// Avec le multigrille, une itération est un V-cycle
+			multigrid.setMaxCycles(iterations);
+			multigrid.solve(p, div, tolerance, residualTolerance);
+			iterationsUsed = Math.max(iterationsUsed, multigrid.getCyclesUsed());
+			residual = Math.max(residual, (float) multigrid.getLastResidual());
+		}
+		else
+		{
+			iterationsUsed = Math.max(iterationsUsed, linearSolve(SCALAR, p, div, 1.f, 4.f, rowResiduals));
+			residual = Math.max(residual, sweepResidual);
+		}
+
+		forEachBand(new Kernel() {
+			@Override
+			void run(int fromRow, int toRow)
+			{
+				for(int j = fromRow; j < toRow; j++)
+				{
+					int index = (j * width) + 1;
+
+					for(int i = 1; i <= nx; i++, index++)
+					{
+						x[index] -= 0.5f * nx * (p[index + 1] - p[index - 1]);
+						y[index] -= 0.5f * ny * (p[index + width] - p[index - width]);
+					}
+				}
+			}
+		}, 1, ny + 1);
+
+		setBoundary(HORIZONTAL, x);
+		setBoundary(VERTICAL, y);
+	}
+
+	/**
+	 * Set the border of a field : velocities are reflected on walls, scalars
+	 * are continued
+	 * @param type Type of field (SCALAR, HORIZONTAL or VERTICAL)
+	 * @param x Field
+	 */
+	protected void setBoundary(int type, float[] x)
+	{
+		int top = (ny + 1) * width;
+
+		for(int i = 1; i <= nx; i++)
+		{
+			x[i]		= (type == VERTICAL) ? -x[i + width] : x[i + width];
+			x[top + i]	= (type == VERTICAL) ? -x[top - width + i] : x[top - width + i];
+		}
+
+		for(int j = 1; j <= ny; j++)
+		{
+			int row = j * width;
+			x[row]			= (type == HORIZONTAL) ? -x[row + 1] : x[row + 1];
+			x[row + nx + 1]	= (type == HORIZONTAL) ? -x[row + nx] : x[row + nx];
+		}
+
+		// Coins
+		x[0]				= 0.5f * (x[1] + x[width]);
+		x[nx + 1]			= 0.5f * (x[nx] + x[width + nx + 1]);
+		x[top]				= 0.5f * (x[top + 1] + x[top - width]);
+		x[top + nx + 1]		= 0.5f * (x[top + nx] + x[top - width + nx + 1]);
+	}
+
+	/** Fade dyes and clear the fields consumed by this update */
+	protected void fade()
+	{
+		final float hold = 1.f - fadeSpeed;
+
+		forEachBand(new Kernel() {
+			@Override
+			void run(int fromRow, int toRow)
+			{
+				for(int i = fromRow * width; i < toRow * width; i++)
+				{
+					r[i] *= hold;
+					g[i] *= hold;
+					b[i] *= hold;
+					uOld[i] = vOld[i] = 0.f;
+					rOld[i] = gOld[i] = bOld[i] = 0.f;
+				}
+			}
+		}, 0, ny + 2);
+	}
+
+	private void swapU() {
+		float[] tmp = u; u = uOld; uOld = tmp;
+	}
+
+	private void swapV() {
+		float[] tmp = v; v = vOld; vOld = tmp;
+	}
+
+	private void swapRGB()
+	{
+		float[] tmp;
+		tmp = r; r = rOld; rOld = tmp;
+		tmp = g; g = gOld; gOld = tmp;
+		tmp = b; b = bOld; bOld = tmp;
+	}
+
+	@Override
+	public void reset()
+	{
+		for(int i = 0; i < numCells; i++)
+		{
+			u[i] = v[i] = uOld[i] = vOld[i] = 0.f;
+			r[i] = g[i] = b[i] = rOld[i] = gOld[i] = bOld[i] = 0.f;
+		}
+	}
+
+	@Override
+	public void destroy()
+	{
+		u = v = uOld = vOld = r = g = b = rOld = gOld = bOld = new float[0];
+
+		if(pool != null)
+		{
+			pool.shutdown();
+			pool = null;
+		}
+	}
+
+	@Override
+	public void setFadeSpeed(float fadeSpeed) {
+		this.fadeSpeed = fadeSpeed;
+	}
+
+	@Override
+	public void setDeltaT(float deltaT) {
+		this.deltaT = deltaT;
+	}
+
+	@Override
+	public void setVisc(float viscosity) {
+		this.viscosity = viscosity;
+	}
+
+	@Override
+	public void setSolverIterations(int solverIterations) {
+		this.iterations = solverIterations;
+	}
+
+	@Override
+	public boolean setProjection(int method, float tolerance)
+	{
+		if(method != PROJECTION_RELAXATION && method != PROJECTION_MULTIGRID)
+			return false;
+
+		this.projection	= method;
+		this.tolerance	= tolerance;
+		return true;
+	}
+
+	@Override
+	public void setResidualTolerance(float residual) {
+		this.residualTolerance = residual;
+	}
+
+	@Override
+	public int getIterationsUsed() {
+		return iterationsUsed;
+	}
+
+	@Override
+	public float getResidual() {
+		return residual;
+	}
+
+	@Override
+	public int getIndexForNormalizedPosition(float x, float y)
+	{
+		int i = Math.max(1, Math.min(nx, (int) Math.floor(x * width)));
+		int j = Math.max(1, Math.min(ny, (int) Math.floor(y * (ny + 2))));
+		return (j * width) + i;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return ny + 2;
+	}
+
+	@Override
+	public int getNumCells() {
+		return numCells;
+	}
+
+	@Override
+	public float[] getU() {
+		return u;
+	}
+
+	@Override
+	public float[] getV() {
+		return v;
+	}
+
+	@Override
+	public float[] getUOld() {
+		return uOld;
+	}
+
+	@Override
+	public float[] getVOld() {
+		return vOld;
+	}
+
+	@Override
+	public float[] getR() {
+		return r;
+	}
+
+	@Override
+	public float[] getG() {
+		return g;
+	}
+
+	@Override
+	public float[] getB() {
+		return b;
+	}
+
+	@Override
+	public float[] getROld() {
+		return rOld;
+	}
+
+	@Override
+	public float[] getGOld() {
+		return gOld;
+	}
+
+	@Override
+	public float[] getBOld() {
+		return bOld;
+	}
+}
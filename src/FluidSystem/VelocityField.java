@@ -0,0 +1,178 @@
+package FluidSystem;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A velocity field shares the velocities of a fluid solver with other objects
+ * of the same Max process, without going through Max's attributes.
+ * The solver publishes each completed frame in a free buffer, which then 
+ * becomes the front one. Readers acquire the front frame and release it once
+ * they are done : the solver never writes in a frame held by a reader, so 
+ * readers always get a whole frame, even if the solver publishes several 
+ * frames meanwhile. The field has one buffer more than its readers hold, and
+ * the front one : buffers are added when all of them are held.
+ * Fields are registered by name so that any object can find them.
+ *
+ * @author	CreArtCom's Studio
+ * @author	Léo LEFEBVRE
+ * @version	1.0
+ * @see FluidSolver
+ */
+public class VelocityField
+{
+	/** Every published field : name => field */
+	private static final ConcurrentMap<String, VelocityField> REGISTRY = new ConcurrentHashMap<String, VelocityField>();
+
+	/** Number of readers of a frame being written by the solver */
+	private static final int WRITING = -1;
+
+	/**
+	 * A frame of the field. Arrays are owned by the field : readers must not
+	 * modify them, nor use them after release().
+	 */
+	public static class Frame
+	{
+		/** Velocities on X axis for each cell, row by row */
+		public float[] u;
+
+		/** Velocities on Y axis for each cell, row by row */
+		public float[] v;
+
+		/** Number of cells in width */
+		public int width;
+
+		/** Number of cells in height */
+		public int height;
+
+		/** Sequence number of the frame (0 before the first published frame) */
+		public long sequence;
+
+		/** Number of readers holding the frame (WRITING while the solver writes it) */
+		final AtomicInteger readers;
+
+		Frame()
+		{
+			this.u			= new float[0];
+			this.v			= new float[0];
+			this.width		= 0;
+			this.height		= 0;
+			this.sequence	= 0;
+			this.readers	= new AtomicInteger(0);
+		}
+
+		/** Give the frame back to the field, once it is not read anymore */
+		public void release() {
+			readers.decrementAndGet();
+		}
+	}
+
+	/** Every buffer of the field (only accessed by the solver's thread) */
+	protected Frame[] frames;
+
+	/** Last completed frame, read by readers */
+	protected volatile Frame front;
+
+	/** Sequence number of the last published frame */
+	protected long sequence;
+
+	/** Construct an empty field */
+	public VelocityField()
+	{
+		this.frames		= new Frame[] {new Frame(), new Frame()};
+		this.front		= frames[0];
+		this.sequence	= 0;
+	}
+
+	/**
+	 * Register a field under the given name (replace any field of this name)
+	 * @param name Name of the field
+	 * @param field Field to register
+	 */
+	public static void register(String name, VelocityField field) {
+		REGISTRY.put(name, field);
+	}
+
+	/**
+	 * Unregister a field if it is still registered under the given name
+	 * @param name Name of the field
+	 * @param field Field to unregister
+	 */
+	public static void unregister(String name, VelocityField field) {
+		REGISTRY.remove(name, field);
+	}
+
+	/**
+	 * Find a registered field
+	 * @param name Name of the field
+	 * @return The field, <code>null</code> if there is no such field
+	 */
+	public static VelocityField get(String name) {
+		return REGISTRY.get(name);
+	}
+
+	/**
+	 * Publish a completed frame : velocities are copied in a buffer which is
+	 * neither the front one nor held by a reader, then this buffer becomes
+	 * the front one.
+	 * Must only be called by the solver's thread.
+	 * @param u Velocities on X axis for each cell, row by row
+	 * @param v Velocities on Y axis for each cell, row by row
+	 * @param width Number of cells in width
+	 * @param height Number of cells in height
+	 */
+	public void publish(float[] u, float[] v, int width, int height)
+	{
+		Frame back = null;
+		for(int f = 0; f < frames.length && back == null; f++)
+		{
+			if(frames[f] != front && frames[f].readers.compareAndSet(0, WRITING))
+				back = frames[f];
+		}
+
+		// Tous les buffers sont lus : on en ajoute un
+		if(back == null)
+		{
+			back = new Frame();
+			back.readers.set(WRITING);
+			frames = Arrays.copyOf(frames, frames.length + 1);
+			frames[frames.length - 1] = back;
+		}
+
+		int nbCells = width * height;
+		if(back.u.length != nbCells)
+		{
+			back.u = new float[nbCells];
+			back.v = new float[nbCells];
+		}
+
+		System.arraycopy(u, 0, back.u, 0, nbCells);
+		System.arraycopy(v, 0, back.v, 0, nbCells);
+		back.width		= width;
+		back.height		= height;
+		back.sequence	= ++sequence;
+		back.readers.set(0);
+
+		front = back;
+	}
+
+	/**
+	 * Acquire the last completed frame. The solver does not write in it until
+	 * it is released (see Frame.release).
+	 * @return The front frame (read only)
+	 */
+	public Frame acquire()
+	{
+		while(true)
+		{
+			// Si le solveur réécrit l'image entre temps, on prend la suivante
+			Frame frame = front;
+			int readers = frame.readers.get();
+
+			if(readers != WRITING && frame.readers.compareAndSet(readers, readers + 1))
+				return frame;
+		}
+	}
+}
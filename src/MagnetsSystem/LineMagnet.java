@@ -1,7 +1,10 @@
 package MagnetsSystem;
 
-import ParticlesSystem.Particle;
+import ParticlesSystem.ParticlesStore;
 import Utils.Line;
+import Utils.SnapshotWriter;
+import Utils.Vector;
+import java.io.IOException;
 
 /**
  * A line magnet is a magnet materialized by an infinite line.
@@ -14,6 +17,12 @@ public class LineMagnet extends Magnet
 {
     protected Line line;
 	
+	/** Normalised director of the line, computed once */
+	protected Vector director;
+	
+	/** A point of the line, computed once */
+	protected Vector origin;
+	
 	/**
 	 * Construct a line magnet
 	 * @param line Support of the magnet
@@ -22,18 +31,56 @@ public class LineMagnet extends Magnet
 	public LineMagnet(Line line, double force)
 	{
 		super(force);
-		this.line = line;
+		this.line		= line;
+		this.director	= line.getDirector();
+		this.origin		= line.getAPoint();
 	}
     
 	/**
 	 * Compute the attractive force to apply
-	 * @param particle Particle on which force will be apply
+	 * @param particles Store which contains the particle
+	 * @param index Index of the particle on which force will be apply
 	 */
 	@Override	
-	public void applyMagnetForce(Particle particle) {
-		new PointMagnet(line.getOrthographicProjection(particle.getPosition()), force * WEIGHT).applyMagnetForce(particle);
+	public void applyMagnetForce(ParticlesStore particles, int index)
+	{
+		double t = projection(particles.x[index], particles.y[index]);
+		PointMagnet.attract(particles, index, origin.x + (t * director.x), origin.y + (t * director.y), force);
+	}
+	
+	/**
+	 * Add the attractive force felt at the given position
+	 * @param x Position on X axis scaled by Max.ENGINE_...
+	 * @param y Position on Y axis scaled by Max.ENGINE_...
+	 * @param result Array {forceX, forceY} on which the force is added
+	 */
+	@Override
+	public void addForce(double x, double y, double[] result)
+	{
+		double t = projection(x, y);
+		PointMagnet.addAttraction(x, y, origin.x + (t * director.x), origin.y + (t * director.y), force, result);
+	}
+	
+	/**
+	 * Get the orthographic projection of the given point on the line as a 
+	 * distance from origin along director
+	 * @param x Position on X axis
+	 * @param y Position on Y axis
+	 * @return The projection : origin + t * director
+	 * @see Line#getOrthographicProjection(Vector)
+	 */
+	private double projection(double x, double y) {
+		return (director.x * (x - origin.x)) + (director.y * (y - origin.y));
 	}
 
+	@Override
+	public void save(SnapshotWriter out) throws IOException
+	{
+		out.writeInt(LINE);
+		out.writeDouble(force);
+		line.save(out);
+	}
+	
 	@Override
 	public String toString() {
 		return "LineMagnet " + line.toString() + " " + force;
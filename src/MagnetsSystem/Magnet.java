@@ -1,6 +1,11 @@
 package MagnetsSystem;
 
-import ParticlesSystem.Particle;
+import ParticlesSystem.ParticlesStore;
+import Utils.Line;
+import Utils.SnapshotReader;
+import Utils.SnapshotWriter;
+import Utils.Vector;
+import java.io.IOException;
 
 /**
  * A magnet is an entity which attracts particles to itself.
@@ -13,7 +18,11 @@ import ParticlesSystem.Particle;
  */
 abstract public class Magnet
 {
-	protected static double WEIGHT = 1000.;
+	public static double WEIGHT = 1000.;
+	
+	// Types of magnets in snapshots
+	protected static final int	POINT	= 0;
+	protected static final int	LINE	= 1;
 	
 	/** Force that this magnet apply on its environnement. */
 	protected double force;
@@ -25,14 +34,61 @@ abstract public class Magnet
 	
 	/**
 	 * Apply the attractive force on the particle
-	 * @param particle Particle on which force will be apply
+	 * @param particles Store which contains the particle
+	 * @param index Index of the particle on which force will be apply
+	 */
+	public abstract void applyMagnetForce(ParticlesStore particles, int index);
+	
+	/**
+	 * Add the attractive force felt at the given position
+	 * @param x Position on X axis scaled by Max.ENGINE_...
+	 * @param y Position on Y axis scaled by Max.ENGINE_...
+	 * @param result Array {forceX, forceY} on which the force is added
 	 */
-	public abstract void applyMagnetForce(Particle particle);
+	public abstract void addForce(double x, double y, double[] result);
 
 	public void setForce(double newForce) {
 		this.force = newForce;
 	}
 	
+	/**
+	 * Save this magnet : its type, its force and its shape
+	 * @param out Snapshot being written
+	 * @throws IOException If the snapshot cannot be written
+	 */
+	public abstract void save(SnapshotWriter out) throws IOException;
+	
+	/**
+	 * Restore a magnet saved by save()
+	 * @param in Snapshot being read
+	 * @return The restored magnet
+	 * @throws IOException If the snapshot is truncated or the type is unknown
+	 */
+	public static Magnet restore(SnapshotReader in) throws IOException
+	{
+		int type		= in.readInt();
+		double force	= in.readDouble();
+		Magnet result;
+		
+		switch(type)
+		{
+			case POINT:
+				result = new PointMagnet(new Vector(in.readDouble(), in.readDouble()), 0.);
+				break;
+				
+			case LINE:
+				result = new LineMagnet(Line.restore(in), 0.);
+				break;
+				
+			default:
+				throw new IOException("Unknown magnet type " + type);
+		}
+		
+		// La force sauvée est déjà pondérée
+		result.setForce(force);
+		return result;
+	}
+	
 	@Override
 	public abstract String toString();
 }
@@ -0,0 +1,111 @@
+package MagnetsSystem;
+
+import ParticlesSystem.ParticlesStore;
+import Simulation.Max;
+
+/**
+ * A magnet field is the sum of all magnets' forces baked on a regular grid 
+ * over the engine domain (Max.ENGINE_MIN to Max.ENGINE_MAX).
+ * Forces are computed on the grid's nodes when magnets change, then particles
+ * sample the field by bilinear interpolation.
+ * 
+ * @author	CreArtCom's Studio
+ * @author	Léo LEFEBVRE
+ * @version	1.0
+ */
+public class MagnetField
+{
+	/** Number of cells on each axis (there are resolution + 1 nodes) */
+	protected int resolution;
+	
+	/** Forces on X axis on each node, row by row */
+	protected double[] fieldX;
+	
+	/** Forces on Y axis on each node, row by row */
+	protected double[] fieldY;
+	
+	/** Width of a cell in engine units */
+	protected double stepWidth;
+	
+	/** Height of a cell in engine units */
+	protected double stepHeight;
+	
+	/**
+	 * Construct an empty field
+	 * @param resolution Number of cells on each axis
+	 */
+	public MagnetField(int resolution)
+	{
+		int nodes = (resolution + 1) * (resolution + 1);
+		
+		this.resolution	= resolution;
+		this.fieldX		= new double[nodes];
+		this.fieldY		= new double[nodes];
+		this.stepWidth	= (Max.ENGINE_MAX.x - Max.ENGINE_MIN.x) / resolution;
+		this.stepHeight	= (Max.ENGINE_MAX.y - Max.ENGINE_MIN.y) / resolution;
+	}
+	
+	/**
+	 * Compute the sum of the magnets' forces on each node
+	 * @param magnets Magnets to bake
+	 */
+	public void build(Magnet[] magnets)
+	{
+		double[] force = new double[2];
+		int node = 0;
+		
+		for(int j = 0; j <= resolution; j++)
+		{
+			double y = Max.ENGINE_MIN.y + (j * stepHeight);
+			
+			for(int i = 0; i <= resolution; i++, node++)
+			{
+				double x = Max.ENGINE_MIN.x + (i * stepWidth);
+				
+				force[0] = force[1] = 0.;
+				for(Magnet magnet : magnets)
+					magnet.addForce(x, y, force);
+				
+				fieldX[node] = force[0];
+				fieldY[node] = force[1];
+			}
+		}
+	}
+	
+	/**
+	 * Add the field's force on the particle (bilinear interpolation of the 
+	 * four surrounding nodes). Particles out of the domain feel the border.
+	 * @param particles Store which contains the particle
+	 * @param index Index of the particle on which force will be apply
+	 */
+	public void apply(ParticlesStore particles, int index)
+	{
+		double u = Math.max(0., Math.min(resolution, (particles.x[index] - Max.ENGINE_MIN.x) / stepWidth));
+		double v = Math.max(0., Math.min(resolution, (particles.y[index] - Max.ENGINE_MIN.y) / stepHeight));
+		int i = Math.min((int) u, resolution - 1);
+		int j = Math.min((int) v, resolution - 1);
+		double fu = u - i;
+		double fv = v - j;
+		
+		int n00 = (j * (resolution + 1)) + i;
+		int n10 = n00 + 1;
+		int n01 = n00 + resolution + 1;
+		int n11 = n01 + 1;
+		
+		double w00 = (1. - fu) * (1. - fv);
+		double w10 = fu * (1. - fv);
+		double w01 = (1. - fu) * fv;
+		double w11 = fu * fv;
+		
+		particles.forceX[index] += (w00 * fieldX[n00]) + (w10 * fieldX[n10]) + (w01 * fieldX[n01]) + (w11 * fieldX[n11]);
+		particles.forceY[index] += (w00 * fieldY[n00]) + (w10 * fieldY[n10]) + (w01 * fieldY[n01]) + (w11 * fieldY[n11]);
+	}
+	
+	/**
+	 * Get the resolution
+	 * @return Number of cells on each axis
+	 */
+	public int getResolution() {
+		return resolution;
+	}
+}
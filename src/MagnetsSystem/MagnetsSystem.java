@@ -1,11 +1,17 @@
 package MagnetsSystem;
 
-import ParticlesSystem.Particle;
+import ParticlesSystem.ParticlesStore;
 import Simulation.Particles;
 import Utils.Line;
+import Utils.SnapshotReader;
+import Utils.SnapshotWriter;
 import Utils.Vector;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A magnets' System is a mechanical 3D system which contains magnets.
@@ -16,7 +22,16 @@ import java.util.Map;
  */
 public class MagnetsSystem
 {
-	/** Current list of all magnets in this system */
+	// Default parameters
+	private static final double	THETA			= 0.5;
+	private static final int	TREE_THRESHOLD	= 64;
+	
+
+	/** 
+	 * Current list of all magnets in this system.
+	 * Magnets are only modified by commands executed on the updating thread, 
+	 * the map is concurrent so that messages can still read it.
+	 */
 	protected Map<Integer, Magnet> magnets;
 	
 	/** Object responsible for the simulation */
@@ -24,12 +39,50 @@ public class MagnetsSystem
 	
 	/** Determine if magnets are appliable on particles */
 	protected boolean enable;
+	
+	/** 
+	 * Snapshot of the magnets, rebuilt by prepare() when magnets changed.
+	 * Particles are updated from this array, so they never iterate the map.
+	 */
+	protected Magnet[] activeMagnets;
+	
+	/** Determine if magnets changed since the last call to prepare() */
+	protected boolean changed;
+	
+	/** Baked field of all magnets, <code>null</code> to apply magnets exactly */
+	protected MagnetField field;
+	
+	/** Resolution of the baked field, 0 to apply magnets exactly */
+	protected int fieldResolution;
+	
+	/** 
+	 * Quadtree of the point magnets, <code>null</code> when there are less 
+	 * point magnets than treeThreshold
+	 */
+	protected MagnetsTree tree;
+	
+	/** Magnets which are not in the tree (applied exactly with the tree) */
+	protected Magnet[] otherMagnets;
+	
+	/** Opening angle of the tree, 0 to apply magnets exactly */
+	protected double theta;
+	
+	/** Minimum number of point magnets to use the tree */
+	protected int treeThreshold;
 
 	public MagnetsSystem(Simulation.Particles simulation)
 	{
-		this.simulation	= simulation;
-		this.magnets	= new HashMap<Integer, Magnet>();
-		this.enable		= false;
+		this.simulation			= simulation;
+		this.magnets			= new ConcurrentHashMap<Integer, Magnet>();
+		this.enable				= false;
+		this.activeMagnets		= new Magnet[0];
+		this.changed			= false;
+		this.field				= null;
+		this.fieldResolution	= 0;
+		this.tree				= null;
+		this.otherMagnets		= new Magnet[0];
+		this.theta				= THETA;
+		this.treeThreshold		= TREE_THRESHOLD;
 	}
 	
 	public String getInfo(int index)
@@ -55,48 +108,137 @@ public class MagnetsSystem
 		return result;
 	}
 
+	/**
+	 * Prepare magnets for the next update : if magnets changed, the snapshot
+	 * of magnets and the baked field are rebuilt.
+	 * Must be called once per update by the updating thread, before any call 
+	 * to apply().
+	 * @return <code>true</code> if magnets changed since the last call, <code>false</code> otherwise
+	 */
+	public boolean prepare()
+	{
+		if(!changed)
+			return false;
+		
+		changed = false;
+		activeMagnets = magnets.values().toArray(new Magnet[magnets.size()]);
+		
+		if(fieldResolution > 0)
+		{
+			if(field == null || field.getResolution() != fieldResolution)
+				field = new MagnetField(fieldResolution);
+			field.build(activeMagnets);
+		}
+		else
+			field = null;
+		
+		prepareTree();
+		return true;
+	}
+	
+	/** Split point magnets from others and rebuild the tree if they are numerous */
+	private void prepareTree()
+	{
+		List<PointMagnet> points = new ArrayList<PointMagnet>();
+		List<Magnet> others = new ArrayList<Magnet>();
+		
+		for(Magnet magnet : activeMagnets)
+		{
+			if(magnet instanceof PointMagnet)
+				points.add((PointMagnet) magnet);
+			else
+				others.add(magnet);
+		}
+		
+		if(field != null || theta <= 0. || points.size() < treeThreshold)
+		{
+			tree = null;
+			return;
+		}
+		
+		if(tree == null)
+			tree = new MagnetsTree(theta);
+		tree.setTheta(theta);
+		tree.build(points.toArray(new PointMagnet[points.size()]));
+		otherMagnets = others.toArray(new Magnet[others.size()]);
+	}
+
 	/**
 	 * Apply every attractives forces for each magnet on this particle
-	 * @param particle Particle on which apply magnets
+	 * @param particles Store which contains the particle
+	 * @param index Index of the particle on which apply magnets
 	 */
-	public void apply(Particle particle)
+	public void apply(ParticlesStore particles, int index)
 	{
 		if(enable)
 		{
-			for(Map.Entry<Integer, Magnet> pair : magnets.entrySet())
-				pair.getValue().applyMagnetForce(particle);
+			if(field != null)
+				field.apply(particles, index);
+			else if(tree != null)
+			{
+				tree.apply(particles, index);
+				for(Magnet magnet : otherMagnets)
+					magnet.applyMagnetForce(particles, index);
+			}
+			else
+				for(Magnet magnet : activeMagnets)
+					magnet.applyMagnetForce(particles, index);
 		}
 	}
 	
 	/**	Remove all magnets */
-	public void resetMagnets() {
-		magnets.clear();
+	public void resetMagnets()
+	{
+		simulation.execute(new Runnable() {
+			@Override
+			public void run() {
+				magnets.clear();
+				changed = true;
+			}
+		});
 	}
 
 	/**
 	 * Delete a magnet by its index
 	 * @param index Index of the magnet to delete
 	 */
-	public void deleteMagnet(int index) {
-		if(magnets.containsKey(index))
-			magnets.remove(index);
-		else
-			simulation.printOut("Unable to remove : There is no magnet n°" + index);
+	public void deleteMagnet(final int index)
+	{
+		simulation.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				if(magnets.containsKey(index)) {
+					magnets.remove(index);
+					changed = true;
+				}
+				else
+					simulation.printOut("Unable to remove : There is no magnet n°" + index);
+			}
+		});
 	}
 
-	public void setMagnetForce(int index, float newForce)
+	public void setMagnetForce(final int index, final float newForce)
 	{
-		if(index == -1)
-			for(Map.Entry<Integer, Magnet> pair : magnets.entrySet())
-				pair.getValue().setForce(newForce);
-		
-		else
-		{
-			if(magnets.containsKey(index))
-				magnets.get(index).setForce(newForce);
-			else
-				simulation.printOut("Unable to change force : There is no magnet n°" + index);
-		}
+		simulation.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				changed = true;
+
+				if(index == -1)
+					for(Map.Entry<Integer, Magnet> pair : magnets.entrySet())
+						pair.getValue().setForce(newForce);
+
+				else
+				{
+					if(magnets.containsKey(index))
+						magnets.get(index).setForce(newForce);
+					else
+						simulation.printOut("Unable to change force : There is no magnet n°" + index);
+				}
+			}
+		});
 	}
 
 	public Magnet getMagnet(int index) {
@@ -105,8 +247,15 @@ public class MagnetsSystem
 		return null;
 	}
 
-	public void setMagnet(int index, Magnet magnet) {
-		magnets.put(index, magnet);
+	public void setMagnet(final int index, final Magnet magnet)
+	{
+		simulation.execute(new Runnable() {
+			@Override
+			public void run() {
+				magnets.put(index, magnet);
+				changed = true;
+			}
+		});
 	}
 
 	public void setPointMagnet(int index, Vector position, double force) {
@@ -126,7 +275,122 @@ public class MagnetsSystem
 		return enable;
 	}
 
-	public void setEnable(boolean enable) {
-		this.enable = enable;
+	public void setEnable(final boolean enable)
+	{
+		simulation.execute(new Runnable() {
+			@Override
+			public void run() {
+				MagnetsSystem.this.enable = enable;
+				changed = true;
+			}
+		});
+	}
+
+	/**
+	 * Bake magnets on a grid instead of applying each magnet on each particle.
+	 * The field is sampled by bilinear interpolation, so it is an approximation
+	 * of the exact forces (especially close to the magnets).
+	 * @param resolution Number of cells on each axis, 0 to apply magnets exactly
+	 * @see MagnetField
+	 */
+	public void setFieldResolution(final int resolution)
+	{
+		if(resolution < 0)
+			simulation.printOut("Unable to bake magnets : resolution must be positive (0 to disable)");
+		else
+		{
+			simulation.execute(new Runnable() {
+				@Override
+				public void run() {
+					fieldResolution = resolution;
+					changed = true;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Apply point magnets through a quadtree (Barnes–Hut approximation) when 
+	 * they are numerous. A group of magnets is applied as one magnet when its
+	 * size seen from the particle is lower than theta.
+	 * @param theta Opening angle, 0 to apply magnets exactly
+	 * @param threshold Minimum number of point magnets to use the quadtree
+	 * @see MagnetsTree
+	 */
+	public void setTree(final double theta, final int threshold)
+	{
+		if(theta < 0. || threshold < 0)
+			simulation.printOut("Unable to set magnets' tree : theta and threshold must be positive");
+		else
+		{
+			simulation.execute(new Runnable() {
+				@Override
+				public void run() {
+					MagnetsSystem.this.theta			= theta;
+					MagnetsSystem.this.treeThreshold	= threshold;
+					changed = true;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Set the opening angle of the quadtree
+	 * @param theta Opening angle, 0 to apply magnets exactly
+	 * @see #setTree(double, int)
+	 */
+	public void setTree(double theta) {
+		setTree(theta, treeThreshold);
+	}
+	
+	/**
+	 * Save the settings and every magnet of this system.
+	 * Must be called by the updating thread.
+	 * @param out Snapshot being written
+	 * @throws IOException If the snapshot cannot be written
+	 */
+	public void save(SnapshotWriter out) throws IOException
+	{
+		out.writeBoolean(enable);
+		out.writeInt(fieldResolution);
+		out.writeDouble(theta);
+		out.writeInt(treeThreshold);
+		
+		out.writeInt(magnets.size());
+		for(Map.Entry<Integer, Magnet> pair : magnets.entrySet())
+		{
+			out.writeInt(pair.getKey());
+			pair.getValue().save(out);
+		}
+	}
+	
+	/**
+	 * Replace the settings and the magnets of this system by the saved ones.
+	 * Must be called by the updating thread.
+	 * @param in Snapshot being read
+	 * @throws IOException If the snapshot is truncated
+	 */
+	public void restore(SnapshotReader in) throws IOException
+	{
+		boolean newEnable		= in.readBoolean();
+		int newResolution		= in.readInt();
+		double newTheta			= in.readDouble();
+		int newTreeThreshold	= in.readInt();
+		
+		// Les aimants sont lus avant de remplacer les actuels
+		Map<Integer, Magnet> restored = new HashMap<Integer, Magnet>();
+		for(int count = in.readInt(); count > 0; count--)
+		{
+			int index = in.readInt();
+			restored.put(index, Magnet.restore(in));
+		}
+		
+		enable			= newEnable;
+		fieldResolution	= newResolution;
+		theta			= newTheta;
+		treeThreshold	= newTreeThreshold;
+		magnets.clear();
+		magnets.putAll(restored);
+		changed = true;
 	}
 }
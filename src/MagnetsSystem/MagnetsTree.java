@@ -0,0 +1,348 @@
+package MagnetsSystem;
+
+import ParticlesSystem.ParticlesStore;
+
+/**
+ * A magnets' tree is a quadtree of point magnets used to apply many point
+ * magnets at once (Barnes–Hut approximation).
+ * Each node sums its attractive magnets and its repulsive magnets in two
+ * equivalent magnets placed at their weighted centers. A node whose size seen
+ * from the particle is smaller than theta is applied as these two magnets,
+ * otherwise its children are visited. Leaves are applied exactly.
+ *
+ * @author	CreArtCom's Studio
+ * @author	Léo LEFEBVRE
+ * @version	1.0
+ * @see PointMagnet
+ */
+public class MagnetsTree
+{
+	// Default parameters
+	private static final int	LEAF_SIZE	= 4;
+	private static final int	MAX_DEPTH	= 24;
+	private static final int	CAPACITY	= 64;
+
+	/** Opening angle : the smaller it is, the more accurate the forces are */
+	protected double theta;
+
+	/** Positions on X axis of the magnets, sorted so that each node owns a range */
+	protected double[] magnetX;
+
+	/** Positions on Y axis of the magnets, same order as magnetX */
+	protected double[] magnetY;
+
+	/** Forces of the magnets, same order as magnetX */
+	protected double[] magnetForce;
+
+	/** Current number of nodes, the root is the node 0 */
+	protected int nbNodes;
+
+	/** Side of the square covered by each node */
+	protected double[] nodeSize;
+
+	/** Weighted center on X axis of the attractive magnets of each node */
+	protected double[] attractX;
+
+	/** Weighted center on Y axis of the attractive magnets of each node */
+	protected double[] attractY;
+
+	/** Sum of the attractive forces of each node */
+	protected double[] attractForce;
+
+	/** Weighted center on X axis of the repulsive magnets of each node */
+	protected double[] repulseX;
+
+	/** Weighted center on Y axis of the repulsive magnets of each node */
+	protected double[] repulseY;
+
+	/** Sum of the repulsive forces of each node */
+	protected double[] repulseForce;
+
+	/** Magnets of node n are magnetX[nodeStart[n]] to magnetX[nodeEnd[n] - 1] */
+	protected int[] nodeStart;
+
+	/** @see #nodeStart */
+	protected int[] nodeEnd;
+
+	/** Index of the first child of each node (children are contiguous) */
+	protected int[] firstChild;
+
+	/** Number of children of each node, 0 for leaves */
+	protected int[] nbChildren;
+
+	/**
+	 * Construct an empty tree
+	 * @param theta Opening angle
+	 */
+	public MagnetsTree(double theta)
+	{
+		this.theta			= theta;
+		this.magnetX		= new double[0];
+		this.magnetY		= new double[0];
+		this.magnetForce	= new double[0];
+		this.nbNodes		= 0;
+		allocate(CAPACITY);
+	}
+
+	/**
+	 * Allocate every node's array with the given capacity and copy current nodes
+	 * @param capacity New capacity
+	 */
+	private void allocate(int capacity)
+	{
+		nodeSize		= copyOf(nodeSize, capacity);
+		attractX		= copyOf(attractX, capacity);
+		attractY		= copyOf(attractY, capacity);
+		attractForce	= copyOf(attractForce, capacity);
+		repulseX		= copyOf(repulseX, capacity);
+		repulseY		= copyOf(repulseY, capacity);
+		repulseForce	= copyOf(repulseForce, capacity);
+		nodeStart		= copyOf(nodeStart, capacity);
+		nodeEnd			= copyOf(nodeEnd, capacity);
+		firstChild		= copyOf(firstChild, capacity);
+		nbChildren		= copyOf(nbChildren, capacity);
+	}
+
+	private double[] copyOf(double[] column, int length)
+	{
+		double[] result = new double[length];
+		if(column != null)
+			System.arraycopy(column, 0, result, 0, Math.min(column.length, length));
+		return result;
+	}
+
+	private int[] copyOf(int[] column, int length)
+	{
+		int[] result = new int[length];
+		if(column != null)
+			System.arraycopy(column, 0, result, 0, Math.min(column.length, length));
+		return result;
+	}
+
+	/**
+	 * Rebuild the tree from the given point magnets
+	 * @param magnets Point magnets to index
+	 */
+	public void build(PointMagnet[] magnets)
+	{
+		int size = magnets.length;
+
+		if(magnetX.length != size)
+		{
+			magnetX		= new double[size];
+			magnetY		= new double[size];
+			magnetForce	= new double[size];
+		}
+
+		// On copie les aimants et on calcule le carré qui les contient
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for(int i = 0; i < size; i++)
+		{
+			magnetX[i]		= magnets[i].position.x;
+			magnetY[i]		= magnets[i].position.y;
+			magnetForce[i]	= magnets[i].force;
+			minX = Math.min(minX, magnetX[i]);
+			minY = Math.min(minY, magnetY[i]);
+			maxX = Math.max(maxX, magnetX[i]);
+			maxY = Math.max(maxY, magnetY[i]);
+		}
+
+		nbNodes = 0;
+		if(size == 0)
+			return;
+
+		nbNodes = 1;
+		build(0, 0, size, minX, minY, Math.max(maxX - minX, maxY - minY), 0);
+	}
+
+	/**
+	 * Build a node and its children
+	 * @param node Index of the node (already reserved)
+	 * @param start Index of the first magnet of the node
+	 * @param end Index after the last magnet of the node
+	 * @param minX Left side of the node
+	 * @param minY Bottom side of the node
+	 * @param size Side of the node
+	 * @param depth Depth of the node
+	 */
+	private void build(int node, int start, int end, double minX, double minY, double size, int depth)
+	{
+		nodeSize[node]		= size;
+		nodeStart[node]		= start;
+		nodeEnd[node]		= end;
+		nbChildren[node]	= 0;
+		summarize(node);
+
+		if(end - start <= LEAF_SIZE || depth >= MAX_DEPTH)
+			return;
+
+		// On range les aimants par quadrant : gauche / droite puis bas / haut
+		double half = size / 2.;
+		int middle = partition(start, end, true, minX + half);
+		int[] bounds = new int[] {
+			start, partition(start, middle, false, minY + half),
+			middle, partition(middle, end, false, minY + half), end
+		};
+
+		// On réserve les enfants non vides de manière contigüe
+		firstChild[node] = nbNodes;
+		for(int q = 0; q < 4; q++)
+			if(bounds[q] < bounds[q + 1])
+				nbChildren[node]++;
+		if(nbNodes + nbChildren[node] > nodeSize.length)
+			allocate(Math.max(nbNodes + nbChildren[node], nodeSize.length * 2));
+		nbNodes += nbChildren[node];
+
+		for(int q = 0, child = firstChild[node]; q < 4; q++)
+		{
+			if(bounds[q] < bounds[q + 1])
+			{
+				double childX = minX + ((q >= 2) ? half : 0.);
+				double childY = minY + ((q % 2 == 1) ? half : 0.);
+				build(child++, bounds[q], bounds[q + 1], childX, childY, half, depth + 1);
+			}
+		}
+	}
+
+	/**
+	 * Compute the equivalent attractive and repulsive magnets of a node
+	 * @param node Index of the node
+	 */
+	private void summarize(int node)
+	{
+		double ax = 0., ay = 0., af = 0.;
+		double rx = 0., ry = 0., rf = 0.;
+
+		for(int i = nodeStart[node]; i < nodeEnd[node]; i++)
+		{
+			if(magnetForce[i] >= 0.) {
+				ax += magnetX[i] * magnetForce[i];
+				ay += magnetY[i] * magnetForce[i];
+				af += magnetForce[i];
+			}
+			else {
+				rx += magnetX[i] * magnetForce[i];
+				ry += magnetY[i] * magnetForce[i];
+				rf += magnetForce[i];
+			}
+		}
+
+		attractForce[node]	= af;
+		attractX[node]		= (af != 0.) ? ax / af : 0.;
+		attractY[node]		= (af != 0.) ? ay / af : 0.;
+		repulseForce[node]	= rf;
+		repulseX[node]		= (rf != 0.) ? rx / rf : 0.;
+		repulseY[node]		= (rf != 0.) ? ry / rf : 0.;
+	}
+
+	/**
+	 * Move the magnets lower than the limit before the others
+	 * @param start Index of the first magnet
+	 * @param end Index after the last magnet
+	 * @param onX <code>true</code> to compare positions on X axis, <code>false</code> on Y axis
+	 * @param limit Limit position
+	 * @return Index of the first magnet greater or equal to the limit
+	 */
+	private int partition(int start, int end, boolean onX, double limit)
+	{
+		double[] positions = onX ? magnetX : magnetY;
+		int middle = start;
+
+		for(int i = start; i < end; i++)
+		{
+			if(positions[i] < limit)
+			{
+				swap(magnetX, i, middle);
+				swap(magnetY, i, middle);
+				swap(magnetForce, i, middle);
+				middle++;
+			}
+		}
+
+		return middle;
+	}
+
+	private static void swap(double[] column, int i, int j)
+	{
+		double tmp = column[i];
+		column[i] = column[j];
+		column[j] = tmp;
+	}
+
+	/**
+	 * Apply the attractive forces of every magnet of the tree on a particle
+	 * @param particles Store which contains the particle
+	 * @param index Index of the particle on which force will be apply
+	 */
+	public void apply(ParticlesStore particles, int index)
+	{
+		if(nbNodes > 0)
+			apply(0, particles, index, theta * theta);
+	}
+
+	/**
+	 * Apply the attractive forces of the magnets of a node on a particle
+	 * @param node Index of the node
+	 * @param particles Store which contains the particle
+	 * @param index Index of the particle on which force will be apply
+	 * @param theta2 Squared opening angle
+	 */
+	private void apply(int node, ParticlesStore particles, int index, double theta2)
+	{
+		double x = particles.x[index];
+		double y = particles.y[index];
+
+		// Feuille : on applique chaque aimant
+		if(nbChildren[node] == 0)
+		{
+			for(int i = nodeStart[node]; i < nodeEnd[node]; i++)
+				PointMagnet.attract(particles, index, magnetX[i], magnetY[i], magnetForce[i]);
+			return;
+		}
+
+		// Noeud assez loin : on applique les aimants équivalents
+		double size2 = nodeSize[node] * nodeSize[node];
+		if(isFar(x - attractX[node], y - attractY[node], size2, theta2, attractForce[node])
+				&& isFar(x - repulseX[node], y - repulseY[node], size2, theta2, repulseForce[node]))
+		{
+			if(attractForce[node] != 0.)
+				PointMagnet.attract(particles, index, attractX[node], attractY[node], attractForce[node]);
+			if(repulseForce[node] != 0.)
+				PointMagnet.attract(particles, index, repulseX[node], repulseY[node], repulseForce[node]);
+			return;
+		}
+
+		for(int child = firstChild[node]; child < firstChild[node] + nbChildren[node]; child++)
+			apply(child, particles, index, theta2);
+	}
+
+	/**
+	 * Determine if an equivalent magnet is far enough to be applied as is
+	 * @param dirX Direction on X axis from the magnet to the particle
+	 * @param dirY Direction on Y axis from the magnet to the particle
+	 * @param size2 Squared side of the node
+	 * @param theta2 Squared opening angle
+	 * @param force Force of the equivalent magnet
+	 * @return <code>true</code> if size / distance < theta or there is no such magnet
+	 */
+	private static boolean isFar(double dirX, double dirY, double size2, double theta2, double force) {
+		return force == 0. || size2 < theta2 * ((dirX * dirX) + (dirY * dirY));
+	}
+
+	/**
+	 * Get the opening angle
+	 * @return Opening angle
+	 */
+	public double getTheta() {
+		return theta;
+	}
+
+	/**
+	 * Set the opening angle
+	 * @param theta New opening angle
+	 */
+	public void setTheta(double theta) {
+		this.theta = theta;
+	}
+}
@@ -1,7 +1,9 @@
 package MagnetsSystem;
 
-import ParticlesSystem.Particle;
+import ParticlesSystem.ParticlesStore;
+import Utils.SnapshotWriter;
 import Utils.Vector;
+import java.io.IOException;
 
 /**
  * A point magnet is a magnet materialized by a point.
@@ -27,19 +29,79 @@ public class PointMagnet extends Magnet
     
 	/**
 	 * Compute the attractive force to apply
-	 * @param particle Particle on which force will be apply
+	 * @param particles Store which contains the particle
+	 * @param index Index of the particle on which force will be apply
 	 */
 	@Override
-	public void applyMagnetForce(Particle particle)
+	public void applyMagnetForce(ParticlesStore particles, int index) {
+		attract(particles, index, position.x, position.y, force);
+	}
+
+	/**
+	 * Add the attractive force felt at the given position
+	 * @param x Position on X axis scaled by Max.ENGINE_...
+	 * @param y Position on Y axis scaled by Max.ENGINE_...
+	 * @param result Array {forceX, forceY} on which the force is added
+	 */
+	@Override
+	public void addForce(double x, double y, double[] result) {
+		addAttraction(x, y, position.x, position.y, force, result);
+	}
+
+	/**
+	 * Add the attractive force of a point felt at the given position : f = k / d²
+	 * @param x Position on X axis
+	 * @param y Position on Y axis
+	 * @param pointX Position of the attractive point on X axis
+	 * @param pointY Position of the attractive point on Y axis
+	 * @param force Attractive force (already weighted)
+	 * @param result Array {forceX, forceY} on which the force is added
+	 */
+	public static void addAttraction(double x, double y, double pointX, double pointY, double force, double[] result)
 	{
-		Vector dir = new Vector(particle.getPosition()).Subtract(position);
-		if(dir.getNorm() > 0)
+		double dirX = x - pointX;
+		double dirY = y - pointY;
+		double norm = Math.sqrt((dirX * dirX) + (dirY * dirY));
+
+		if(norm > 0)
 		{
-			double k = force / (dir.getNorm() * dir.getNorm());
-			particle.addForce(dir.Normalise().Scalar(-k));
+			double k = force / (norm * norm * norm);
+			result[0] -= dirX * k;
+			result[1] -= dirY * k;
 		}
 	}
 
+	/**
+	 * Apply the attractive force of a point on a particle : f = k / d²
+	 * @param particles Store which contains the particle
+	 * @param index Index of the particle on which force will be apply
+	 * @param pointX Position of the attractive point on X axis
+	 * @param pointY Position of the attractive point on Y axis
+	 * @param force Attractive force (already weighted)
+	 */
+	public static void attract(ParticlesStore particles, int index, double pointX, double pointY, double force)
+	{
+		double dirX = particles.x[index] - pointX;
+		double dirY = particles.y[index] - pointY;
+		double norm = Math.sqrt((dirX * dirX) + (dirY * dirY));
+
+		if(norm > 0)
+		{
+			double k = force / (norm * norm * norm);
+			particles.forceX[index] -= dirX * k;
+			particles.forceY[index] -= dirY * k;
+		}
+	}
+
+	@Override
+	public void save(SnapshotWriter out) throws IOException
+	{
+		out.writeInt(POINT);
+		out.writeDouble(force);
+		out.writeDouble(position.x);
+		out.writeDouble(position.y);
+	}
+	
 	@Override
 	public String toString() {
 		return "PointMagnet " + position.x + " " + position.y + " " + force;
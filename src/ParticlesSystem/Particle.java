@@ -1,177 +1,211 @@
 package ParticlesSystem;
 
 import Simulation.Max;
-import Utils.Vector;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Random;
 
 /**
  * A particle is a 2D point in a mechanical system.
+ * Particles' data live in the columns of a ParticlesStore : this class only
+ * holds the mechanical rules and applies them on a given row of the store.
  *
  * @author	CreArtCom's Studio
  * @author	Léo LEFEBVRE
  * @version	1.0
+ * @see ParticlesStore
  */
 public class Particle
 {
-	/** System responsible for this particle */
+	/** System responsible for the particles */
 	protected ParticlesSystem system;
-	
+
+	/** Store which contains the particles' columns */
+	protected ParticlesStore store;
+
 	/** Random generator used to apply moment */
     protected Random generator;
-	
-	/** Current net force */
-	protected Vector force;
-	
-	/** Initial position of this particle, used to apply stiffness */
-	protected Vector initPos;
-	
-	/** "History" of the particle : the system.getMemory()'th old positions of this particle */
-	protected List<Vector> oldPos;
-	
-	/** Current position of the particle scaled by Max.ENGINE_... */
-    protected Vector position;
-    
+
+	/** Highest squared displacement of a particle since the last resetDisplacement() */
+	protected double maxDisplacement;
+
 	/**
-	 * Abstract constructor of a particle
-	 * @param position Particle's position
+	 * Construct the mechanical rules of a particles' system
+	 * @param store Particles' columns
 	 * @param system Particle's System
 	 */
-    public Particle(Vector position, ParticlesSystem system)
+    public Particle(ParticlesStore store, ParticlesSystem system)
     {
-		this.system = system;
-		this.generator = new Random();
-		this.position = new Vector(position);
-		this.initPos = new Vector(position);
-		this.force = new Vector();
-		this.oldPos = new ArrayList<Vector>(system.getMemory());
-		clearHistory();
+		this.system		= system;
+		this.store		= store;
+		this.generator	= new Random();
+		this.maxDisplacement	= 0.;
     }
-	
-	/**	Apply some random mouvement to the particle weighted by system.getMomentum() */
-	protected void applyMoment()
+
+	/**
+	 * Apply some random mouvement to the particle weighted by system.getMomentum()
+	 * @param i Index of the particle
+	 */
+	protected void applyMoment(int i)
 	{
-		Vector moment = new Vector(generator.nextFloat() - 0.5f, generator.nextFloat() - 0.5f);
-		moment.Scalar(system.getMomentum());
-		force.Add(moment);
+		double momentum = system.getMomentum();
+		store.forceX[i] += (generator.nextFloat() - 0.5f) * momentum;
+		store.forceY[i] += (generator.nextFloat() - 0.5f) * momentum;
 	}
-	
-	/** Apply some stiffness to the particle weighted by system.getStiffness() */
-	protected void applyStiffness()
+
+	/**
+	 * Apply some stiffness to the particle weighted by system.getStiffness()
+	 * @param i Index of the particle
+	 */
+	protected void applyStiffness(int i)
 	{
-		Vector delta = new Vector(position);
-		delta.Subtract(initPos);
-		delta.Scalar(system.getStiffness());
-		position.Subtract(delta);
+		double stiffness = system.getStiffness();
+		store.x[i] -= (store.x[i] - store.initX[i]) * stiffness;
+		store.y[i] -= (store.y[i] - store.initY[i]) * stiffness;
 	}
-	
-	/** Apply somme friction to the particle weighted by system.getFriction() */
-	protected void applyFriction()
+
+	/**
+	 * Apply somme friction to the particle weighted by system.getFriction()
+	 * @param i Index of the particle
+	 */
+	protected void applyFriction(int i)
+	{
+		double friction = system.getFriction();
+		store.forceX[i] -= store.forceX[i] * friction;
+		store.forceY[i] -= store.forceY[i] * friction;
+	}
+
+	/**
+	 * Compute the new position of the particles in [from, to[
+	 * @param from Index of the first particle
+	 * @param to Index after the last particle
+	 */
+	public void update(int from, int to)
 	{
-		Vector temp = new Vector(force);
-		temp.Scalar(system.getFriction());
-		force.Subtract(temp);
+		for(int i = from; i < to; i++)
+			update(i);
 	}
-	
-	/** Compute the new particle's position */
-	public void update() 
+
+	/**
+	 * Compute the new particle's position
+	 * @param i Index of the particle
+	 */
+	public void update(int i)
 	{
+		double oldX = store.x[i];
+		double oldY = store.y[i];
+
 		// Apply forces
-		applyMoment();
-		applyStiffness();
-		
+		applyMoment(i);
+		applyStiffness(i);
+
 		// Update position
-		computeRealPosition();
-		applyFriction();
-		
-		// On dépile le trop plein et/ou le plus vieux
-		while(oldPos.size() >= system.getMemory()) {
-			oldPos.remove(0);
-		}
+		computeRealPosition(i);
+		applyFriction(i);
 
-		// On empile le manquement et/ou le nouveau
-		while(oldPos.size() < system.getMemory()) {
-			oldPos.add(new Vector(position));
+		// On retient le plus grand déplacement
+		double moveX = store.x[i] - oldX;
+		double moveY = store.y[i] - oldY;
+		double move = (moveX * moveX) + (moveY * moveY);
+		maxDisplacement = Math.max(maxDisplacement, move);
+
+		// On remplace la plus vieille position par la nouvelle
+		store.recordHistory(i);
+
+		// Une particule au repos assez longtemps s'endort
+		double sleep = system.getSleepDisplacement();
+		if(sleep > 0.)
+		{
+			if(move > sleep * sleep)
+				store.rest[i] = 0;
+			else if(++store.rest[i] >= system.getSleepUpdates())
+				store.sleep(i);
 		}
 	}
-		/** 
+
+	/** Forget the displacements of the previous updates */
+	public void resetDisplacement() {
+		maxDisplacement = 0.;
+	}
+
+	/**
+	 * Get the highest displacement of a particle since the last call to 
+	 * resetDisplacement()
+	 * @return Highest displacement
+	 */
+	public double getMaxDisplacement() {
+		return Math.sqrt(maxDisplacement);
+	}
+
+	/**
 	 * Check if the new virtually computed position is really reachable.
 	 * If it is reachable, do nothing, otherwise, computes the farest postion reachable.
 	 * A position could be unreachable by the fault of system.threshold or window borders.
+	 * @param i Index of the particle
 	 */
-	protected void computeRealPosition()
+	protected void computeRealPosition(int i)
 	{
-		Vector netForce = new Vector(force);
-		double delta = netForce.getNorm();
+		double netX = store.forceX[i];
+		double netY = store.forceY[i];
+		double delta = Math.sqrt((netX * netX) + (netY * netY));
 
 		// Maximum threshold is overpassed
 		if(delta > system.getSeuilMax()) {
-			netForce.Scalar(system.getSeuilMax() / delta);
+			netX *= system.getSeuilMax() / delta;
+			netY *= system.getSeuilMax() / delta;
 		}
-		
+
 		// Minimum threshold is overpassed
 		if(delta > system.getSeuilMin())
 		{
 			// New position
-			position.Add(netForce);
+			double posX = store.x[i] + netX;
+			double posY = store.y[i] + netY;
 
 			// Left edge reached
-			if(position.x < Max.ENGINE_MIN.x) {
-				position.x = system.getEdgePosition(ParticlesSystem.LEFT_EDGE, position.x);
-				force.x *= system.getEdgeVelocity(ParticlesSystem.LEFT_EDGE);
+			if(posX < Max.ENGINE_MIN.x) {
+				posX = system.getEdgePosition(ParticlesSystem.LEFT_EDGE, posX);
+				store.forceX[i] *= system.getEdgeVelocity(ParticlesSystem.LEFT_EDGE);
 			}
 			// Right edge reached
-			else if(position.x > Max.ENGINE_MAX.x) {
-				position.x = system.getEdgePosition(ParticlesSystem.RIGHT_EDGE, position.x);
-				force.x *= system.getEdgeVelocity(ParticlesSystem.RIGHT_EDGE);
+			else if(posX > Max.ENGINE_MAX.x) {
+				posX = system.getEdgePosition(ParticlesSystem.RIGHT_EDGE, posX);
+				store.forceX[i] *= system.getEdgeVelocity(ParticlesSystem.RIGHT_EDGE);
 			}
 
 			// Back edge reached
-			if(position.y < Max.ENGINE_MIN.y) {
-				position.y = system.getEdgePosition(ParticlesSystem.BOTTOM_EDGE, position.y);
-				force.y *= system.getEdgeVelocity(ParticlesSystem.BOTTOM_EDGE);
+			if(posY < Max.ENGINE_MIN.y) {
+				posY = system.getEdgePosition(ParticlesSystem.BOTTOM_EDGE, posY);
+				store.forceY[i] *= system.getEdgeVelocity(ParticlesSystem.BOTTOM_EDGE);
 			}
 			// Front edge reached
-			else if(position.y > Max.ENGINE_MAX.y) {
-				position.y = system.getEdgePosition(ParticlesSystem.TOP_EDGE, position.y);
-				force.y *= system.getEdgeVelocity(ParticlesSystem.TOP_EDGE);
+			else if(posY > Max.ENGINE_MAX.y) {
+				posY = system.getEdgePosition(ParticlesSystem.TOP_EDGE, posY);
+				store.forceY[i] *= system.getEdgeVelocity(ParticlesSystem.TOP_EDGE);
 			}
+
+			store.x[i] = posX;
+			store.y[i] = posY;
 		}
 	}
-	
-	/** Clear old positions' history of this particle */
-	private void clearHistory()
-	{
-		oldPos.clear();
-		
-		for(int k = 0; k < system.getMemory(); k++) {
-			oldPos.add(new Vector(position));
-		}
-	}
-    
 
 	/**
 	 * Apply a force for the next update (erase others)
-	 * @param delta Force value to apply
+	 * @param i Index of the particle
+	 * @param deltaX Force value to apply on X axis
+	 * @param deltaY Force value to apply on Y axis
 	 */
-	public void applyForce(Vector delta) {
-		force = new Vector(delta);
+	public void applyForce(int i, double deltaX, double deltaY) {
+		store.forceX[i] = deltaX;
+		store.forceY[i] = deltaY;
 	}
 
 	/**
 	 * Add a force for the next update (added to others)
-	 * @param delta Force value to add
+	 * @param i Index of the particle
+	 * @param deltaX Force value to add on X axis
+	 * @param deltaY Force value to add on Y axis
 	 */
-	public void addForce(Vector delta) {
-		force.Add(delta);
-	}
-	
-	public List<Vector> getHistory() {
-		return oldPos;
-	}
-	
-	public Vector getPosition() {
-		return position;
+	public void addForce(int i, double deltaX, double deltaY) {
+		store.forceX[i] += deltaX;
+		store.forceY[i] += deltaY;
 	}
 }
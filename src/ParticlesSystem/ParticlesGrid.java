@@ -0,0 +1,162 @@
+package ParticlesSystem;
+
+import Simulation.Max;
+import java.util.Arrays;
+
+/**
+ * A particles' grid is a uniform bucket grid over the engine domain
+ * (Max.ENGINE_MIN to Max.ENGINE_MAX) which indexes particles by position.
+ * It is rebuilt from the store by a counting sort, so particles of a cell are
+ * stored by increasing index. Particles out of the domain are put in the
+ * nearest border cell.
+ *
+ * @author	CreArtCom's Studio
+ * @author	Léo LEFEBVRE
+ * @version	1.0
+ */
+public class ParticlesGrid
+{
+	// Default parameters
+	private static final int	PARTICLES_PER_CELL	= 8;
+	private static final int	MAX_RESOLUTION		= 256;
+
+	/** Number of cells on each axis */
+	protected int resolution;
+
+	/** Number of cells per engine unit on X axis */
+	protected double scaleX;
+
+	/** Number of cells per engine unit on Y axis */
+	protected double scaleY;
+
+	/**
+	 * Particles of cell c are cellParticles[cellStart[c]] to
+	 * cellParticles[cellStart[c + 1] - 1]
+	 */
+	protected int[] cellStart;
+
+	/** Indexes of the particles sorted by cell */
+	protected int[] cellParticles;
+
+	/** Cell of each particle, computed while building */
+	protected int[] particleCell;
+
+	/** Construct an empty grid */
+	public ParticlesGrid()
+	{
+		this.cellStart		= new int[0];
+		this.cellParticles	= new int[0];
+		this.particleCell	= new int[0];
+	}
+
+	/**
+	 * Rebuild the grid from the current particles' positions.
+	 * The resolution is chosen to have about PARTICLES_PER_CELL particles per cell.
+	 * @param particles Particles to index
+	 */
+	public void build(ParticlesStore particles)
+	{
+		int size = particles.size();
+
+		resolution = (int) Math.sqrt(size / PARTICLES_PER_CELL);
+		resolution = Math.max(1, Math.min(resolution, MAX_RESOLUTION));
+		scaleX = resolution / (Max.ENGINE_MAX.x - Max.ENGINE_MIN.x);
+		scaleY = resolution / (Max.ENGINE_MAX.y - Max.ENGINE_MIN.y);
+
+		int nbCells = resolution * resolution;
+		if(cellStart.length < nbCells + 1)
+			cellStart = new int[nbCells + 1];
+		if(cellParticles.length < size)
+		{
+			cellParticles	= new int[particles.x.length];
+			particleCell	= new int[particles.x.length];
+		}
+
+		// On compte les particules de chaque case
+		Arrays.fill(cellStart, 0, nbCells + 1, 0);
+		for(int i = 0; i < size; i++)
+		{
+			int cell = getCell(getCellX(particles.x[i]), getCellY(particles.y[i]));
+			particleCell[i] = cell;
+			cellStart[cell + 1]++;
+		}
+
+		// On cumule pour obtenir le début de chaque case
+		for(int c = 0; c < nbCells; c++)
+			cellStart[c + 1] += cellStart[c];
+
+		// On range les particules (cellStart[c] sert de curseur puis est restauré)
+		for(int i = 0; i < size; i++)
+			cellParticles[cellStart[particleCell[i]]++] = i;
+
+		for(int c = nbCells; c > 0; c--)
+			cellStart[c] = cellStart[c - 1];
+		cellStart[0] = 0;
+	}
+
+	/**
+	 * Get the column of the cell which contains the given abscissa
+	 * @param x Abscissa scaled by Max.ENGINE_...
+	 * @return Column of the cell, clamped in the grid
+	 */
+	public int getCellX(double x) {
+		return clamp((int) Math.floor((x - Max.ENGINE_MIN.x) * scaleX));
+	}
+
+	/**
+	 * Get the row of the cell which contains the given ordinate
+	 * @param y Ordinate scaled by Max.ENGINE_...
+	 * @return Row of the cell, clamped in the grid
+	 */
+	public int getCellY(double y) {
+		return clamp((int) Math.floor((y - Max.ENGINE_MIN.y) * scaleY));
+	}
+
+	private int clamp(int cell)
+	{
+		if(cell < 0)
+			return 0;
+		if(cell >= resolution)
+			return resolution - 1;
+		return cell;
+	}
+
+	/**
+	 * Get the index of a cell
+	 * @param cellX Column of the cell
+	 * @param cellY Row of the cell
+	 * @return Index of the cell
+	 */
+	public int getCell(int cellX, int cellY) {
+		return (cellY * resolution) + cellX;
+	}
+
+	/**
+	 * Get the position of the first particle of a cell in the sorted particles
+	 * @param cell Index of the cell
+	 * @return Position of the first particle
+	 * @see #getParticle(int)
+	 */
+	public int getStart(int cell) {
+		return cellStart[cell];
+	}
+
+	/**
+	 * Get the position after the last particle of a cell in the sorted particles
+	 * @param cell Index of the cell
+	 * @return Position after the last particle
+	 * @see #getParticle(int)
+	 */
+	public int getEnd(int cell) {
+		return cellStart[cell + 1];
+	}
+
+	/**
+	 * Get a particle from the sorted particles
+	 * @param k Position in the sorted particles
+	 * @return Index of the particle in the store
+	 */
+	public int getParticle(int k) {
+		return cellParticles[k];
+	}
+}
@@ -0,0 +1,593 @@
+package ParticlesSystem;
+
+import Utils.SnapshotReader;
+import Utils.SnapshotWriter;
+import java.io.IOException;
+
+/**
+ * A particles' store keeps every particle of a system in contiguous primitive
+ * columns (structure of arrays) instead of one object per particle.
+ * The i'th row of each column describes the i'th particle.
+ * Columns are reallocated when the store grows : never keep a reference on a
+ * column across updates.
+ *
+ * @author	CreArtCom's Studio
+ * @author	Léo LEFEBVRE
+ * @version	1.0
+ */
+public class ParticlesStore
+{
+	// Default parameters
+	private static final int	CAPACITY	= 256;
+
+	/** Current positions on X axis scaled by Max.ENGINE_... */
+	public double[] x;
+
+	/** Current positions on Y axis scaled by Max.ENGINE_... */
+	public double[] y;
+
+	/** Current net forces on X axis */
+	public double[] forceX;
+
+	/** Current net forces on Y axis */
+	public double[] forceY;
+
+	/** 
+	 * Forces of the blobs' brushes on X axis, waiting for the next update of
+	 * each particle : they are added after the fluid force, which replaces 
+	 * the net force (see addBlobForce)
+	 */
+	public double[] blobX;
+
+	/** Forces of the blobs' brushes on Y axis, same as blobX */
+	public double[] blobY;
+
+	/** 
+	 * Fluid velocities on X axis sampled on current positions.
+	 * Only valid during the update which sampled them.
+	 */
+	public double[] fluidX;
+
+	/** Fluid velocities on Y axis, same as fluidX */
+	public double[] fluidY;
+
+	/** Initial positions on X axis, used to apply stiffness */
+	public double[] initX;
+
+	/** Initial positions on Y axis, used to apply stiffness */
+	public double[] initY;
+
+	/**
+	 * "History" on X axis : the memory'th old positions of each particle.
+	 * Particle i owns the circular buffer [i * memory, (i + 1) * memory[.
+	 * Every particle records one position per update, so all buffers share 
+	 * the same head.
+	 * @see #historyIndex(int, int)
+	 */
+	public double[] historyX;
+
+	/** "History" on Y axis, same layout as historyX */
+	public double[] historyY;
+
+	/** Slot of the newest position in each particle's history */
+	protected int head;
+
+	/** 
+	 * Particles marked to be erased at the end of the current update.
+	 * Marks are written by index only, so concurrent updates of distinct 
+	 * particles never share a cell.
+	 */
+	protected boolean[] erased;
+
+	/** 
+	 * Sleeping particles : they are not updated until they are woken up.
+	 * Marks are written by index only, as erased marks.
+	 */
+	protected boolean[] asleep;
+
+	/** Number of consecutive updates in which each particle stayed at rest */
+	public int[] rest;
+
+	/** 
+	 * Indexes of the awake particles (the active set), in [0, activeSize[.
+	 * Only valid after a call to rebuildActive().
+	 */
+	public int[] active;
+
+	/** Number of awake particles */
+	protected int activeSize;
+
+	/** Determine if active has to be rebuilt (particles were added or removed) */
+	protected boolean activeValid;
+
+	/** Number of old positions memorized for each particle */
+	protected int memory;
+
+	/** Current number of particles */
+	protected int size;
+
+	/**
+	 * Construct an empty store
+	 * @param memory Number of old positions memorized for each particle
+	 */
+	public ParticlesStore(int memory)
+	{
+		this.memory		= memory;
+		this.head		= memory - 1;
+		this.size		= 0;
+		this.activeSize	= 0;
+		this.activeValid	= true;
+		allocate(CAPACITY);
+	}
+
+	/**
+	 * Allocate every column with the given capacity and copy current rows
+	 * @param capacity New capacity
+	 */
+	private void allocate(int capacity)
+	{
+		x			= copyOf(x, capacity);
+		y			= copyOf(y, capacity);
+		forceX		= copyOf(forceX, capacity);
+		forceY		= copyOf(forceY, capacity);
+		blobX		= copyOf(blobX, capacity);
+		blobY		= copyOf(blobY, capacity);
+		fluidX		= new double[capacity];
+		fluidY		= new double[capacity];
+		initX		= copyOf(initX, capacity);
+		initY		= copyOf(initY, capacity);
+		historyX	= copyOf(historyX, capacity * memory);
+		historyY	= copyOf(historyY, capacity * memory);
+
+		rest		= copyOf(rest, capacity);
+		erased		= copyOf(erased, capacity);
+		asleep		= copyOf(asleep, capacity);
+		active		= copyOf(active, capacity);
+	}
+
+	private boolean[] copyOf(boolean[] column, int length)
+	{
+		boolean[] result = new boolean[length];
+		if(column != null)
+			System.arraycopy(column, 0, result, 0, Math.min(column.length, length));
+		return result;
+	}
+
+	private int[] copyOf(int[] column, int length)
+	{
+		int[] result = new int[length];
+		if(column != null)
+			System.arraycopy(column, 0, result, 0, Math.min(column.length, length));
+		return result;
+	}
+
+	private double[] copyOf(double[] column, int length)
+	{
+		double[] result = new double[length];
+		if(column != null)
+			System.arraycopy(column, 0, result, 0, Math.min(column.length, length));
+		return result;
+	}
+
+	/**
+	 * Ensure that the store can contain at least <code>capacity</code> particles
+	 * @param capacity Minimum capacity
+	 */
+	protected void ensureCapacity(int capacity)
+	{
+		if(capacity > x.length)
+			allocate(Math.max(capacity, x.length * 2));
+	}
+
+	/**
+	 * Add a particle at the end of the store
+	 * @param posX Position on X axis
+	 * @param posY Position on Y axis
+	 */
+	public void add(double posX, double posY)
+	{
+		ensureCapacity(size + 1);
+
+		x[size]			= posX;
+		y[size]			= posY;
+		initX[size]		= posX;
+		initY[size]		= posY;
+		forceX[size]	= 0.;
+		forceY[size]	= 0.;
+		blobX[size]		= 0.;
+		blobY[size]		= 0.;
+		erased[size]	= false;
+		asleep[size]	= false;
+		rest[size]		= 0;
+		clearHistory(size);
+
+		if(activeValid)
+			active[activeSize++] = size;
+		size++;
+	}
+
+	/**
+	 * Remove the <code>count</code> first particles (the oldest ones)
+	 * @param count Number of particles to remove
+	 */
+	public void removeFirst(int count)
+	{
+		count = Math.min(count, size);
+		if(count <= 0)
+			return;
+
+		int remaining = size - count;
+		System.arraycopy(x, count, x, 0, remaining);
+		System.arraycopy(y, count, y, 0, remaining);
+		System.arraycopy(forceX, count, forceX, 0, remaining);
+		System.arraycopy(forceY, count, forceY, 0, remaining);
+		System.arraycopy(blobX, count, blobX, 0, remaining);
+		System.arraycopy(blobY, count, blobY, 0, remaining);
+		System.arraycopy(initX, count, initX, 0, remaining);
+		System.arraycopy(initY, count, initY, 0, remaining);
+		System.arraycopy(historyX, count * memory, historyX, 0, remaining * memory);
+		System.arraycopy(historyY, count * memory, historyY, 0, remaining * memory);
+		System.arraycopy(erased, count, erased, 0, remaining);
+		System.arraycopy(asleep, count, asleep, 0, remaining);
+		System.arraycopy(rest, count, rest, 0, remaining);
+		size = remaining;
+		activeValid = false;
+	}
+
+	/**
+	 * Keep only the <code>count</code> first particles
+	 * @param count Number of particles to keep
+	 */
+	public void truncate(int count)
+	{
+		if(count < size)
+		{
+			size = Math.max(count, 0);
+			activeValid = false;
+		}
+	}
+
+	/** Remove every particle */
+	public void clear() {
+		size = 0;
+		activeSize = 0;
+		activeValid = true;
+	}
+
+	/**
+	 * Mark a particle to be erased by the next call to compact()
+	 * @param index Index of the particle
+	 * @return <code>true</code> if the particle was not already marked, <code>false</code> otherwise
+	 */
+	public boolean erase(int index)
+	{
+		if(erased[index])
+			return false;
+
+		erased[index] = true;
+		return true;
+	}
+
+	/** Remove every marked particle, keeping the others in order */
+	public void compact()
+	{
+		int j = 0;
+
+		for(int i = 0; i < size; i++)
+		{
+			if(erased[i])
+			{
+				erased[i] = false;
+				continue;
+			}
+
+			if(i != j)
+			{
+				x[j]		= x[i];
+				y[j]		= y[i];
+				forceX[j]	= forceX[i];
+				forceY[j]	= forceY[i];
+				blobX[j]	= blobX[i];
+				blobY[j]	= blobY[i];
+				initX[j]	= initX[i];
+				initY[j]	= initY[i];
+				asleep[j]	= asleep[i];
+				rest[j]		= rest[i];
+				System.arraycopy(historyX, i * memory, historyX, j * memory, memory);
+				System.arraycopy(historyY, i * memory, historyY, j * memory, memory);
+			}
+			j++;
+		}
+
+		size = j;
+		activeValid = false;
+	}
+
+	/** Rebuild the active set if particles were added or removed since the last call */
+	public void rebuildActive()
+	{
+		if(activeValid)
+			return;
+
+		activeSize = 0;
+		for(int i = 0; i < size; i++)
+		{
+			if(!asleep[i])
+				active[activeSize++] = i;
+		}
+
+		activeValid = true;
+	}
+
+	/**
+	 * Put a particle asleep : its history is filled with its current position,
+	 * so that it stays still in the output. It remains in the active set 
+	 * until the next call to removeSleeping().
+	 * @param index Index of the particle
+	 */
+	public void sleep(int index)
+	{
+		asleep[index] = true;
+		clearHistory(index);
+	}
+
+	/**
+	 * Wake a particle up and add it to the active set.
+	 * Must not be called during an update of the active set.
+	 * @param index Index of the particle
+	 * @return <code>true</code> if the particle was asleep, <code>false</code> otherwise
+	 */
+	public boolean wake(int index)
+	{
+		rest[index] = 0;
+
+		if(!asleep[index])
+			return false;
+
+		asleep[index] = false;
+		if(activeValid)
+			active[activeSize++] = index;
+		return true;
+	}
+
+	/**
+	 * Add a blob's force on a particle, applied by its next update
+	 * @param index Index of the particle
+	 * @param deltaX Force on X axis
+	 * @param deltaY Force on Y axis
+	 */
+	public void addBlobForce(int index, double deltaX, double deltaY)
+	{
+		blobX[index] += deltaX;
+		blobY[index] += deltaY;
+	}
+
+	/**
+	 * Add the waiting blobs' forces of a particle to its net force
+	 * @param index Index of the particle
+	 */
+	public void applyBlobForce(int index)
+	{
+		forceX[index] += blobX[index];
+		forceY[index] += blobY[index];
+		blobX[index] = 0.;
+		blobY[index] = 0.;
+	}
+
+	/** Wake every particle up */
+	public void wakeAll()
+	{
+		for(int i = 0; i < size; i++) {
+			asleep[i] = false;
+			rest[i] = 0;
+		}
+
+		activeValid = false;
+	}
+
+	/** Remove the particles put asleep during the last update from the active set */
+	public void removeSleeping()
+	{
+		int j = 0;
+
+		for(int k = 0; k < activeSize; k++)
+		{
+			if(!asleep[active[k]])
+				active[j++] = active[k];
+		}
+
+		activeSize = j;
+	}
+
+	/**
+	 * Getter : activeSize
+	 * @return Number of awake particles
+	 */
+	public int activeSize() {
+		return activeSize;
+	}
+
+	/**
+	 * Move the history's head forward : the oldest slot of every particle
+	 * becomes the newest one. Must be called once per update, before any 
+	 * call to recordHistory().
+	 */
+	public void advanceHistory() {
+		head = (head + 1) % memory;
+	}
+
+	/**
+	 * Record the current position of a particle in the newest slot of its
+	 * history (overwrites the oldest position)
+	 * @param index Index of the particle
+	 */
+	public void recordHistory(int index)
+	{
+		int slot = (index * memory) + head;
+		historyX[slot] = x[index];
+		historyY[slot] = y[index];
+	}
+
+	/**
+	 * Get the cell of the k'th old position of a particle in historyX and historyY
+	 * @param index Index of the particle
+	 * @param k Age of the position : 0 is the oldest, memory - 1 the newest
+	 * @return Index of the cell in historyX and historyY
+	 */
+	public int historyIndex(int index, int k)
+	{
+		int slot = head + 1 + k;
+		if(slot >= memory)
+			slot -= memory;
+		return (index * memory) + slot;
+	}
+
+	/**
+	 * Fill the history of a particle with its current position
+	 * @param index Index of the particle
+	 */
+	protected void clearHistory(int index)
+	{
+		for(int k = index * memory; k < (index + 1) * memory; k++) {
+			historyX[k] = x[index];
+			historyY[k] = y[index];
+		}
+	}
+
+	/**
+	 * Change the number of memorized positions.
+	 * The newest positions are kept, missing ones are filled with the current position.
+	 * Histories are rewritten oldest first, so the head is reset on the last slot.
+	 * @param newMemory New memory
+	 */
+	public void setMemory(int newMemory)
+	{
+		if(newMemory == memory)
+			return;
+
+		double[] newHistoryX = new double[x.length * newMemory];
+		double[] newHistoryY = new double[x.length * newMemory];
+		int kept = Math.min(memory, newMemory);
+
+		for(int i = 0; i < size; i++)
+		{
+			int offset = i * newMemory;
+
+			for(int k = 0; k < kept; k++)
+			{
+				int from = historyIndex(i, memory - kept + k);
+				newHistoryX[offset + k] = historyX[from];
+				newHistoryY[offset + k] = historyY[from];
+			}
+
+			for(int k = kept; k < newMemory; k++) {
+				newHistoryX[offset + k] = x[i];
+				newHistoryY[offset + k] = y[i];
+			}
+		}
+
+		historyX	= newHistoryX;
+		historyY	= newHistoryY;
+		memory		= newMemory;
+		head		= newMemory - 1;
+	}
+
+	/**
+	 * Getter : memory
+	 * @return Number of old positions memorized for each particle
+	 */
+	public int getMemory() {
+		return memory;
+	}
+
+	/**
+	 * Getter : size
+	 * @return Current number of particles
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Determine if the store is empty
+	 * @return <code>true</code> if there is no particle, <code>false</code> otherwise
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	/**
+	 * Save every particle : each column is written in bulk.
+	 * Marks of erased particles are not saved (call compact() first).
+	 * @param out Snapshot being written
+	 * @throws IOException If the snapshot cannot be written
+	 */
+	public void save(SnapshotWriter out) throws IOException
+	{
+		out.writeInt(memory);
+		out.writeInt(size);
+		out.writeInt(head);
+		
+		out.writeDoubles(x, 0, size);
+		out.writeDoubles(y, 0, size);
+		out.writeDoubles(forceX, 0, size);
+		out.writeDoubles(forceY, 0, size);
+		out.writeDoubles(initX, 0, size);
+		out.writeDoubles(initY, 0, size);
+		out.writeDoubles(historyX, 0, size * memory);
+		out.writeDoubles(historyY, 0, size * memory);
+		out.writeBooleans(asleep, 0, size);
+		out.writeInts(rest, 0, size);
+	}
+	
+	/**
+	 * Replace every particle by the saved ones : each column is read in bulk
+	 * @param in Snapshot being read
+	 * @throws IOException If the snapshot is truncated
+	 */
+	public void restore(SnapshotReader in) throws IOException
+	{
+		int newMemory	= in.readInt();
+		int newSize		= in.readInt();
+		int newHead		= in.readInt();
+		
+		if(newMemory <= 0 || newSize < 0 || newHead < 0 || newHead >= newMemory)
+			throw new IOException("Corrupted particles");
+		
+		// On vérifie la longueur des colonnes avant de toucher au store
+		in.require(newSize * ((6L * 8) + (2L * newMemory * 8) + 1 + 4));
+		
+		// Les colonnes sont réutilisées si elles sont assez grandes
+		clear();
+		if(newMemory != memory || newSize > x.length)
+		{
+			memory = newMemory;
+			x = y = forceX = forceY = blobX = blobY = initX = initY = historyX = historyY = null;
+			rest = active = null;
+			erased = asleep = null;
+			allocate(Math.max(CAPACITY, newSize));
+		}
+		
+		in.readDoubles(x, 0, newSize);
+		in.readDoubles(y, 0, newSize);
+		in.readDoubles(forceX, 0, newSize);
+		in.readDoubles(forceY, 0, newSize);
+		in.readDoubles(initX, 0, newSize);
+		in.readDoubles(initY, 0, newSize);
+		in.readDoubles(historyX, 0, newSize * newMemory);
+		in.readDoubles(historyY, 0, newSize * newMemory);
+		in.readBooleans(asleep, 0, newSize);
+		in.readInts(rest, 0, newSize);
+		
+		for(int i = 0; i < newSize; i++)
+		{
+			erased[i]	= false;
+			blobX[i]	= 0.;
+			blobY[i]	= 0.;
+		}
+		
+		head		= newHead;
+		size		= newSize;
+		activeValid	= false;
+	}
+}
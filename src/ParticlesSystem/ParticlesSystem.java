@@ -1,18 +1,26 @@
 package ParticlesSystem;
 
 import BlobsSystem.Blob;
+import BlobsSystem.BlobsMouvements;
 import BlobsSystem.BlobsSystem;
 import BlobsSystem.Brush;
+import FluidSystem.FluidSampler;
+import FluidSystem.VelocityField;
+import MagnetsSystem.Magnet;
 import MagnetsSystem.MagnetsSystem;
 import MagnetsSystem.PointMagnet;
 import Simulation.Max;
 import Simulation.Particles;
+import Utils.ActivityTracker;
+import Utils.PhaseTimer;
+import Utils.SnapshotReader;
+import Utils.SnapshotWriter;
 import Utils.Vector;
 import com.cycling74.jitter.JitterMatrix;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.Semaphore;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A particles' System is a mechanical 2D system which contains free and tied up particles.
@@ -39,6 +47,8 @@ public class ParticlesSystem
 	private static final double		FRICTION		= 0.1;
 	private static final int		MEMORY			= 2;
 	private static final int		MAXPARTICLES	= 1000;
+	private static final int		CHUNK_SIZE		= 4096;
+	private static final int		SLEEP_UPDATES	= 30;
 	
 	/** Global stiffness force applied to every particles */
 	protected double stiffness;
@@ -68,15 +78,15 @@ public class ParticlesSystem
 	/** Not yet in use */
 	protected boolean recycleParticles;
 	
-	/** 
-	 * Temporary list of particles that have to be delete at next update.
-	 * Using this list is important to avoid concurrent modification and 
-	 * re-synchronize erase events to each update tick.
+	/**	
+	 * Columns of all particles in this system.
+	 * Particles erased during an update are only marked in the store and 
+	 * removed at the end of the update tick.
 	 */
-	protected List<Particle> particlesToDelete;
+    protected ParticlesStore particles;
 	
-	/**	Current list of all particles in this system */
-    protected List<Particle> particles;
+	/** Mechanical rules applied on each row of the particles' store */
+	protected Particle particle;
 	
 	/** Magnets' system */
 	protected MagnetsSystem magnetsSystem;
@@ -90,8 +100,111 @@ public class ParticlesSystem
 	/** Define on each window edge which comportement to apply on particles */
 	protected int[] edgeComportements;
 	
-	/** Prevent concurrent modification is particles' lists */
-	protected Semaphore semaphore;
+	/** 
+	 * Pool used to update particles' chunks in parallel.
+	 * <code>null</code> means that particles are updated on the calling thread.
+	 */
+	protected ForkJoinPool pool;
+	
+	/** Number of particles updated by each task of the pool */
+	protected int chunkSize;
+	
+	/** 
+	 * Mechanical rules used by each chunk of a parallel update. 
+	 * Each chunk needs its own random generator to apply moment.
+	 */
+	protected Particle[] chunkParticles;
+	
+	/** Grid of particles used to find particles under blobs' brushes */
+	protected ParticlesGrid grid;
+	
+	/** Determine if the system is destroyed : it is not updated anymore */
+	protected volatile boolean destroyed;
+	
+	/** Determine if an update is running : a destroyed system is torn down once it ends */
+	protected volatile boolean updating;
+	
+	/** Determine if the system is torn down (only once, by destroy() or by the last update) */
+	protected AtomicBoolean tornDown;
+	
+	/** Executed once the system is torn down (see destroy) */
+	protected volatile Runnable onDestroyed;
+	
+	/** Blobs' mouvements of the current update (reused by every update) */
+	protected BlobsMouvements blobsMouvements;
+	
+	/** Bounding box of a brush, reused by every update : {minX, minY, maxX, maxY} */
+	protected double[] brushBox;
+	
+	/** Bounding box of a swept brush, reused by every update : {minX, minY, maxX, maxY} */
+	protected double[] sweptBox;
+	
+	/** Bounding box of a fluid's cell, reused by every update : {minX, minY, maxX, maxY} */
+	protected double[] fluidBox;
+	
+	/** Attraction of a blob on a particle, reused by every update : {forceX, forceY} */
+	protected double[] blobForce;
+	
+	/** Detect when particles are calm enough to skip their updates */
+	protected ActivityTracker activity;
+	
+	/** Highest displacement of a particle in a calm update */
+	protected double idleDisplacement;
+	
+	/** Highest displacement of a particle at rest (0 : particles never sleep) */
+	protected double sleepDisplacement;
+	
+	/** Number of consecutive updates at rest before a particle falls asleep */
+	protected int sleepUpdates;
+	
+	/** Set when every particle has to be woken up before the next update */
+	protected volatile boolean wakeAll;
+	
+	/** Sequence number of the last fluid frame which woke particles up */
+	protected long fluidSequence;
+	
+	/** Recorder of the particles' histories (<code>null</code> : not recording) */
+	protected TrajectoryRecorder recorder;
+	
+	/** 
+	 * Reader of a recorded file played back instead of the simulation 
+	 * (<code>null</code> : the simulation is updated)
+	 */
+	protected TrajectoryReader player;
+	
+	/** Index of the next frame played back */
+	protected int playFrame;
+	
+	/** Positions of the frame played back, reused from one update to another */
+	protected float[] playBuffer;
+	
+	/** Dimensions of the output matrix set by the playback {memory, particles} */
+	protected int[] playDim;
+	
+	/** 
+	 * Percentage of the awake particles updated by each update (lowered to
+	 * hold a frame budget). The updated particles change from one update to
+	 * the next (round-robin), the others keep their position.
+	 */
+	protected int updatePercent;
+	
+	/** Index in the active set of the first particle of the next partial update */
+	protected int updateOffset;
+	
+	/** Percentage of the memory actually kept in the histories (lowered to hold a frame budget) */
+	protected int memoryPercent;
+	
+	/** Timing of the updates, shared with the simulation */
+	protected PhaseTimer timer;
+	
+	// Phases of the updates measured by the timer
+	private final int phaseBlobs;
+	private final int phaseMagnets;
+	private final int phaseWake;
+	private final int phaseIntegration;
+	private final int phaseCompact;
+	private final int phaseMatrix;
+	private final int phaseRecord;
 
 	/**
 	 * Construct a particles' System
@@ -108,141 +221,757 @@ public class ParticlesSystem
 		this.threshold			= SEUIL;
 		this.memory				= MEMORY;
 		this.maxParticles		= MAXPARTICLES;
-		this.particles			= new ArrayList<Particle>();
-		this.particlesToDelete	= new ArrayList<Particle>();
+		this.particles			= new ParticlesStore(memory);
+		this.particle			= new Particle(particles, this);
 		this.edgeComportements	= new int[]{EDGE_STOP, EDGE_STOP, EDGE_STOP, EDGE_STOP};
-		this.semaphore			= new Semaphore(1, false);
+		this.pool				= null;
+		this.chunkSize			= CHUNK_SIZE;
+		this.chunkParticles		= new Particle[0];
+		this.grid				= new ParticlesGrid();
+		this.destroyed			= false;
+		this.updating			= false;
+		this.tornDown			= new AtomicBoolean(false);
+		this.onDestroyed		= null;
+		this.blobsMouvements	= new BlobsMouvements();
+		this.brushBox			= new double[4];
+		this.sweptBox			= new double[4];
+		this.fluidBox			= new double[4];
+		this.blobForce			= new double[2];
+		this.activity			= new ActivityTracker();
+		this.idleDisplacement	= 0.;
+		this.sleepDisplacement	= 0.;
+		this.sleepUpdates		= SLEEP_UPDATES;
+		this.wakeAll			= false;
+		this.fluidSequence		= 0;
+		this.recorder			= null;
+		this.player				= null;
+		this.playFrame			= 0;
+		this.playBuffer			= new float[0];
+		this.playDim			= new int[]{0, 0};
+		this.updatePercent		= 100;
+		this.updateOffset		= 0;
+		this.memoryPercent		= 100;
+		this.timer				= simulation.getTimer();
+		this.phaseBlobs			= timer.addPhase("blobs");
+		this.phaseMagnets		= timer.addPhase("magnets");
+		this.phaseWake			= timer.addPhase("wake");
+		this.phaseIntegration	= timer.addPhase("integration");
+		this.phaseCompact		= timer.addPhase("compact");
+		this.phaseMatrix		= timer.addPhase("matrix");
+		this.phaseRecord		= timer.addPhase("record");
 	}
 
 	/** 
 	 * Update the whole particle's System (each particle position).
-	 * If the semaphore is not free, do nothing.
-	 * Else, delete every particles in particlesToDelete list and then update each particle position.
+	 * Update each particle position, remove particles erased during this
+	 * update and then set up the output matrix.
+	 * Mutations of the system are posted by messages through 
+	 * Simulation.execute() and executed before the update, so the update 
+	 * never waits for them.
+	 * Only awake particles are updated (see setSleep) : blobs' brushes, 
+	 * magnets' changes and fast fluid cells wake sleeping particles up first.
+	 * If a pool is set, awake particles are split in chunks updated in 
+	 * parallel and erased particles are removed once all chunks are done.
+	 * When particles are idle (see setIdle), the update is skipped and the
+	 * output matrix keeps its content.
+	 * While recording, every update (even idle) records the histories; while
+	 * playing a recorded file back, the simulation is not updated and the 
+	 * next recorded frame is output instead.
+	 * Once the system is destroyed, updates do nothing : the update running
+	 * at that time tears the system down when it ends.
 	 */
     public void update()
+	{
+		// Aucun verrou : destroy() et la mise à jour se voient toujours l'un l'autre
+		updating = true;
+		try
+		{
+			if(!destroyed)
+				updateSystem();
+		}
+		finally
+		{
+			updating = false;
+			if(destroyed)
+				tearDown();
+		}
+	}
+	
+	/** Update the system (see update) */
+	private void updateSystem()
 	{	
-		if(semaphore.tryAcquire())
+		// On récupère la liste des blobs dont les coordonnées ont changées
+		blobsSystem.getBlobsMouvements(blobsMouvements);
+		boolean activeBlobs = hasActiveBlobs();
+		int nbErased = 0;
+		timer.lap(phaseBlobs);
+
+		if(player != null)
 		{
-			// On récupère la liste des blobs dont les coordonnées ont changées
-			Map<Blob, List<Vector[]>> blobsMouvements = blobsSystem.getBlobsMouvements();
+			playNextFrame();
+			timer.lap(phaseMatrix);
+			return;
+		}
+
+		// Un blob qui agit réveille les particules
+		if(activeBlobs)
+			activity.wake();
+		if(activity.isIdle())
+		{
+			record();
+			timer.lap(phaseRecord);
+			return;
+		}
+
+		// On prépare les aimants (le champ est recalculé s'ils ont changé) : 
+		// un changement d'aimant ou de paramètre réveille toutes les particules
+		if(magnetsSystem.prepare() || wakeAll)
+		{
+			wakeAll = false;
+			particles.wakeAll();
+		}
+		particles.rebuildActive();
+		timer.lap(phaseMagnets);
+
+		// On applique les brosses, les particules touchées se réveillent
+		boolean gridBuilt = false;
+		if(activeBlobs)
+		{
+			grid.build(particles);
+			gridBuilt = true;
+			nbErased = applyBlobs();
+		}
+		timer.lap(phaseBlobs);
+
+		// Le fluide réveille les particules sur lesquelles il agit
+		if(sleepDisplacement > 0. && simulation.applyFluidForce() && particles.activeSize() < particles.size())
+			wakeInFluid(gridBuilt);
+		timer.lap(phaseWake);
 
-			// Si la gomme est active on met à jour les dim de la matrice et la liste de particules
-			if(!particlesToDelete.isEmpty())
+		// Mise à jour des particules éveillées
+		int nbActive = particles.activeSize();
+		int nbUpdated = (updatePercent < 100) ? Math.max(1, (nbActive * updatePercent) / 100) : nbActive;
+		particles.advanceHistory();
+		if(nbUpdated >= nbActive)
+			reportActivity(updateRange(0, nbActive));
+		else
+		{
+			// Mise à jour tournante : les autres particules gardent leur position
+			int from = updateOffset % nbActive;
+			int to = from + nbUpdated;
+			if(to <= nbActive)
+			{
+				holdRange(0, from);
+				reportActivity(updateRange(from, to));
+				holdRange(to, nbActive);
+			}
+			else
 			{
-				for(Particle particle:particlesToDelete)
-					particles.remove(particle);
-				particlesToDelete.clear();
+				to -= nbActive;
+				holdRange(to, from);
+				reportActivity(Math.max(updateRange(from, nbActive), updateRange(0, to)));
+			}
+			updateOffset = to;
+		}
+		timer.count(nbUpdated);
+		timer.lap(phaseIntegration);
+
+		// Les particules endormies quittent l'ensemble actif
+		if(sleepDisplacement > 0.)
+			particles.removeSleeping();
+
+		// Si la gomme est active on met à jour les dim de la matrice et la liste de particules
+		if(nbErased > 0)
+		{
+			particles.compact();
+			simulation.setOutMatrixDim(particles.getMemory(), particles.size());
+		}
+		timer.lap(phaseCompact);
+
+		simulation.setOutMatrix(particles);
+		timer.lap(phaseMatrix);
+		record();
+		timer.lap(phaseRecord);
+    }
 
-				simulation.setOutMatrixDim(memory, particles.size());
+	/** Record the current histories if a recorder is set */
+	private void record()
+	{
+		if(recorder != null)
+			recorder.record(particles);
+	}
+	
+	/** Output the next frame of the played file and move to the following one (looping) */
+	private void playNextFrame()
+	{
+		if(player.getFrameCount() == 0)
+			return;
+		
+		try
+		{
+			int frame		= playFrame % player.getFrameCount();
+			int nbParticles	= player.getParticles(frame);
+			int frameMemory	= player.getMemory(frame);
+			int length		= nbParticles * frameMemory * 2;
+			
+			if(playBuffer.length < length)
+				playBuffer = new float[length];
+			player.read(frame, playBuffer);
+			
+			if(playDim[0] != frameMemory || playDim[1] != nbParticles)
+			{
+				playDim[0] = frameMemory;
+				playDim[1] = nbParticles;
+				simulation.setOutMatrixDim(frameMemory, nbParticles);
 			}
+			
+			simulation.setOutMatrix(playBuffer, nbParticles, frameMemory);
+			playFrame = frame + 1;
+		}
+		catch(IOException e)
+		{
+			print("Unable to play the recorded frame : " + e.getMessage());
+			closePlayer();
+		}
+	}
+	
+	/**
+	 * Start recording the particles' histories of every update in a file.
+	 * The current recording is stopped first.
+	 * @param path Path of the file (overwritten)
+	 * @see TrajectoryRecorder
+	 */
+	public void startRecording(final String path)
+	{
+		simulation.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				closeRecorder();
+				
+				try
+				{
+					recorder = new TrajectoryRecorder(path);
+					print("Recording particles in " + path);
+				}
+				catch(IOException e) {
+					print("Unable to record in \"" + path + "\" : " + e.getMessage());
+				}
+			}
+		});
+	}
+	
+	/** Stop recording : pending frames are written and the file is closed */
+	public void stopRecording()
+	{
+		simulation.execute(new Runnable() {
+			@Override
+			public void run() {
+				closeRecorder();
+			}
+		});
+	}
+	
+	/** Close the current recorder (updating thread only) */
+	private void closeRecorder()
+	{
+		if(recorder == null)
+			return;
+		
+		try 
+		{
+			recorder.close();
+			print(recorder.getFrameCount() + " frames recorded in " + recorder.getPath() 
+					+ " (" + recorder.getDropped() + " dropped)");
+		}
+		catch(IOException e) {
+			print("Unable to record in \"" + recorder.getPath() + "\" : " + e.getMessage());
+		}
+		recorder = null;
+	}
+	
+	/**
+	 * Play a recorded file back : recorded frames are output instead of the 
+	 * simulation's one, from the first frame and looping. The simulation is 
+	 * not updated until the playback is stopped.
+	 * @param path Path of the file
+	 * @see TrajectoryReader
+	 */
+	public void startPlaying(final String path)
+	{
+		simulation.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				closePlayer();
+				
+				try
+				{
+					player		= new TrajectoryReader(path);
+					playFrame	= 0;
+					print(player.getFrameCount() + " frames to play in " + path);
+				}
+				catch(IOException e) {
+					print("Unable to play \"" + path + "\" : " + e.getMessage());
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Set the next frame played back (random access)
+	 * @param frame Index of the frame (from 0, modulo the number of frames)
+	 */
+	public void setPlayFrame(final int frame)
+	{
+		simulation.execute(new Runnable() {
+			@Override
+			public void run() {
+				playFrame = Math.max(0, frame);
+			}
+		});
+	}
+	
+	/** Stop the playback : the simulation is output again */
+	public void stopPlaying()
+	{
+		simulation.execute(new Runnable() {
+			@Override
+			public void run() {
+				closePlayer();
+			}
+		});
+	}
+	
+	/** Close the current player and restore the output matrix (updating thread only) */
+	private void closePlayer()
+	{
+		if(player == null)
+			return;
+		
+		try {
+			player.close();
+		} catch(IOException e) {}
+		
+		player		= null;
+		playDim[0]	= 0;
+		playDim[1]	= 0;
+		simulation.setOutMatrixDim(particles.getMemory(), particles.size());
+	}
+	
+	/**
+	 * Determine if a recorded file is played back
+	 * @return <code>true</code> if frames are played back, <code>false</code> otherwise
+	 */
+	public boolean isPlaying() {
+		return player != null;
+	}
+
+	/**
+	 * Report the activity of the last update to the tracker (if enabled)
+	 * @param maxDisplacement Highest displacement of a particle
+	 */
+	private void reportActivity(double maxDisplacement)
+	{
+		if(idleDisplacement > 0.)
+			activity.report(maxDisplacement <= idleDisplacement);
+	}
+	
+	/**
+	 * Wake particles up : they will be updated until they are calm again.
+	 * May be called by any thread (blobs, magnets, fluid, parameter changes).
+	 */
+	public void wake() {
+		activity.wake();
+	}
+	
+	/**
+	 * Set the threshold under which particles are calm. After some 
+	 * consecutive calm updates, particles become idle and their updates are 
+	 * skipped until they are woken up.
+	 * @param displacement Highest displacement of a particle in one update (0 : never idle)
+	 */
+	public void setIdle(double displacement)
+	{
+		this.idleDisplacement = displacement;
+		activity.setEnabled(displacement > 0.);
+	}
+	
+	/**
+	 * Set the number of consecutive calm updates before being idle
+	 * @param updates New number of updates
+	 * @see ActivityTracker
+	 */
+	public void setIdleUpdates(int updates) {
+		activity.setIdleUpdates(updates);
+	}
+
+	/**
+	 * Let particles sleep : a particle which moved less than the displacement
+	 * during some consecutive updates falls asleep and is not updated anymore,
+	 * until a blob's brush, a fast fluid cell, a magnet's change or a 
+	 * parameter's change wakes it up.
+	 * Every particle is woken up.
+	 * @param displacement Highest displacement of a particle at rest (0 : particles never sleep)
+	 * @param updates Number of consecutive updates at rest before falling asleep
+	 */
+	public void setSleep(double displacement, int updates)
+	{
+		this.sleepDisplacement	= displacement;
+		this.sleepUpdates		= Math.max(1, updates);
+		this.wakeAll			= true;
+	}
+	
+	/**
+	 * Getter : sleepDisplacement
+	 * @return Highest displacement of a particle at rest (0 : particles never sleep)
+	 */
+	public double getSleepDisplacement() {
+		return sleepDisplacement;
+	}
+	
+	/**
+	 * Getter : sleepUpdates
+	 * @return Number of consecutive updates at rest before falling asleep
+	 */
+	public int getSleepUpdates() {
+		return sleepUpdates;
+	}
 
-			// Mise à jour du système de particules
-			for(int i = 0; i < particles.size(); i++)
-				updateParticlePosition(i, particles.get(i), blobsMouvements);
+	/**
+	 * Determine if at least one blob has moved and has to act on particles
+	 * (see blobsMouvements)
+	 * @return <code>true</code> if a brush has to be applied, <code>false</code> otherwise
+	 */
+	private boolean hasActiveBlobs()
+	{
+		for(int b = 0; b < blobsMouvements.size(); b++)
+		{
+			Blob blob = blobsMouvements.getBlob(b);
 			
-			semaphore.release();
-		}	
-    }
+			if((blob.applyForce() || blob.applyEraser() || blob.applyAttractivity()) && blobsMouvements.getEnd(b) > blobsMouvements.getStart(b))
+				return true;
+		}
+		
+		return false;
+	}
 
-	/** Update a particle position (select which forces are applied) */
-	private void updateParticlePosition(int index, Particle particle, Map<Blob, List<Vector[]>> blobsMouvements)
+	/**
+	 * Update the awake particles active[from, to[ (select which forces are applied)
+	 * @param rules Mechanical rules used to update the particles
+	 * @param from First index in the active set
+	 * @param to Index after the last index in the active set
+	 */
+	private void updateParticles(Particle rules, int from, int to)
 	{
+		int[] active = particles.active;
+		
 		// On ajoute la force du fluide aux particules
 		if(simulation.applyFluidForce())
-			addFluidForce(particle, simulation.applyFluid(particle.getPosition()));
-
-
-		// On récupère la liste des blobs intéressants
-		for(Map.Entry<Blob, List<Vector[]>> entry : blobsMouvements.entrySet())
 		{
-			Blob blob = (Blob)entry.getKey();
+			simulation.getFluidSampler().sample(particles.x, particles.y, active, from, to, particles.fluidX, particles.fluidY);
 			
-			if(blob.applyForce() || blob.applyEraser() || blob.applyAttractivity())
+			for(int k = from; k < to; k++)
 			{
-				for(Vector[] mouvement : entry.getValue())
-				{
-					// On ajoute la force des blobs aux particles
-					if(blob.applyForce())
-						addForce(particle, blob.getBrush(), mouvement);
-
-					// On détruit les particles dans la brosse
-					if(blob.applyEraser())
-						delete(particle, blob.getBrush(), mouvement);
-					
-					// On attire les particles dans la brosse
-					if(blob.applyAttractivity())
-						addAttractivity(particle, blob.getBrush(), mouvement, blob.getAttractiveForce());
-				}
+				int i = active[k];
+				addFluidForce(i, particles.fluidX[i], particles.fluidY[i]);
 			}
 		}
 
-		// On ajoute la force des attracteurs
-		magnetsSystem.apply(particle);
+		for(int k = from; k < to; k++)
+		{
+			int i = active[k];
+			
+			// On ajoute la force des blobs, après celle du fluide qui la remplace
+			particles.applyBlobForce(i);
+			
+			// On ajoute la force des attracteurs
+			magnetsSystem.apply(particles, i);
 
-		particle.update();
-		setParticlePosition(index, particle);
+			rules.update(i);
+		}
 	}
 	
 	/**
-	 * Set up in the outMatrix the particle position scaled to Max.GL_...
-	 * @param index Line's index in outFreeMatrix
-	 * @param particle Particle to set up position
+	 * Update a range of the active set, in parallel chunks if a pool is set
+	 * @param from Index of the first particle in the active set
+	 * @param to Index after the last particle in the active set
+	 * @return Highest displacement of an updated particle
 	 */
-	protected void setParticlePosition(int index, Particle particle)
+	private double updateRange(int from, int to)
 	{
-		for(int i = 0; i < memory; i++) {
-			simulation.setOutMatrix(i, index, particle.getHistory().get(i));
+		if(pool == null || to - from <= chunkSize)
+		{
+			particle.resetDisplacement();
+			updateParticles(particle, from, to);
+			return particle.getMaxDisplacement();
 		}
+		
+		int nbChunks = (to - from + chunkSize - 1) / chunkSize;
+		ensureChunkParticles(nbChunks);
+		for(int c = 0; c < nbChunks; c++)
+			chunkParticles[c].resetDisplacement();
+		
+		pool.invoke(new UpdateTask(0, nbChunks, from, to));
+		
+		double maxDisplacement = 0.;
+		for(int c = 0; c < nbChunks; c++)
+			maxDisplacement = Math.max(maxDisplacement, chunkParticles[c].getMaxDisplacement());
+		return maxDisplacement;
 	}
 	
 	/**
-	 * Add some force to the particle if its position intersect the brush
-	 * @param particle Particle on which apply force
-	 * @param brush Brush used by blob
-	 * @param mouvement Describes the blob's mouvement : {position, delta} 
+	 * Keep the current position of a range of the active set, which is not 
+	 * updated, as the newest position of their histories
+	 * @param from Index of the first particle in the active set
+	 * @param to Index after the last particle in the active set
 	 */
-	protected void addForce(Particle particle, Brush brush, Vector[] mouvement)
+	private void holdRange(int from, int to)
 	{
-		if(brush.intersect(particle.getPosition(), mouvement[0]))
-			particle.addForce(mouvement[1]);
+		for(int k = from; k < to; k++)
+			particles.recordHistory(particles.active[k]);
 	}
 	
 	/**
-	 * Delete the particle is its position intersect the brush.
-	 * The particle is not directly cleared but added to particlesToDelete list.
-	 * @param particle Particle to delete
-	 * @param brush Brush used by blob
-	 * @param mouvement Describes the blob's mouvement : {position, delta} 
+	 * Apply every active blob's mouvements on the particles (see blobsMouvements)
+	 * @return Number of particles erased by blobs
 	 */
-	protected void delete(Particle particle, Brush brush, Vector[] mouvement)
+	private int applyBlobs()
 	{
-		if(brush.intersect(particle.getPosition(), mouvement[0]))
-			particlesToDelete.add(particle);
+		int nbErased = 0;
+		
+		for(int b = 0; b < blobsMouvements.size(); b++)
+		{
+			Blob blob = blobsMouvements.getBlob(b);
+			
+			if((blob.applyForce() || blob.applyEraser() || blob.applyAttractivity()) && blobsMouvements.getEnd(b) > blobsMouvements.getStart(b))
+				nbErased += applyBlob(b);
+		}
+		
+		return nbErased;
 	}
+	
+	/**
+	 * Wake up the particles around the cells of the fluid which are faster 
+	 * than sleepDisplacement, once per fluid frame
+	 * @param gridBuilt <code>true</code> if the grid is up to date
+	 */
+	private void wakeInFluid(boolean gridBuilt)
+	{
+		FluidSampler sampler = simulation.getFluidSampler();
+		VelocityField.Frame frame = sampler.getFrame();
+		
+		if(frame == null || frame.sequence == fluidSequence)
+			return;
+		
+		fluidSequence = frame.sequence;
+		
+		for(int cellY = 0; cellY < frame.height; cellY++)
+		{
+			for(int cellX = 0; cellX < frame.width; cellX++)
+			{
+				if(!sampler.isFaster(cellX, cellY, sleepDisplacement))
+					continue;
+				
+				if(!gridBuilt)
+				{
+					grid.build(particles);
+					gridBuilt = true;
+				}
+				
+				sampler.getCellBox(cellX, cellY, fluidBox);
+				
+				for(int gridY = grid.getCellY(fluidBox[1]); gridY <= grid.getCellY(fluidBox[3]); gridY++)
+				{
+					for(int gridX = grid.getCellX(fluidBox[0]); gridX <= grid.getCellX(fluidBox[2]); gridX++)
+					{
+						int cell = grid.getCell(gridX, gridY);
+						
+						for(int k = grid.getStart(cell); k < grid.getEnd(cell); k++)
+							particles.wake(grid.getParticle(k));
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Apply a blob's mouvements on the particles swept by its brush.
+	 * The brush is swept along the path of the blob's positions : the k'th 
+	 * segment goes from the (k-1)'th position to the k'th one, and the first 
+	 * one goes from the blob's origin (its position at the previous frame). 
+	 * Each particle is tested once against the swept brush and gets the 
+	 * mouvement of the closest segment.
+	 * Only particles in the grid's cells overlapping the swept brush's bounding
+	 * box are tested. Touched particles are woken up.
+	 * @param b Index of the blob in blobsMouvements
+	 * @return Number of particles erased by the blob
+	 */
+	private int applyBlob(int b)
+	{
+		Blob blob = blobsMouvements.getBlob(b);
+		Brush brush = blob.getBrush();
+		int first = blobsMouvements.getStart(b);
+		int end = blobsMouvements.getEnd(b);
+		int nbErased = 0;
+		
+		double originX = blobsMouvements.getOriginX(b);
+		double originY = blobsMouvements.getOriginY(b);
+		
+		// Boîte englobante du chemin complet, depuis l'origine
+		brush.getBoundingBox(originX, originY, sweptBox);
+		if(sweptBox[0] > sweptBox[2] || sweptBox[1] > sweptBox[3])
+			return 0;
+		
+		for(int m = first; m < end; m++)
+		{
+			brush.getBoundingBox(blobsMouvements.getX(m), blobsMouvements.getY(m), brushBox);
+			if(brushBox[0] > brushBox[2] || brushBox[1] > brushBox[3])
+				return 0;
+			
+			sweptBox[0] = Math.min(sweptBox[0], brushBox[0]);
+			sweptBox[1] = Math.min(sweptBox[1], brushBox[1]);
+			sweptBox[2] = Math.max(sweptBox[2], brushBox[2]);
+			sweptBox[3] = Math.max(sweptBox[3], brushBox[3]);
+		}
+		
+		int minCellX = grid.getCellX(sweptBox[0]);
+		int maxCellX = grid.getCellX(sweptBox[2]);
+		int minCellY = grid.getCellY(sweptBox[1]);
+		int maxCellY = grid.getCellY(sweptBox[3]);
+		
+		for(int cellY = minCellY; cellY <= maxCellY; cellY++)
+		{
+			for(int cellX = minCellX; cellX <= maxCellX; cellX++)
+			{
+				int cell = grid.getCell(cellX, cellY);
+				
+				for(int k = grid.getStart(cell); k < grid.getEnd(cell); k++)
+				{
+					int i = grid.getParticle(k);
+					double x = particles.x[i];
+					double y = particles.y[i];
+					
+					// On cherche le segment le plus proche parmi ceux qui touchent la particule
+					int mouvement = -1;
+					double closest = Double.POSITIVE_INFINITY;
+					for(int m = first; m < end; m++)
+					{
+						double startX = (m > first) ? blobsMouvements.getX(m - 1) : originX;
+						double startY = (m > first) ? blobsMouvements.getY(m - 1) : originY;
+						double endX = blobsMouvements.getX(m);
+						double endY = blobsMouvements.getY(m);
+						
+						if(brush.intersectSwept(x, y, startX, startY, endX, endY))
+						{
+							double distance = Vector.DistanceToSegment(x, y, startX, startY, endX, endY);
+							if(distance < closest)
+							{
+								closest = distance;
+								mouvement = m;
+							}
+						}
+					}
+					
+					if(mouvement < 0)
+						continue;
+					
+					particles.wake(i);
+					
+					// On ajoute la force des blobs aux particles (appliquée après celle du fluide)
+					if(blob.applyForce())
+						particles.addBlobForce(i, blobsMouvements.getDeltaX(mouvement), blobsMouvements.getDeltaY(mouvement));
 
+					// On détruit les particles dans la brosse
+					if(blob.applyEraser() && particles.erase(i))
+						nbErased++;
+
+					// On attire les particles dans la brosse
+					if(blob.applyAttractivity())
+					{
+						blobForce[0] = blobForce[1] = 0.;
+						PointMagnet.addAttraction(x, y, blobsMouvements.getX(mouvement), blobsMouvements.getY(mouvement), blob.getAttractiveForce() / Magnet.WEIGHT, blobForce);
+						particles.addBlobForce(i, blobForce[0], blobForce[1]);
+					}
+				}
+			}
+		}
+		
+		return nbErased;
+	}
+	
 	/**
-	 * Add attractive force to the particle.
-	 * A Magnet point is created on the stored blob position.
-	 * @param particle Particle to delete
-	 * @param brush Brush used by blob
-	 * @param mouvement Describes the blob's mouvement : {position, delta} 
-	 * @param force Attractive force to apply
+	 * Ensure that each chunk of a parallel update has its own mechanical rules
+	 * @param nbChunks Number of chunks
 	 */
-	private void addAttractivity(Particle particle, Brush brush, Vector[] mouvement, double force)
+	private void ensureChunkParticles(int nbChunks)
 	{
-		if(brush.intersect(particle.getPosition(), mouvement[0]))
-			new PointMagnet(mouvement[0], force).applyMagnetForce(particle);
+		if(chunkParticles.length < nbChunks)
+		{
+			Particle[] newChunkParticles = new Particle[nbChunks];
+			System.arraycopy(chunkParticles, 0, newChunkParticles, 0, chunkParticles.length);
+			
+			for(int i = chunkParticles.length; i < nbChunks; i++)
+				newChunkParticles[i] = new Particle(particles, this);
+			
+			chunkParticles = newChunkParticles;
+		}
 	}
 	
+	/**
+	 * Fork/join task which updates a range of chunks of awake particles.
+	 * The range is split until a single chunk remains.
+	 */
+	private class UpdateTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		/** Index of the first chunk */
+		private final int fromChunk;
+		
+		/** Index after the last chunk */
+		private final int toChunk;
+		
+		/** Index of the first updated particle in the active set */
+		private final int from;
+		
+		/** Index after the last updated particle in the active set */
+		private final int to;
+		
+		UpdateTask(int fromChunk, int toChunk, int from, int to)
+		{
+			this.fromChunk	= fromChunk;
+			this.toChunk	= toChunk;
+			this.from		= from;
+			this.to			= to;
+		}
+		
+		@Override
+		protected void compute()
+		{
+			if(toChunk - fromChunk == 1)
+			{
+				int chunkFrom = from + (fromChunk * chunkSize);
+				int chunkTo = Math.min(chunkFrom + chunkSize, to);
+				updateParticles(chunkParticles[fromChunk], chunkFrom, chunkTo);
+				return;
+			}
+			
+			int middle = (fromChunk + toChunk) >>> 1;
+			invokeAll(new UpdateTask(fromChunk, middle, from, to), new UpdateTask(middle, toChunk, from, to));
+		}
+	}
+
 	/**
 	 * Apply fluid force to the particle
-	 * @param particle Particle on which apply force
-	 * @param delta Fluid force to apply
+	 * @param index Index of the particle on which apply force
+	 * @param deltaX Fluid force to apply on X axis
+	 * @param deltaY Fluid force to apply on Y axis
 	 */
-	protected void addFluidForce(Particle particle, Vector delta)
+	protected void addFluidForce(int index, double deltaX, double deltaY)
 	{
-		if(Math.abs(delta.x) > threshold.x || Math.abs(delta.y) > threshold.y)
-			particle.applyForce(delta);
+		if(Math.abs(deltaX) > threshold.x || Math.abs(deltaY) > threshold.y)
+			particle.applyForce(index, deltaX, deltaY);
 	}
 	
 	/**
@@ -250,26 +979,28 @@ public class ParticlesSystem
 	 * @param position Position to add particles scaled by Max.ENGINE_...
 	 * @param nbToAdd Number of particles to add
 	 */
-	public void addParticles(Vector position, int nbToAdd)
+	public void addParticles(final Vector position, final int nbToAdd)
 	{
-		// Si la matrice est pas pleine on ajoute une ligne
-		int diffToMax = maxParticles - particles.size();
-		if(diffToMax > 0)
-		{
-			int realNbToAdd = diffToMax > nbToAdd ? nbToAdd : diffToMax;
-			simulation.setOutMatrixDim(memory, particles.size() + realNbToAdd);
-		}
-		
-		semaphore.acquireUninterruptibly();
+		simulation.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				// Si la matrice est pas pleine on ajoute une ligne
+				int diffToMax = maxParticles - particles.size();
+				if(diffToMax > 0)
+				{
+					int realNbToAdd = diffToMax > nbToAdd ? nbToAdd : diffToMax;
+					simulation.setOutMatrixDim(particles.getMemory(), particles.size() + realNbToAdd);
+				}
 
-		for(int i = 0; i < nbToAdd; i++)
-		{
-			if(particles.size() >= maxParticles)
-				particles.remove(0);
-			particles.add(new Particle(position, this));
-		}
+				// On retire les plus vieilles particules pour faire de la place
+				int realNbToAdd = Math.min(nbToAdd, maxParticles);
+				particles.removeFirst(particles.size() + realNbToAdd - maxParticles);
 
-		semaphore.release();
+				for(int i = 0; i < realNbToAdd; i++)
+					particles.add(position.x, position.y);
+			}
+		});
 	}
 	
 	public void print(String msg) {
@@ -290,19 +1021,50 @@ public class ParticlesSystem
 	 */
 	public void reset()
 	{
-		semaphore.acquireUninterruptibly();
-		particles.clear();
-		semaphore.release();
-		simulation.setOutMatrixDim(0, 0);
+		simulation.execute(new Runnable() {
+			@Override
+			public void run() {
+				particles.clear();
+				simulation.setOutMatrixDim(0, 0);
+			}
+		});
 	}
 
-	/** Properly destroy the system */
-	public void destroy()
+	/** 
+	 * Properly destroy the system, without waiting for the running update : 
+	 * the system is torn down right away if no update is running, otherwise 
+	 * by the update thread once its update ends. Following updates do nothing.
+	 * @param then Executed once the system is torn down, by the thread which 
+	 * tears it down (ie to free the output matrices), may be <code>null</code>
+	 */
+	public void destroy(Runnable then)
+	{
+		onDestroyed = then;
+		destroyed = true;
+		
+		if(!updating)
+			tearDown();
+	}
+	
+	/** Close the files, clear the particles and stop the pool (only once) */
+	private void tearDown()
 	{
-		semaphore.acquireUninterruptibly();
+		if(!tornDown.compareAndSet(false, true))
+			return;
+		
+		closeRecorder();
+		closePlayer();
 		particles.clear();
-		semaphore.release();
+		
+		if(pool != null)
+		{
+			pool.shutdown();
+			pool = null;
+		}
+		
 		simulation.setOutMatrixDim(0, 0);
+		if(onDestroyed != null)
+			onDestroyed.run();
 	}
 
 	/**
@@ -313,6 +1075,7 @@ public class ParticlesSystem
 	 */
 	public ParticlesSystem setThreshold(double minThreshold, double maxThreshold) {
 		this.threshold = new Vector(minThreshold, maxThreshold);
+		this.wakeAll = true;
 		return this;
 	}
 	
@@ -323,6 +1086,7 @@ public class ParticlesSystem
 	 */
 	public ParticlesSystem setStiffness(double stiffness) {
 		this.stiffness = stiffness;
+		this.wakeAll = true;
 		return this;
 	}
 	
@@ -340,6 +1104,7 @@ public class ParticlesSystem
 		else
 			this.friction = friction;
 		
+		this.wakeAll = true;
 		return this;
 	}
 	
@@ -350,6 +1115,7 @@ public class ParticlesSystem
 	 */
 	public ParticlesSystem setMomentum(double momentum) {
 		this.momentum = momentum;
+		this.wakeAll = true;
 		return this;
 	}
 
@@ -357,42 +1123,127 @@ public class ParticlesSystem
 	 * Set the maximum of particles
 	 * @param maxParticles New maximum
 	 */
-	public void setMaxParticles(int maxParticles)
+	public void setMaxParticles(final int maxParticles)
 	{
 		if(maxParticles >= 0)
 		{
-			// On réduit le nombre max de particules
-			if(this.maxParticles > maxParticles)
-			{
-				// On conserve les maxParticles premières particules
-				if(particles.size() > maxParticles)
+			simulation.execute(new Runnable() {
+				@Override
+				public void run()
 				{
-					semaphore.acquireUninterruptibly();
-					particles = particles.subList(0, maxParticles);
-					semaphore.release();
+					// On réduit le nombre max de particules
+					if(ParticlesSystem.this.maxParticles > maxParticles)
+					{
+						// On conserve les maxParticles premières particules
+						particles.truncate(maxParticles);
+
+						// On met à jour les dimensions de la matrice
+						simulation.setOutMatrixDim(particles.getMemory(), particles.size());
+					}
+
+					ParticlesSystem.this.maxParticles = maxParticles;
 				}
-				
-				// On met à jour les dimensions de la matrice
-				simulation.setOutMatrixDim(memory, particles.size());
-			}
+			});
+		}
+	}
+	
+	/**
+	 * Set the number of threads used to update particles.
+	 * With less than two threads, particles are updated on the calling thread.
+	 * @param threads New number of threads
+	 */
+	public void setThreads(final int threads)
+	{
+		simulation.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				if(pool != null)
+					pool.shutdown();
 
-			this.maxParticles = maxParticles;
+				pool = threads > 1 ? new ForkJoinPool(threads) : null;
+			}
+		});
+	}
+	
+	/**
+	 * Set the number of particles updated by each task of a parallel update
+	 * @param chunkSize New chunk size
+	 */
+	public void setChunkSize(final int chunkSize)
+	{
+		if(chunkSize > 0)
+		{
+			simulation.execute(new Runnable() {
+				@Override
+				public void run() {
+					ParticlesSystem.this.chunkSize = chunkSize;
+				}
+			});
 		}
+		else
+			simulation.printOut("Chunk size must be strictly positive.");
 	}
 	
 	/**
 	 * Set particles' memory
 	 * @param memory New memory
 	 */
-	public void setMemory(int memory)
+	public void setMemory(final int memory)
 	{
 		if(memory > 0)
 		{
-			this.memory = memory;
-			simulation.setOutMatrixDim(memory, particles.size());
+			simulation.execute(new Runnable() {
+				@Override
+				public void run()
+				{
+					ParticlesSystem.this.memory = memory;
+					particles.setMemory(getEffectiveMemory());
+					simulation.setOutMatrixDim(particles.getMemory(), particles.size());
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Set the percentage of the awake particles updated by each update, to 
+	 * trade smoothness for time (see Utils.FrameGovernor). 
+	 * Must be called by the updating thread (see Simulation.execute).
+	 * @param percent Percentage of the awake particles (at least one particle is updated)
+	 */
+	public void setUpdatePercent(int percent) {
+		this.updatePercent = percent;
+	}
+	
+	/**
+	 * Set the percentage of the memory actually kept in the histories, to 
+	 * trade trails for time (see Utils.FrameGovernor). 
+	 * Must be called by the updating thread (see Simulation.execute).
+	 * @param percent Percentage of the memory (at least one position is kept)
+	 */
+	public void setMemoryPercent(int percent)
+	{
+		this.memoryPercent = percent;
+		
+		int effectiveMemory = getEffectiveMemory();
+		if(effectiveMemory != particles.getMemory())
+		{
+			particles.setMemory(effectiveMemory);
+			simulation.setOutMatrixDim(effectiveMemory, particles.size());
 		}
 	}
 	
+	/**
+	 * Get the memory actually kept in the histories
+	 * @return memory scaled by memoryPercent (at least 1 once lowered)
+	 */
+	public int getEffectiveMemory()
+	{
+		if(memoryPercent >= 100)
+			return memory;
+		return Math.max(1, (memory * memoryPercent) / 100);
+	}
+	
 	/**
 	 * Getter : stiffness
 	 * @return	La constante de raideur de ressort appliquée aux particules du
@@ -464,17 +1315,27 @@ public class ParticlesSystem
 		if(inf == maxParticles)
 			simulation.printOut("You are trying to add " + dim[0] + " particles but I can't contain more than " + maxParticles + " particles. See the \"" + Simulation.Particles.MSG_MAXPART + "\" message.");
 		
-		semaphore.acquireUninterruptibly();
-		particles.clear();
-
+		// On lit la matrice tout de suite, elle peut changer avant la prochaine mise à jour
+		final float[] positions = new float[inf * 2];
 		for(int i = 0; i < inf; i++)
 		{
 			float[] cell = jm.getcell2dFloat(i, 0);
-			particles.add(new Particle(new Vector(cell[0], cell[1]), this));
+			positions[2 * i]		= cell[0];
+			positions[(2 * i) + 1]	= cell[1];
 		}
-		semaphore.release();
 		
-		simulation.setOutMatrixDim(memory, particles.size());
+		simulation.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				particles.clear();
+
+				for(int i = 0; i < positions.length; i += 2)
+					particles.add(positions[i], positions[i + 1]);
+
+				simulation.setOutMatrixDim(particles.getMemory(), particles.size());
+			}
+		});
 	}
 	
 	/**
@@ -565,5 +1426,73 @@ public class ParticlesSystem
 		edgeComportements[BOTTOM_EDGE]	= bottomComportement;
 		edgeComportements[RIGHT_EDGE]	= rightComportement;
 		edgeComportements[TOP_EDGE]		= topComportement;		
+		wakeAll = true;
+	}
+	
+	/**
+	 * Save the settings and every particle of this system.
+	 * Must be called by the updating thread (see Simulation.execute).
+	 * @param out Snapshot being written
+	 * @throws IOException If the snapshot cannot be written
+	 */
+	public void save(SnapshotWriter out) throws IOException
+	{
+		out.writeDouble(stiffness);
+		out.writeDouble(momentum);
+		out.writeDouble(friction);
+		out.writeDouble(threshold.x);
+		out.writeDouble(threshold.y);
+		out.writeInt(maxParticles);
+		out.writeInt(memory);
+		out.writeInts(edgeComportements, 0, edgeComportements.length);
+		out.writeDouble(idleDisplacement);
+		out.writeDouble(sleepDisplacement);
+		out.writeInt(sleepUpdates);
+		particles.save(out);
+	}
+	
+	/**
+	 * Replace the settings and the particles of this system by the saved ones.
+	 * Must be called by the updating thread (see Simulation.execute).
+	 * @param in Snapshot being read
+	 * @throws IOException If the snapshot is truncated
+	 */
+	public void restore(SnapshotReader in) throws IOException
+	{
+		// Les réglages ne sont appliqués qu'une fois les particules lues
+		double newStiffness		= in.readDouble();
+		double newMomentum		= in.readDouble();
+		double newFriction		= in.readDouble();
+		Vector newThreshold		= new Vector(in.readDouble(), in.readDouble());
+		int newMaxParticles		= in.readInt();
+		int newMemory			= in.readInt();
+		int[] newEdges			= new int[edgeComportements.length];
+		in.readInts(newEdges, 0, newEdges.length);
+		double newIdle			= in.readDouble();
+		double newSleep			= in.readDouble();
+		int newSleepUpdates		= in.readInt();
+		if(newMemory <= 0)
+			throw new IOException("Corrupted settings");
+		
+		particles.restore(in);
+		
+		stiffness			= newStiffness;
+		momentum			= newMomentum;
+		friction			= newFriction;
+		threshold			= newThreshold;
+		maxParticles		= newMaxParticles;
+		memory				= newMemory;
+		edgeComportements	= newEdges;
+		idleDisplacement	= newIdle;
+		sleepDisplacement	= newSleep;
+		sleepUpdates		= newSleepUpdates;
+		activity.setEnabled(idleDisplacement > 0.);
+		
+		// L'historique sauvé peut être réduit par le gouverneur : on applique
+		// une seule fois memoryPercent au réglage de l'utilisateur
+		particles.setMemory(getEffectiveMemory());
+		
+		simulation.setOutMatrixDim(particles.getMemory(), particles.size());
+		simulation.setOutMatrix(particles);
 	}
 }
@@ -0,0 +1,213 @@
+package ParticlesSystem;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A trajectory reader gives a random access to the frames of a file written
+ * by a TrajectoryRecorder.
+ * The file is mapped by chunks : reading consecutive frames only maps a new
+ * chunk once in a while.
+ *
+ * @author	CreArtCom's Studio
+ * @author	Léo LEFEBVRE
+ * @version	1.0
+ * @see TrajectoryRecorder
+ */
+public class TrajectoryReader
+{
+	// Default parameters
+	private static final int	CHUNK_SIZE	= 1 << 24;
+
+	/** Read file */
+	protected RandomAccessFile file;
+
+	/** Channel of the read file */
+	protected FileChannel channel;
+
+	/** Currently mapped chunk of the file */
+	protected MappedByteBuffer chunk;
+
+	/** Position of the chunk in the file */
+	protected long chunkPosition;
+
+	/** Offset of each frame in the file */
+	protected long[] index;
+
+	/** Number of frames in the file */
+	protected int frameCount;
+
+	/**
+	 * Open a trajectory file and read its index
+	 * @param path Path of the file
+	 * @throws IOException If the file cannot be read or is not a trajectory file
+	 */
+	public TrajectoryReader(String path) throws IOException
+	{
+		this.file		= new RandomAccessFile(path, "r");
+		this.channel	= file.getChannel();
+		this.chunk		= null;
+
+		try {
+			readIndex();
+		}
+		catch(IOException e)
+		{
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Read the header and the index of the file.
+	 * If the recorder was not closed, frames are found by following their sizes.
+	 * @throws IOException If the file is not a trajectory file
+	 */
+	private void readIndex() throws IOException
+	{
+		long length = channel.size();
+		if(length < TrajectoryRecorder.HEADER_SIZE)
+			throw new IOException("Not a trajectory file");
+
+		ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, TrajectoryRecorder.HEADER_SIZE);
+		header.order(TrajectoryRecorder.ORDER);
+
+		if(header.getInt() != TrajectoryRecorder.MAGIC)
+			throw new IOException("Not a trajectory file");
+		if(header.getInt() != TrajectoryRecorder.VERSION)
+			throw new IOException("Unsupported trajectory file version");
+
+		int frames = header.getInt();
+		header.getInt();
+		long indexOffset = header.getLong();
+
+		// Index écrit à la fermeture de l'enregistrement
+		if(indexOffset > 0 && indexOffset + frames * 8L <= length)
+		{
+			ByteBuffer indexBuffer = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, frames * 8L);
+			indexBuffer.order(TrajectoryRecorder.ORDER);
+
+			index		= new long[frames];
+			frameCount	= frames;
+			for(int f = 0; f < frames; f++)
+				index[f] = indexBuffer.getLong();
+			return;
+		}
+
+		// Enregistrement interrompu : on suit les images jusqu'à la première vide
+		index		= new long[1024];
+		frameCount	= 0;
+
+		long position = TrajectoryRecorder.HEADER_SIZE;
+		ByteBuffer frameHeader = ByteBuffer.allocate(TrajectoryRecorder.FRAME_HEADER).order(TrajectoryRecorder.ORDER);
+		while(position + TrajectoryRecorder.FRAME_HEADER <= length)
+		{
+			frameHeader.clear();
+			while(frameHeader.hasRemaining() && channel.read(frameHeader, position + frameHeader.position()) >= 0);
+
+			int particles	= frameHeader.getInt(0);
+			int memory		= frameHeader.getInt(4);
+			long size		= TrajectoryRecorder.FRAME_HEADER + (long) particles * memory * 8;
+			if(memory <= 0 || particles < 0 || position + size > length)
+				break;
+
+			if(frameCount == index.length)
+			{
+				long[] newIndex = new long[index.length * 2];
+				System.arraycopy(index, 0, newIndex, 0, frameCount);
+				index = newIndex;
+			}
+
+			index[frameCount++] = position;
+			position += size;
+		}
+	}
+
+	/**
+	 * Map the chunk containing a frame and move to its beginning
+	 * @param frame Index of the frame
+	 * @return The mapped chunk, positioned on the frame's header
+	 * @throws IOException If the file cannot be mapped
+	 */
+	private MappedByteBuffer seek(int frame) throws IOException
+	{
+		if(frame < 0 || frame >= frameCount)
+			throw new IndexOutOfBoundsException("Frame " + frame + " of " + frameCount);
+
+		long position = index[frame];
+		long end = (frame + 1 < frameCount) ? index[frame + 1] : channel.size();
+
+		if(chunk == null || position < chunkPosition || end > chunkPosition + chunk.capacity())
+		{
+			// Le bloc commence sur l'image demandée et contient au moins toute l'image
+			long size = Math.min(channel.size() - position, Math.max(CHUNK_SIZE, end - position));
+			chunkPosition	= position;
+			chunk			= channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+			chunk.order(TrajectoryRecorder.ORDER);
+		}
+
+		chunk.position((int) (position - chunkPosition));
+		return chunk;
+	}
+
+	/**
+	 * Get the number of particles of a frame
+	 * @param frame Index of the frame
+	 * @return Number of particles
+	 * @throws IOException If the file cannot be mapped
+	 */
+	public int getParticles(int frame) throws IOException {
+		return seek(frame).getInt();
+	}
+
+	/**
+	 * Get the number of positions memorized for each particle of a frame
+	 * @param frame Index of the frame
+	 * @return Memory of the frame
+	 * @throws IOException If the file cannot be mapped
+	 */
+	public int getMemory(int frame) throws IOException
+	{
+		MappedByteBuffer buffer = seek(frame);
+		return buffer.getInt(buffer.position() + 4);
+	}
+
+	/**
+	 * Read the positions of a frame, packed as the output matrix : the i'th
+	 * old position of the j'th particle is {x, y} at (j * memory + i) * 2.
+	 * Positions are scaled by Max.ENGINE_...
+	 * @param frame Index of the frame
+	 * @param positions Destination, at least particles * memory * 2 long
+	 * @return Number of floats read
+	 * @throws IOException If the file cannot be mapped
+	 */
+	public int read(int frame, float[] positions) throws IOException
+	{
+		MappedByteBuffer buffer = seek(frame);
+		int length = buffer.getInt() * buffer.getInt() * 2;
+
+		buffer.asFloatBuffer().get(positions, 0, length);
+		return length;
+	}
+
+	/**
+	 * Getter : frameCount
+	 * @return Number of frames in the file
+	 */
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * Close the file
+	 * @throws IOException If the file cannot be closed
+	 */
+	public void close() throws IOException
+	{
+		chunk = null;
+		file.close();
+	}
+}
@@ -0,0 +1,344 @@
+package ParticlesSystem;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A trajectory recorder appends the particles' histories of each update to a
+ * binary file, to be played back later by a TrajectoryReader.
+ * The updating thread only copies the histories into a free buffer : frames
+ * are written by a background thread into memory-mapped chunks of the file.
+ * If the writer falls behind and no buffer is free, the frame is dropped
+ * rather than blocking the update.
+ * <p>
+ * File layout (little endian) :
+ * <ul>
+ * <li>header : magic, version, frame count, reserved (int), index offset, reserved (long)</li>
+ * <li>frames : particles, memory (int), then particles * memory {x, y} (float),
+ * packed as the output matrix and scaled by Max.ENGINE_...</li>
+ * <li>index : offset of each frame (long), written when the recorder is closed</li>
+ * </ul>
+ * A file which was not closed has no index : the reader then finds frames
+ * by following their sizes.
+ *
+ * @author	CreArtCom's Studio
+ * @author	Léo LEFEBVRE
+ * @version	1.0
+ */
+public class TrajectoryRecorder
+{
+	/** First int of every trajectory file ("FPTR") */
+	public static final int		MAGIC			= 0x46505452;
+
+	/** Version of the file layout */
+	public static final int		VERSION			= 1;
+
+	/** Size of the file's header in bytes */
+	public static final int		HEADER_SIZE		= 32;
+
+	/** Size of a frame's header in bytes */
+	public static final int		FRAME_HEADER	= 8;
+
+	/** Byte order of every value in the file */
+	public static final ByteOrder	ORDER		= ByteOrder.LITTLE_ENDIAN;
+
+	// Default parameters
+	private static final int	CHUNK_SIZE		= 1 << 24;
+	private static final int	BUFFERS			= 4;
+
+	/** A frame copied by the updating thread, waiting to be written */
+	private static class Frame
+	{
+		/** Positions packed as the output matrix */
+		float[] positions	= new float[0];
+
+		/** Number of particles */
+		int particles;
+
+		/** Number of positions of each particle */
+		int memory;
+	}
+
+	/** Sent to the writer to stop it */
+	private static final Frame CLOSE = new Frame();
+
+	/** Path of the recorded file */
+	protected String path;
+
+	/** Recorded file */
+	protected RandomAccessFile file;
+
+	/** Channel of the recorded file */
+	protected FileChannel channel;
+
+	/** Currently mapped chunk of the file (writer's thread only) */
+	protected MappedByteBuffer chunk;
+
+	/** Position of the chunk in the file */
+	protected long chunkPosition;
+
+	/** Position of the next frame in the file */
+	protected long position;
+
+	/** Offset of each written frame in the file */
+	protected long[] index;
+
+	/** Number of written frames */
+	protected volatile int frameCount;
+
+	/** Number of frames dropped because the writer was late */
+	protected volatile int dropped;
+
+	/** Frames waiting to be written */
+	protected BlockingQueue<Frame> pending;
+
+	/** Frames ready to be filled by the updating thread */
+	protected BlockingQueue<Frame> free;
+
+	/** Background thread writing the frames */
+	protected Thread writer;
+
+	/** First error met by the writer, reported by close() */
+	protected volatile IOException failure;
+
+	/**
+	 * Create the file (or overwrite it) and start the writer
+	 * @param path Path of the file to record
+	 * @throws IOException If the file cannot be created
+	 */
+	public TrajectoryRecorder(String path) throws IOException
+	{
+		this.path			= path;
+		this.file			= new RandomAccessFile(path, "rw");
+		this.channel		= file.getChannel();
+		this.chunk			= null;
+		this.chunkPosition	= 0;
+		this.position		= HEADER_SIZE;
+		this.index			= new long[1024];
+		this.frameCount		= 0;
+		this.dropped		= 0;
+		this.pending		= new ArrayBlockingQueue<Frame>(BUFFERS + 1);
+		this.free			= new ArrayBlockingQueue<Frame>(BUFFERS);
+		this.failure		= null;
+
+		channel.truncate(0);
+		writeHeader(0, 0);
+
+		for(int i = 0; i < BUFFERS; i++)
+			free.add(new Frame());
+
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeFrames();
+			}
+		}, "Trajectory recorder");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Record the histories of every particle of the store.
+	 * Only copies the histories : must be called by the updating thread.
+	 * @param particles Particles to record
+	 * @return <code>true</code> if the frame was recorded, <code>false</code> if it was dropped
+	 */
+	public boolean record(ParticlesStore particles)
+	{
+		Frame frame = free.poll();
+		if(frame == null)
+		{
+			dropped++;
+			return false;
+		}
+
+		int memory = particles.getMemory();
+		int length = particles.size() * memory * 2;
+
+		if(frame.positions.length < length)
+			frame.positions = new float[length];
+
+		int cell = 0;
+		for(int j = 0; j < particles.size(); j++)
+		{
+			for(int i = 0; i < memory; i++)
+			{
+				int k = particles.historyIndex(j, i);
+				frame.positions[cell++] = (float) particles.historyX[k];
+				frame.positions[cell++] = (float) particles.historyY[k];
+			}
+		}
+
+		frame.particles	= particles.size();
+		frame.memory	= memory;
+		pending.add(frame);
+		return true;
+	}
+
+	/** Loop of the writer : write pending frames until the recorder is closed */
+	private void writeFrames()
+	{
+		while(true)
+		{
+			Frame frame;
+			try {
+				frame = pending.take();
+			} catch(InterruptedException e) {
+				continue;
+			}
+
+			if(frame == CLOSE)
+				return;
+
+			// Après une erreur on vide la file sans écrire
+			if(failure == null)
+			{
+				try {
+					write(frame);
+				} catch(IOException e) {
+					failure = e;
+				}
+			}
+
+			free.add(frame);
+		}
+	}
+
+	/**
+	 * Write a frame at the end of the file (writer's thread only)
+	 * @param frame Frame to write
+	 * @throws IOException If the file cannot be mapped
+	 */
+	private void write(Frame frame) throws IOException
+	{
+		int length = frame.particles * frame.memory * 2;
+		long size = FRAME_HEADER + (long) length * 4;
+
+		// Une image est toujours écrite dans un seul bloc
+		if(chunk == null || position + size > chunkPosition + chunk.capacity())
+		{
+			chunkPosition	= position;
+			chunk			= channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(CHUNK_SIZE, size));
+			chunk.order(ORDER);
+		}
+
+		chunk.position((int) (position - chunkPosition));
+		chunk.putInt(frame.particles);
+		chunk.putInt(frame.memory);
+		chunk.asFloatBuffer().put(frame.positions, 0, length);
+
+		if(frameCount == index.length)
+		{
+			long[] newIndex = new long[index.length * 2];
+			System.arraycopy(index, 0, newIndex, 0, frameCount);
+			index = newIndex;
+		}
+
+		index[frameCount++] = position;
+		position += size;
+	}
+
+	/**
+	 * Write the file's header
+	 * @param frames Number of frames
+	 * @param indexOffset Position of the index (0 : no index)
+	 * @throws IOException If the header cannot be written
+	 */
+	private void writeHeader(int frames, long indexOffset) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ORDER);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(frames);
+		header.putInt(0);
+		header.putLong(indexOffset);
+		header.putLong(0);
+		header.flip();
+
+		while(header.hasRemaining())
+			channel.write(header, header.position());
+	}
+
+	/**
+	 * Stop the writer once every pending frame is written, then write the
+	 * index and close the file
+	 * @throws IOException If a frame, the index or the header cannot be written
+	 */
+	public void close() throws IOException
+	{
+		boolean interrupted = false;
+
+		pending.add(CLOSE);
+		while(writer.isAlive())
+		{
+			try {
+				writer.join();
+			} catch(InterruptedException e) {
+				interrupted = true;
+			}
+		}
+
+		if(interrupted)
+			Thread.currentThread().interrupt();
+
+		try
+		{
+			if(failure != null)
+				throw failure;
+
+			if(chunk != null)
+				chunk.force();
+			chunk = null;
+
+			ByteBuffer indexBuffer = ByteBuffer.allocate(frameCount * 8).order(ORDER);
+			for(int f = 0; f < frameCount; f++)
+				indexBuffer.putLong(index[f]);
+			indexBuffer.flip();
+
+			long indexPosition = position;
+			while(indexBuffer.hasRemaining())
+				channel.write(indexBuffer, indexPosition + indexBuffer.position());
+
+			writeHeader(frameCount, position);
+
+			// On retire la fin du dernier bloc (impossible sur certains systèmes
+			// tant que le bloc est projeté : le fichier reste alors valide)
+			try {
+				channel.truncate(position + frameCount * 8L);
+			} catch(IOException e) {}
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Getter : path
+	 * @return Path of the recorded file
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Getter : frameCount
+	 * @return Number of frames written so far
+	 */
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * Getter : dropped
+	 * @return Number of frames dropped because the writer was late
+	 */
+	public int getDropped() {
+		return dropped;
+	}
+}
@@ -2,10 +2,14 @@ package Simulation;
 
 import BlobsSystem.Blob;
 import FluidSystem.FluidSolver;
+import FluidSystem.VelocityField;
 import Utils.LinearScale2;
+import Utils.SnapshotReader;
+import Utils.SnapshotWriter;
 import Utils.Vector;
 import com.cycling74.max.Atom;
 import java.awt.Color;
+import java.io.IOException;
 import msafluid.MSAFluidSolver2D;
 
 /**
@@ -23,6 +27,12 @@ public class Fluid extends Simulation
 	protected static Vector FLUID_MIN = new Vector(0., 0.);
 	protected static Vector FLUID_MAX = new Vector(1., 1.);
 	
+	/** 
+	 * Name under which the fluid's velocity field is registered
+	 * @see FluidSystem.VelocityField
+	 */
+	public static final String FIELD_NAME = "Simulation.Fluid";
+	
     /** 
 	 * Fluid's dimensions message : ~ width height
 	 * @see MSAFluidSolver2D
@@ -76,6 +86,53 @@ public class Fluid extends Simulation
 	 * @see FluidSystem.FluidSolver
 	 */
 	protected static String MSG_RANDOMCOLOR	= "random_color";
+	
+    /** 
+	 * Fluid's color scale message : ~ colorScale 
+	 * @see FluidSystem.FluidSolver
+	 */
+	protected static String MSG_COLORSCALE = "color_scale";
+	
+    /** 
+	 * Fluid's solver message : ~ solver (0 : MSAFluid, 1 : in-tree Java solver)
+	 * @see FluidSystem.FluidSolver
+	 */
+	protected static String MSG_SOLVER = "solver";
+	
+    /** 
+	 * Fluid's threads message : ~ threads (only used by the Java solver)
+	 * @see FluidSystem.FluidSolver
+	 */
+	protected static String MSG_THREADS = "threads";
+	
+    /** 
+	 * Fluid's projection message : ~ method [tolerance] 
+	 * (0 : relaxation, 1 : multigrid, only with the Java solver)
+	 * @see FluidSystem.FluidEngine
+	 */
+	protected static String MSG_PROJECTION = "projection";
+	
+    /** 
+	 * Fluid's residual message : ~ residual 
+	 * (the pressure solver stops under this residual, 0 : every iteration is used)
+	 * @see FluidSystem.FluidSolver
+	 */
+	protected static String MSG_RESIDUAL = "residual";
+	
+    /** 
+	 * Fluid's solver info message : ~ 
+	 * (output "solver_info iterations residual" of the last update on the info outlet)
+	 * @see FluidSystem.FluidSolver
+	 */
+	protected static String MSG_SOLVER_INFO = "solver_info";
+	
+    /** 
+	 * Fluid's idle message : ~ velocity dye [updates]
+	 * (the fluid stops updating after some updates under both thresholds, 
+	 * 0 : never idle)
+	 * @see FluidSystem.FluidSolver
+	 */
+	protected static String MSG_IDLE = "idle";
 
 
 	// Outlets for output and init matrix
@@ -83,6 +140,9 @@ public class Fluid extends Simulation
 	private static final int	OUTLET_MAGNET	= 1;
 	private static final int	OUTLET_BLOB		= 2;
 	
+	// Lowest percentage of the solver iterations kept under a frame budget
+	private static final int	KNOB_ITERATIONS_MIN	= 25;
+	
 	/** Fluid Solver use to manage the fluid simulation */
     private FluidSolver fluidSolver;
 	
@@ -113,6 +173,18 @@ public class Fluid extends Simulation
 	/** LinearScale used to scale input position (from input to fluid) */
 	protected LinearScale2 fluidScaleFrom;
 	
+	/** Scaled positions of the blobs' rows, reused from one matrix to another */
+	private double[] blobPositions;
+	
+	/** Moved blob of each blobs' row, reused from one matrix to another */
+	private Blob[] movedBlobs;
+	
+	// Phase of the updates measured by the timer (see Simulation.timer)
+	private final int phaseOutput;
+	
+	// Knob of the governor (see Simulation.governor)
+	private final int knobIterations;
+	
 	/**
 	 * Construct a max object for fluid simulation
 	 * @param args Max Object's  arguments - not use but required
@@ -135,7 +207,10 @@ public class Fluid extends Simulation
 		declareAttribute("fluid_h");
 		
         // On récupère le resolveur de fluide
-        fluidSolver = new FluidSolver();
+        fluidSolver = new FluidSolver(timer);
+		phaseOutput = timer.addPhase("output");
+		knobIterations = governor.addKnob("iterations", KNOB_ITERATIONS_MIN);
+		VelocityField.register(FIELD_NAME, fluidSolver.getVelocityField());
 
 		// On initialise les paramètres
 		fluidScaleFrom	= new LinearScale2(outdoorMin, outdoorMax, FLUID_MIN, FLUID_MAX);
@@ -143,12 +218,15 @@ public class Fluid extends Simulation
 		fluid_v			= new float[]{};
 		fluid_w			= fluidSolver.getWidth();
 		fluid_h			= fluidSolver.getHeight();
+		blobPositions	= new double[0];
+		movedBlobs		= new Blob[0];
+		registerMessages();
     }
 
 	/**
 	 * Routine when a bang message occurs on first inlet.
 	 * For each update, this method update the fluidSolver, fluid_u, fluid_v and
-	 * output the image matrix.
+	 * output the image matrix (unchanged when the fluid is idle).
 	 * @see FluidSystem.FluidSolver
 	 */
     @Override
@@ -156,6 +234,8 @@ public class Fluid extends Simulation
     {
         if(getInlet() == 0)
         {
+			long start = System.nanoTime();
+			timer.begin();
             fluidSolver.update();
 			fluid_u = fluidSolver.getUArray();
 			fluid_v = fluidSolver.getVArray();
@@ -165,99 +245,198 @@ public class Fluid extends Simulation
 			String outPutMatrixName = fluidSolver.getImgFluidName();
 			if(outPutMatrixName != null)
 				outlet(0, MSG_MATRIX, outPutMatrixName);
+			timer.lap(phaseOutput);
+			timer.end();
+			govern(System.nanoTime() - start);
         }
     }
 	
 	/**
 	 * Routine when something other than a bang message occurs.
-	 * Execute appropriates routines for known messages (on appropriate inlet).
-	 * Call first Simulation.TreatMessage.
+	 * Messages are executed by the handlers registered in the message table
+	 * (see registerMessages).
 	 * Call Max.unknownMessage if the message is unknown.
 	 * @param message Max's header message
 	 * @param args Max's parameters message
 	 */
     @Override
     protected void anything(String message, Atom[] args)
-    {		
-		boolean unknownMessage = false;
+    {
+		// Tout message peut modifier le fluide : on le réveille
+		fluidSolver.wake();
 		
-		if(TreatMessage(message, args))
-		{
-			// Messages de paramétrage
-			if(args.length == 0)
+		super.anything(message, args);
+    }
+	
+	/**
+	 * Rebuild the scales depending on the outdoor positions, including the 
+	 * one from outdoor to fluid
+	 */
+	@Override
+	protected void updateScales()
+	{
+		super.updateScales();
+		fluidScaleFrom = new LinearScale2(outdoorMin, outdoorMax, FLUID_MIN, FLUID_MAX);
+	}
+	
+	/**
+	 * Register the fluid's messages : solver's and colors' settings
+	 */
+	private void registerMessages()
+	{
+		messages.register(MSG_RESET, 0, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args)
 			{
-				if(message.contentEquals(MSG_RESET))
-				{
-					fluidSolver.reset();
-					outlet(0, MSG_MATRIX, fluidSolver.getImgFluidName());
-				}
-
-				else
-					unknownMessage = true;
+				fluidSolver.reset();
+				outlet(0, MSG_MATRIX, fluidSolver.getImgFluidName());
 			}
-
-			// Messages de paramétrage
-			else if(args.length == 1)
-			{
-				if(message.contentEquals(MSG_DELTAT))
-					fluidSolver.setDeltaT(args[0].toFloat());
-
-				else if(message.contentEquals(MSG_VISCOSITY))
-					fluidSolver.setViscosity(args[0].toFloat());
-
-				else if(message.contentEquals(MSG_FADESPEED))
-					fluidSolver.setFadeSpeed(args[0].toFloat());
-
-				else if(message.contentEquals(MSG_VELOCITY))
-					fluidSolver.setVelocity(args[0].toFloat());
-
-				else if(message.contentEquals(MSG_NOCOLOR))
-					fluidSolver.setColored(!args[0].toBoolean());
-
-				else if(message.contentEquals(MSG_RANDOMCOLOR))
-					fluidSolver.setRandomizeColor(args[0].toBoolean());
-
-				else if(message.contentEquals(MSG_ITERATIONS))
-					fluidSolver.setSolverIterations(args[0].toInt());
-
-				else
-					unknownMessage = true;
+		});
+		
+		messages.register(MSG_SOLVER_INFO, 0, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				outlet(getInfoIdx(), MSG_SOLVER_INFO, new Atom[] {Atom.newAtom(fluidSolver.getIterationsUsed()), Atom.newAtom(fluidSolver.getResidual())});
 			}
-
-			else if(args.length == 2)
-			{
-				if(message.contentEquals(MSG_FLUID_DIM)) 
-					fluidSolver.setCells(args[0].toInt(), args[1].toInt());
-
-				else
-					unknownMessage = true;
+		});
+		
+		messages.register(MSG_DELTAT, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				fluidSolver.setDeltaT(args[0].toFloat());
 			}
-
-			else if(args.length == 3)
+		});
+		
+		messages.register(MSG_VISCOSITY, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				fluidSolver.setViscosity(args[0].toFloat());
+			}
+		});
+		
+		messages.register(MSG_FADESPEED, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				fluidSolver.setFadeSpeed(args[0].toFloat());
+			}
+		});
+		
+		messages.register(MSG_VELOCITY, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				fluidSolver.setVelocity(args[0].toFloat());
+			}
+		});
+		
+		messages.register(MSG_NOCOLOR, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				fluidSolver.setColored(!args[0].toBoolean());
+			}
+		});
+		
+		messages.register(MSG_RANDOMCOLOR, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				fluidSolver.setRandomizeColor(args[0].toBoolean());
+			}
+		});
+		
+		messages.register(MSG_COLORSCALE, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				fluidSolver.setColorScale(args[0].toFloat());
+			}
+		});
+		
+		messages.register(MSG_ITERATIONS, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				fluidSolver.setSolverIterations(args[0].toInt());
+			}
+		});
+		
+		messages.register(MSG_PROJECTION, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				setProjection(args[0].toInt(), fluidSolver.getTolerance());
+			}
+		});
+		
+		messages.register(MSG_THREADS, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				fluidSolver.setThreads(args[0].toInt());
+			}
+		});
+		
+		messages.register(MSG_RESIDUAL, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				fluidSolver.setResidualTolerance(args[0].toFloat());
+			}
+		});
+		
+		messages.register(MSG_SOLVER, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args)
 			{
-				if(message.contentEquals(MSG_COLOR))
-					fluidSolver.setColor(new Color(args[0].toInt(), args[1].toInt(), args[2].toInt()));
-
+				if(fluidSolver.setSolver(args[0].toInt()))
+					outlet(0, MSG_MATRIX, fluidSolver.getImgFluidName());
 				else
-					unknownMessage = true;
+					printOut("Unknown solver : " + args[0].toInt() + " (0 : MSAFluid, 1 : Java)");
 			}
-			
-			else
-				unknownMessage = true;
-		}
-
-		if(message.contentEquals(MSG_XSCALE)) {
-			fluidScaleFrom = new LinearScale2(outdoorMin, outdoorMax, FLUID_MIN, FLUID_MAX);
-		}
-
-		if(message.contentEquals(MSG_YSCALE)) {
-			fluidScaleFrom = new LinearScale2(outdoorMin, outdoorMax, FLUID_MIN, FLUID_MAX);
-		}
+		});
 		
-		if(unknownMessage)
-			unknownMessage(message, args);
-    }
+		messages.register(MSG_FLUID_DIM, 2, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				fluidSolver.setCells(args[0].toInt(), args[1].toInt());
+			}
+		});
+		
+		messages.register(MSG_PROJECTION, 2, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				setProjection(args[0].toInt(), args[1].toFloat());
+			}
+		});
+		
+		messages.register(MSG_IDLE, 2, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				fluidSolver.setIdle(args[0].toFloat(), args[1].toInt());
+			}
+		});
+		
+		messages.register(MSG_COLOR, 3, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				fluidSolver.setColor(new Color(args[0].toInt(), args[1].toInt(), args[2].toInt()));
+			}
+		});
+		
+		messages.register(MSG_IDLE, 3, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args)
+			{
+				fluidSolver.setIdleUpdates(args[2].toInt());
+				fluidSolver.setIdle(args[0].toFloat(), args[1].toInt());
+			}
+		});
+	}
     
+	/**
+	 * Set the projection method of the fluid solver, warn if it is not supported
+	 * @param method Projection method (FluidEngine.PROJECTION_...)
+	 * @param tolerance Relative residual to reach (multigrid only)
+	 */
+	private void setProjection(int method, float tolerance)
+	{
+		if(!fluidSolver.setProjection(method, tolerance))
+			printOut("Unsupported projection " + method + " (0 : relaxation, 1 : multigrid with the Java solver only)");
+	}
+	
 	/**
 	 * Define whatever to do when a blob occurs.
 	 * In this case, blob forces are transmitted to the fluidSolver.
@@ -273,17 +452,79 @@ public class Fluid extends Simulation
 			fluidSolver.addForce(blob.getPosition(), blob.getDelta());
 	}
 	
+	/**
+	 * Define whatever to do when several blobs occur at once.
+	 * Positions are scaled in one batch, then blob forces are transmitted to
+	 * the fluidSolver. Buffers only grow, so matrices allocate nothing once
+	 * they are large enough.
+	 * @param rows Blobs' rows {index, x, y[, force]}
+	 * @param planes Number of values per row (3 or 4)
+	 * @param count Number of rows
+	 */
+	@Override
+	protected void applyBlobs(float[] rows, int planes, int count)
+	{
+		if(movedBlobs.length < count)
+		{
+			blobPositions = new double[count * 2];
+			movedBlobs = new Blob[count];
+		}
+		
+		fluidScaleFrom.Scale(rows, 1, planes, count, blobPositions);
+		blobsSystem.setPositions(rows, planes, blobPositions, count, movedBlobs);
+		
+		for(int i = 0; i < count; i++)
+		{
+			if(movedBlobs[i] != null)
+				fluidSolver.addForce(movedBlobs[i].getPosition(), movedBlobs[i].getDelta());
+		}
+	}
+	
 	/**
 	 * Routine when max object is deleted.
 	 * Destroy the fluidSolver.
 	 */
     @Override
     public void notifyDeleted() {
+		VelocityField.unregister(FIELD_NAME, fluidSolver.getVelocityField());
         fluidSolver.destroy();
+		super.notifyDeleted();
     }
 
 	@Override
 	protected void outBlob(String message) {
 		outlet(OUTLET_BLOB, message);
 	}
+	
+	/**
+	 * Save the fluid solver's settings and fields
+	 * @param out Snapshot being written
+	 * @throws IOException If the snapshot cannot be written
+	 */
+	@Override
+	protected void saveState(SnapshotWriter out) throws IOException {
+		fluidSolver.save(out);
+	}
+	
+	/**
+	 * Restore the fluid solver's settings and fields
+	 * @param in Snapshot being read
+	 * @throws IOException If the snapshot is truncated or corrupted
+	 */
+	@Override
+	protected void restoreState(SnapshotReader in) throws IOException {
+		fluidSolver.restore(in);
+	}
+	
+	/**
+	 * Apply the governor's knob : lower or restore the solver iterations
+	 * @param knob Index of the knob
+	 * @param percent Percentage of the solver iterations
+	 */
+	@Override
+	protected void applyKnob(int knob, int percent)
+	{
+		if(knob == knobIterations)
+			fluidSolver.setIterationsPercent(percent);
+	}
 }
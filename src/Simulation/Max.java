@@ -64,9 +64,12 @@ public abstract class Max extends MaxObject
 	 */
 	public JitterMatrix nowhereMatrix;
 	
+	/** Handlers of the known messages, registered by each class of the hierarchy */
+	protected MessageTable messages;
+	
 	/**
 	 * Abstract constructor.
-	 * Create output info and initialise its members.
+	 * Create output info, initialise its members and register its messages.
 	 * @param args Max Object's  arguments - not use but required
 	 */
 	protected Max(Atom[] args)
@@ -79,6 +82,34 @@ public abstract class Max extends MaxObject
 		scaleFrom		= new LinearScale2(outdoorMin, outdoorMax, ENGINE_MIN, ENGINE_MAX);
 		nowhereMatrix	= new JitterMatrix("nowhere", 2, "float32", 1, 1);
 		nowhereMatrix.setcell2d(0, 0, new float[]{Float.MAX_VALUE, Float.MAX_VALUE});
+		messages		= new MessageTable();
+		
+		messages.register(MSG_XSCALE, 2, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args)
+			{
+				outdoorMin.x	= args[0].toDouble();
+				outdoorMax.x	= args[1].toDouble();
+				updateScales();
+			}
+		});
+		
+		messages.register(MSG_YSCALE, 2, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args)
+			{
+				outdoorMin.y	= args[0].toDouble();
+				outdoorMax.y	= args[1].toDouble();
+				updateScales();
+			}
+		});
+	}
+	
+	/**
+	 * Rebuild the scales depending on the outdoor positions, once they changed
+	 */
+	protected void updateScales() {
+		scaleFrom = new LinearScale2(outdoorMin, outdoorMax, ENGINE_MIN, ENGINE_MAX);
 	}
 	
 	/**
@@ -90,7 +121,8 @@ public abstract class Max extends MaxObject
 	}
 	
 	/**
-	 * Report a unknown message to the max console
+	 * Report a unknown message (or a known one with a wrong number of 
+	 * arguments) to the max console
 	 * @param message Unknown message's header
 	 * @param args Unknown message's parameters
 	 */
@@ -101,39 +133,24 @@ public abstract class Max extends MaxObject
 		for(Atom atom : args)
 			argsError += " " + atom.toString();
 
-		error("Unknown message : " + message + argsError);
+		String expected = messages.describeArgs(message);
+		if(expected != null)
+			error("Wrong number of arguments : " + message + argsError + " (expected " + expected + ")");
+		else
+			error("Unknown message : " + message + argsError);
 	}
 	
 	/**
-	 * Execute appropriates routines for known messages
+	 * Routine when something other than a bang message occurs.
+	 * Execute the handler registered for the message, or report it if it is
+	 * unknown.
 	 * @param message Max's header message
 	 * @param args Max's parameters message
-	 * @return <code>true</code> if the message in unknown, <code>false</code> otherwise
 	 */
-	protected boolean TreatMessage(String message, Atom[] args)
+	@Override
+	protected void anything(String message, Atom[] args)
 	{
-		if(getInlet() == 0 && args.length == 2)
-		{
-			if(message.contentEquals(MSG_XSCALE))
-			{
-				outdoorMin.x	= args[0].toDouble();
-				outdoorMax.x	= args[1].toDouble();
-				scaleFrom		= new LinearScale2(outdoorMin, outdoorMax, ENGINE_MIN, ENGINE_MAX);
-			}
-			
-			else if(message.contentEquals(MSG_YSCALE))
-			{
-				outdoorMin.y	= args[0].toDouble();
-				outdoorMax.y	= args[1].toDouble();
-				scaleFrom		= new LinearScale2(outdoorMin, outdoorMax, ENGINE_MIN, ENGINE_MAX);
-			}
-			
-			else
-				return false;
-		}
-		else
-			return false;
-		
-		return true;
+		if(!messages.dispatch(message, args))
+			unknownMessage(message, args);
 	}
 }
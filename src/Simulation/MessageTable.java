@@ -0,0 +1,101 @@
+package Simulation;
+
+import com.cycling74.max.Atom;
+import java.util.HashMap;
+
+/**
+ * A message table routes each incoming message to its handler in constant
+ * time : handlers are registered once, by selector and number of arguments,
+ * when the Max object is constructed. Each class of the hierarchy registers
+ * its own messages in the same table, so children share the handlers of
+ * their parents and may replace them.
+ * The table is also the single place where the number of arguments is
+ * checked : a handler is only called with the number of arguments it was
+ * registered for.
+ *
+ * @author	CreArtCom's Studio
+ * @author	Léo LEFEBVRE
+ * @version	1.0
+ */
+public class MessageTable
+{
+	// Default parameters
+	private static final int	MAX_ARGS	= 8;
+
+	/** Routine executed when a message is received */
+	public interface Handler
+	{
+		/**
+		 * Handle a message
+		 * @param args Max's parameters message (as many as registered)
+		 */
+		public void handle(Atom[] args);
+	}
+
+	/** Handlers of each selector, indexed by their number of arguments */
+	protected HashMap<String, Handler[]> handlers;
+
+	/** Construct an empty table */
+	public MessageTable() {
+		this.handlers = new HashMap<String, Handler[]>();
+	}
+
+	/**
+	 * Register the handler of a message (replaces the previous one, if any)
+	 * @param selector Max's header message
+	 * @param nbArgs Number of arguments of the message
+	 * @param handler Routine to execute
+	 */
+	public void register(String selector, int nbArgs, Handler handler)
+	{
+		if(nbArgs < 0 || nbArgs > MAX_ARGS)
+			throw new IllegalArgumentException("Messages have at most " + MAX_ARGS + " arguments");
+
+		Handler[] byArgs = handlers.get(selector);
+		if(byArgs == null)
+		{
+			byArgs = new Handler[MAX_ARGS + 1];
+			handlers.put(selector, byArgs);
+		}
+
+		byArgs[nbArgs] = handler;
+	}
+
+	/**
+	 * Execute the handler of a message
+	 * @param selector Max's header message
+	 * @param args Max's parameters message
+	 * @return <code>true</code> if the message was handled, <code>false</code>
+	 * if it is unknown or has a wrong number of arguments
+	 */
+	public boolean dispatch(String selector, Atom[] args)
+	{
+		Handler[] byArgs = handlers.get(selector);
+		if(byArgs == null || args.length > MAX_ARGS || byArgs[args.length] == null)
+			return false;
+
+		byArgs[args.length].handle(args);
+		return true;
+	}
+
+	/**
+	 * Describe the numbers of arguments accepted by a message
+	 * @param selector Max's header message
+	 * @return The numbers of arguments (ie "1 or 2"), <code>null</code> if the message is unknown
+	 */
+	public String describeArgs(String selector)
+	{
+		Handler[] byArgs = handlers.get(selector);
+		if(byArgs == null)
+			return null;
+
+		String result = "";
+		for(int n = 0; n <= MAX_ARGS; n++)
+		{
+			if(byArgs[n] != null)
+				result += (result.isEmpty() ? "" : " or ") + n;
+		}
+
+		return result;
+	}
+}
@@ -1,14 +1,21 @@
 package Simulation;
 
 import BlobsSystem.Blob;
+import FluidSystem.FluidSampler;
+import FluidSystem.VelocityField;
 import MagnetsSystem.MagnetsSystem;
+import ParticlesSystem.ParticlesStore;
 import ParticlesSystem.ParticlesSystem;
+import Utils.CommandQueue;
 import Utils.Line;
 import Utils.LinearScale2;
+import Utils.SnapshotReader;
+import Utils.SnapshotWriter;
 import Utils.Vector;
 import com.cycling74.jitter.JitterMatrix;
 import com.cycling74.max.Atom;
-import com.cycling74.max.MaxObject;
+import java.io.IOException;
+import java.util.ArrayDeque;
 
 /**
  * Particles is a max instatiable object that is responsible for the particles
@@ -65,6 +72,12 @@ public class Particles extends Simulation
 	 */
 	public static String MSG_EDGES = "edges";
 	
+    /** 
+	 * Particle system's threads message : ~ threads [chunk_size]
+	 * @see ParticlesSystem.ParticlesSystem
+	 */
+	public static String MSG_THREADS = "threads";
+	
 	
 	// Magnets settings messages
     /** Magnet apply message : ~ apply */
@@ -109,6 +122,57 @@ public class Particles extends Simulation
 	/** Magnet set force message : ~ index force */
 	public static String MSG_MAGNET_FORCE = "magnet_force";
 	
+	/** 
+	 * Magnet field message : ~ resolution (0 to apply magnets exactly)
+	 * @see MagnetsSystem.MagnetField
+	 */
+	public static String MSG_MAGNET_FIELD = "magnet_field";
+	
+	/** 
+	 * Magnet tree message : ~ theta [threshold] (theta 0 to apply magnets exactly)
+	 * @see MagnetsSystem.MagnetsTree
+	 */
+	public static String MSG_MAGNET_TREE = "magnet_tree";
+	
+	/** 
+	 * Idle message : ~ displacement [updates] 
+	 * (particles stop updating after some updates under the displacement, 
+	 * 0 : never idle)
+	 * @see ParticlesSystem.ParticlesSystem
+	 */
+	public static String MSG_IDLE = "idle";
+	
+	/** 
+	 * Sleep message : ~ displacement [updates] 
+	 * (particles at rest stop updating until something touches them, 
+	 * 0 : particles never sleep)
+	 * @see ParticlesSystem.ParticlesSystem
+	 */
+	public static String MSG_SLEEP = "sleep";
+	
+	/** 
+	 * Record message : ~ path
+	 * (histories of every update are recorded in a binary file)
+	 * @see ParticlesSystem.TrajectoryRecorder
+	 */
+	public static String MSG_RECORD = "record";
+	
+	/** Record stop message : ~ */
+	public static String MSG_RECORD_STOP = "record_stop";
+	
+	/** 
+	 * Play message : ~ path
+	 * (recorded frames are output instead of the simulation)
+	 * @see ParticlesSystem.TrajectoryReader
+	 */
+	public static String MSG_PLAY = "play";
+	
+	/** Play frame message : ~ frame (next frame played back) */
+	public static String MSG_PLAY_FRAME = "play_frame";
+	
+	/** Play stop message : ~ */
+	public static String MSG_PLAY_STOP = "play_stop";
+	
 	
 	// Fluid settings messages
 	/** Fluid force message : ~ force */
@@ -120,6 +184,9 @@ public class Particles extends Simulation
 	// Default parameters
     private static final float		FLUID_FORCE			= 0.6f;
     private static final boolean	FLUID_FORCE_APPLY	= false;
+	private static final int		KNOB_PARTICLES_MIN	= 25;
+	private static final int		KNOB_MEMORY_MIN		= 50;
+	private static final int		MAX_PENDING_MOVES	= 4096;
 	
 	// Outlets for output and init matrix
 	private static final int	OUTLET_MOUT		= 0;
@@ -130,50 +197,44 @@ public class Particles extends Simulation
 	/** Coefficient used to weight fluid forces on particles */
 	protected double fluidForce;
 	
-	/** Magnets System use to manage the magnets system simulation */
-    protected MagnetsSystem magnetsSystem;
-	
-	/** Particles System use to manage the particles system simulation */
-    protected ParticlesSystem particlesSystem;
-	
-	/** Simulation.Fluid max's object to listen for retrieve forces */
-	protected MaxObject fluidSimulation;
-	
 	/** 
-	 * Total number of cells in the fluid system.
-	 * @see FluidSystem.FluidSolver
+	 * Mutations posted by messages, executed at the beginning of each update.
+	 * @see #execute(Runnable)
 	 */
-	protected int fluidCells;
+	protected CommandQueue commands;
 	
-	/** 
-	 * Number of cells in width in the fluid system.
-	 * @see FluidSystem.FluidSolver
-	 */
-	protected int fluidWidth;
+	/** Determine if blobs' moves were dropped since the last update (the object is not banged) */
+	protected volatile boolean movesDropped;
 	
 	/** 
-	 * Number of cells in height in the fluid system.
-	 * @see FluidSystem.FluidSolver
+	 * Moves of several blobs ready to be posted, with their buffers : moves 
+	 * come back here once executed (guarded by itself)
 	 */
-	protected int fluidHeight;
+	protected ArrayDeque<BlobsMove> freeBlobsMoves;
+	
+	/** Magnets System use to manage the magnets system simulation */
+    protected MagnetsSystem magnetsSystem;
+	
+	/** Particles System use to manage the particles system simulation */
+    protected ParticlesSystem particlesSystem;
+	
+	/** Velocity field published by Simulation.Fluid */
+	protected VelocityField fluidField;
 	
 	/** 
-	 * Current U array of the fluid system : forces applied on X axis
-	 * @see FluidSystem.FluidSolver
+	 * Frame of the fluid's velocity field used by the current update 
+	 * (read only, shared with Simulation.Fluid, released after the update)
 	 */
-	protected float[] fluidU;
+	protected VelocityField.Frame fluidFrame;
 	
 	/** 
-	 * Current V array of the fluid system : forces applied on Y axis
-	 * @see FluidSystem.FluidSolver
+	 * Sequence number of the last fluid frame applied on particles.
+	 * This member is a max attribute used for diagnostics.
 	 */
-	protected float[] fluidV;
+	private int fluid_frame;
 	
-	/** Width of a cell in engine units */
-	protected double stepWidth;
-	
-	/** Height of a cell in engine units*/
-	protected double stepHeight;
+	/** Sampler of fluidFrame, prepared at each update */
+	protected FluidSampler fluidSampler;
 	
 	/** Determine if fluid forces are applied to particles */
 	protected boolean applyFluidForce;
@@ -181,12 +242,27 @@ public class Particles extends Simulation
 	/** Output matrix : matrix of current particles positions */
     protected JitterMatrix outMatrix;
 	
+	/** 
+	 * Content of the output matrix, reused from one bang to another. 
+	 * Cells are packed row by row : {x, y} for each cell.
+	 */
+	protected float[] outBuffer;
+	
 	/** Init matrix : matrix of initial particles positions */
 	protected JitterMatrix initMatrix;
 	
 	/** LinearScale used to scale output position (from engine to output) */
 	protected LinearScale2 fluidScale;
 	
+	// Phases of the updates measured by the timer (see Simulation.timer)
+	private final int phaseCommands;
+	private final int phaseFluid;
+	private final int phaseOutput;
+	
+	// Knobs of the governor (see Simulation.governor), lowered in this order
+	private final int knobParticles;
+	private final int knobMemory;
+	
 	/**
 	 * Construct a max object for particles system simulation
 	 * @param args Max Object's  arguments - not use but required
@@ -204,20 +280,35 @@ public class Particles extends Simulation
 		setOutletAssist(OUTLET_MAGNET, "Output of current magnets' settings");
 		setOutletAssist(OUTLET_BLOB, "Output of current blobs' settings");
 
+		// Déclaration des attributs
+		declareAttribute("fluid_frame");
+
 		outMatrix			= new JitterMatrix(2, "float32", 0, 0);
+		outBuffer			= new float[0];
 		initMatrix			= new JitterMatrix(2, "float32", 0, 0);
 		fluidForce			= FLUID_FORCE;
 		applyFluidForce		= FLUID_FORCE_APPLY;
 		fluidScale			= new LinearScale2(ENGINE_MIN, ENGINE_MAX, Fluid.FLUID_MIN, Fluid.FLUID_MAX);
+		fluidSampler		= new FluidSampler();
+		commands			= new CommandQueue();
+		movesDropped		= false;
+		freeBlobsMoves		= new ArrayDeque<BlobsMove>();
+		phaseCommands		= timer.addPhase("commands");
+		phaseFluid			= timer.addPhase("fluid");
 		magnetsSystem		= new MagnetsSystem(this);
 		particlesSystem		= new ParticlesSystem(this, magnetsSystem, blobsSystem);
+		phaseOutput			= timer.addPhase("output");
+		knobParticles		= governor.addKnob("particles", KNOB_PARTICLES_MIN);
+		knobMemory			= governor.addKnob("memory", KNOB_MEMORY_MIN);
+		registerMessages();
     }
  
 	/**
 	 * Routine when a bang message occurs on first inlet.
-	 * For each update, this method retrieve the fluidSolver attributes (if 
-	 * applyFluidForce is enabled), update the particlesSystem and output the 
-	 * particles positions matrix.
+	 * For each update, this method executes the mutations posted since the 
+	 * last update, retrieve the fluidSolver attributes (if applyFluidForce is
+	 * enabled), update the particlesSystem and output the particles positions
+	 * matrix (unchanged when particles are idle).
 	 * @see ParticlesSystem.ParticlesSystem
 	 */
     @Override
@@ -225,34 +316,51 @@ public class Particles extends Simulation
     {
         if(getInlet() == 0)
         {
+			long start = System.nanoTime();
+			timer.begin();
+			
+			// On applique les modifications reçues depuis la dernière mise à jour
+			commands.drain();
+			movesDropped = false;
+			timer.lap(phaseCommands);
+			
+			// On récupère la dernière image complète du fluide (sans copie)
 			if(applyFluidForce)
 			{
-				fluidU = fluidSimulation.getAttrFloatArray("fluid_u");
-				fluidV = fluidSimulation.getAttrFloatArray("fluid_v");
-				fluidCells = fluidU.length;
+				fluidFrame	= fluidField.acquire();
 				
-				if(fluidSimulation.getAttrInt("fluid_w") != fluidWidth) {
-					fluidWidth	= fluidSimulation.getAttrInt("fluid_w");
-					stepWidth	= 1. / (double) fluidWidth;
-				}
+				// Un fluide qui bouge encore réveille les particules
+				if((int) fluidFrame.sequence != fluid_frame)
+					particlesSystem.wake();
 				
-				if(fluidSimulation.getAttrInt("fluid_h") != fluidHeight) {
-					fluidHeight	= fluidSimulation.getAttrInt("fluid_h");
-					stepHeight	= 1. / (double) fluidHeight;
-				}
+				fluid_frame	= (int) fluidFrame.sequence;
+				fluidSampler.prepare(fluidFrame, fluidScale, fluidForce);
 			}
+			timer.lap(phaseFluid);
 			
 			particlesSystem.update();
 			
-			if(particlesSystem.hasParticles())
+			// On rend l'image du fluide : le solveur peut à nouveau l'écrire
+			if(fluidFrame != null)
+			{
+				fluidSampler.release();
+				fluidFrame.release();
+				fluidFrame = null;
+			}
+			
+			if(particlesSystem.hasParticles() || particlesSystem.isPlaying())
 				outlet(OUTLET_MOUT, MSG_MATRIX, outMatrix.getName());
+			timer.lap(phaseOutput);
+			timer.end();
+			govern(System.nanoTime() - start);
         }
     }
 	
 	/**
 	 * Routine when something other than a bang message occurs.
-	 * Execute appropriates routines for known messages (on appropriate inlet).
-	 * Call first Simulation.TreatMessage.
+	 * Messages of the first inlet are executed by the handlers registered in
+	 * the message table (see registerMessages), the second inlet only loads
+	 * initial particles.
 	 * Call Max.unknownMessage if the message is unknown.
 	 * @param message Max's header message
 	 * @param args Max's parameters message
@@ -260,145 +368,296 @@ public class Particles extends Simulation
     @Override
     protected void anything(String message, Atom[] args)
     {
-		boolean unknownMessage = false;
+		// Tout message peut modifier la simulation : on réveille les particules
+		particlesSystem.wake();
 		
-		if(TreatMessage(message, args))
+		// Load init particles
+		if(getInlet() == 1)
 		{
-			if(getInlet() == 0)
+			if(args.length == 1 && message.contentEquals(MSG_MATRIX))
 			{
-				if(args.length == 0)
-				{
-					if(message.contentEquals(MSG_RESET))
-					{
-						particlesSystem.reset();
-
-						if(particlesSystem.hasParticles())
-							outlet(OUTLET_MINIT, MSG_MATRIX, initMatrix.getName());
-					}
-
-					else if(message.contentEquals(MSG_MAGNET_RESET))
-						magnetsSystem.resetMagnets();
-					
-					else if(message.contentEquals(MSG_MAGNET_LIST))
-						outlet(OUTLET_MAGNET, magnetsSystem.listIndexes());
-
-					else
-						unknownMessage = true;
-				}
-
-				else if(args.length == 1)
-				{		
-					if(message.contentEquals(MSG_STIFFNESS))
-						particlesSystem.setStiffness(args[0].toDouble());
-
-					else if(message.contentEquals(MSG_MOMENTUM))
-						particlesSystem.setMomentum(args[0].toDouble());
-
-					else if(message.contentEquals(MSG_FRICTION))
-						particlesSystem.setFriction(args[0].toDouble());
-
-					else if(message.contentEquals(MSG_FLUIDFORCE))
-						fluidForce = args[0].toDouble();
-
-					else if(message.contentEquals(MSG_MAGNET_APPLY))
-						magnetsSystem.setEnable(args[0].toBoolean());
-
-					else if(message.contentEquals(MSG_FLUIDAPPLY))
-					{
-						fluidSimulation = MaxObject.getContext().getMaxObject("Simulation.Fluid");
-						applyFluidForce = args[0].toBoolean() && fluidSimulation != null;
-						
-						if(applyFluidForce)
-							printOut("Simulation.Fluid successfully loaded !");
-						else if(args[0].toBoolean())
-							printOut("Unable to find a Max Object named \"Simulation.Fluid\" in your patch...");
-					}
-
-					else if(message.contentEquals(MSG_MEMORY))
-						particlesSystem.setMemory(args[0].toInt());
-
-					else if(message.contentEquals(MSG_MAXPART))
-						particlesSystem.setMaxParticles(args[0].toInt());
-					
-					else if(message.contentEquals(MSG_MAGNET_DEL))
-						magnetsSystem.deleteMagnet(args[0].toInt());
-					
-					else if(message.contentEquals(MSG_MAGNET_INFO))
-						outlet(OUTLET_MAGNET, magnetsSystem.getInfo(args[0].toInt()));
-
-					else
-						unknownMessage = true;
-
-				}
-
-				else if(args.length == 2)
-				{
-					if(message.contentEquals(MSG_PARTSEUIL))
-						particlesSystem.setThreshold(args[0].toDouble(), args[1].toDouble());
-					
-					else if(message.contentEquals(MSG_MAGNET_FORCE))
-						magnetsSystem.setMagnetForce(args[0].toInt(), args[1].toFloat());
-
-					else
-						unknownMessage = true;
-				}
-				
-				else if(args.length == 3)
-				{
-					if(message.contentEquals(MSG_MAGNET_VLINE)) {
-						magnetsSystem.setLineMagnet(args[0].toInt(), new Line(-1., 0., args[1].toDouble()), args[2].toDouble());
+				JitterMatrix jm = new JitterMatrix(args[0].toString());
+				particlesSystem.loadParticles(jm);
+			}
+			
+			else
+				unknownMessage(message, args);
+		}
+		
+		else
+			super.anything(message, args);
+    }
+	
+	/**
+	 * Register the particles' messages : particles', magnets' and fluid's 
+	 * settings, recording and playback
+	 */
+	private void registerMessages()
+	{
+		messages.register(MSG_RESET, 0, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				particlesSystem.reset();
+			}
+		});
+		
+		messages.register(MSG_MAGNET_RESET, 0, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				magnetsSystem.resetMagnets();
+			}
+		});
+		
+		messages.register(MSG_MAGNET_LIST, 0, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				outlet(OUTLET_MAGNET, magnetsSystem.listIndexes());
+			}
+		});
+		
+		messages.register(MSG_RECORD_STOP, 0, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				particlesSystem.stopRecording();
+			}
+		});
+		
+		messages.register(MSG_PLAY_STOP, 0, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				particlesSystem.stopPlaying();
+			}
+		});
+		
+		messages.register(MSG_STIFFNESS, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				particlesSystem.setStiffness(args[0].toDouble());
+			}
+		});
+		
+		messages.register(MSG_MOMENTUM, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				particlesSystem.setMomentum(args[0].toDouble());
+			}
+		});
+		
+		messages.register(MSG_FRICTION, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				particlesSystem.setFriction(args[0].toDouble());
+			}
+		});
+		
+		// Les réglages du fluide sont lus par la mise à jour : ils passent par execute()
+		messages.register(MSG_FLUIDFORCE, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args)
+			{
+				final double newFluidForce = args[0].toDouble();
+				execute(new Runnable() {
+					@Override
+					public void run() {
+						fluidForce = newFluidForce;
 					}
-					
-					else if(message.contentEquals(MSG_MAGNET_HLINE)) {
-						magnetsSystem.setLineMagnet(args[0].toInt(), new Line(0., -1., args[1].toDouble()), args[2].toDouble());
+				});
+			}
+		});
+		
+		messages.register(MSG_MAGNET_APPLY, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				magnetsSystem.setEnable(args[0].toBoolean());
+			}
+		});
+		
+		messages.register(MSG_FLUIDAPPLY, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args)
+			{
+				final VelocityField newFluidField = VelocityField.get(Fluid.FIELD_NAME);
+				final boolean newApplyFluid = args[0].toBoolean() && newFluidField != null;
+				execute(new Runnable() {
+					@Override
+					public void run() {
+						fluidField		= newFluidField;
+						applyFluidForce	= newApplyFluid;
 					}
-					
-					else
-						unknownMessage = true;
-				}
+				});
 				
-				else if(args.length == 4)
-				{
-					if(message.contentEquals(MSG_EDGES))
-						particlesSystem.setEdges(args[0].toInt(), args[1].toInt(), args[2].toInt(), args[3].toInt());
-					
-					else if(message.contentEquals(MSG_MAGNET_POINT))
-						magnetsSystem.setPointMagnet(args[0].toInt(), new Vector(args[1].toDouble(), args[2].toDouble()), args[3].toDouble());
-					
-					else
-						unknownMessage = true;
-				}
-				
-				else if(args.length == 6)
-				{
-					if(message.contentEquals(MSG_MAGNET_LINE))
-						magnetsSystem.setLineMagnet(args[0].toInt(), new Line(0., new Vector(args[1].toDouble(), args[2].toDouble()), new Vector(args[3].toDouble(), args[4].toDouble())), args[5].toDouble());
-					
-					else
-						unknownMessage = true;
-				}
-
-				else
-					unknownMessage = true;
+				if(newApplyFluid)
+					printOut("Simulation.Fluid successfully loaded !");
+				else if(args[0].toBoolean())
+					printOut("Unable to find a Max Object named \"Simulation.Fluid\" in your patch...");
 			}
-			
-			// Load init particles
-			else if(getInlet() == 1)
+		});
+		
+		messages.register(MSG_MEMORY, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				particlesSystem.setMemory(args[0].toInt());
+			}
+		});
+		
+		messages.register(MSG_MAXPART, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				particlesSystem.setMaxParticles(args[0].toInt());
+			}
+		});
+		
+		messages.register(MSG_THREADS, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				particlesSystem.setThreads(args[0].toInt());
+			}
+		});
+		
+		messages.register(MSG_MAGNET_FIELD, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				magnetsSystem.setFieldResolution(args[0].toInt());
+			}
+		});
+		
+		messages.register(MSG_MAGNET_TREE, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				magnetsSystem.setTree(args[0].toDouble());
+			}
+		});
+		
+		messages.register(MSG_MAGNET_DEL, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				magnetsSystem.deleteMagnet(args[0].toInt());
+			}
+		});
+		
+		messages.register(MSG_MAGNET_INFO, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				outlet(OUTLET_MAGNET, magnetsSystem.getInfo(args[0].toInt()));
+			}
+		});
+		
+		messages.register(MSG_IDLE, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				particlesSystem.setIdle(args[0].toDouble());
+			}
+		});
+		
+		messages.register(MSG_SLEEP, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				particlesSystem.setSleep(args[0].toDouble(), particlesSystem.getSleepUpdates());
+			}
+		});
+		
+		messages.register(MSG_RECORD, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				particlesSystem.startRecording(args[0].toString());
+			}
+		});
+		
+		messages.register(MSG_PLAY, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				particlesSystem.startPlaying(args[0].toString());
+			}
+		});
+		
+		messages.register(MSG_PLAY_FRAME, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				particlesSystem.setPlayFrame(args[0].toInt());
+			}
+		});
+		
+		messages.register(MSG_PARTSEUIL, 2, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				particlesSystem.setThreshold(args[0].toDouble(), args[1].toDouble());
+			}
+		});
+		
+		messages.register(MSG_MAGNET_FORCE, 2, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				magnetsSystem.setMagnetForce(args[0].toInt(), args[1].toFloat());
+			}
+		});
+		
+		messages.register(MSG_MAGNET_TREE, 2, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				magnetsSystem.setTree(args[0].toDouble(), args[1].toInt());
+			}
+		});
+		
+		messages.register(MSG_THREADS, 2, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args)
 			{
-				if(args.length == 1 && message.contentEquals(MSG_MATRIX))
-				{
-					JitterMatrix jm = new JitterMatrix(args[0].toString());
-					particlesSystem.loadParticles(jm);
-				}
-				
-				else
-					unknownMessage = true;
+				particlesSystem.setThreads(args[0].toInt());
+				particlesSystem.setChunkSize(args[1].toInt());
 			}
-		}
+		});
 		
-		if(unknownMessage)
-			unknownMessage(message, args);
-    }
+		messages.register(MSG_IDLE, 2, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args)
+			{
+				particlesSystem.setIdleUpdates(args[1].toInt());
+				particlesSystem.setIdle(args[0].toDouble());
+			}
+		});
+		
+		messages.register(MSG_SLEEP, 2, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				particlesSystem.setSleep(args[0].toDouble(), args[1].toInt());
+			}
+		});
+		
+		messages.register(MSG_MAGNET_VLINE, 3, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				magnetsSystem.setLineMagnet(args[0].toInt(), new Line(-1., 0., args[1].toDouble()), args[2].toDouble());
+			}
+		});
+		
+		messages.register(MSG_MAGNET_HLINE, 3, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				magnetsSystem.setLineMagnet(args[0].toInt(), new Line(0., -1., args[1].toDouble()), args[2].toDouble());
+			}
+		});
+		
+		messages.register(MSG_EDGES, 4, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				particlesSystem.setEdges(args[0].toInt(), args[1].toInt(), args[2].toInt(), args[3].toInt());
+			}
+		});
+		
+		messages.register(MSG_MAGNET_POINT, 4, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				magnetsSystem.setPointMagnet(args[0].toInt(), new Vector(args[1].toDouble(), args[2].toDouble()), args[3].toDouble());
+			}
+		});
+		
+		messages.register(MSG_MAGNET_LINE, 6, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				magnetsSystem.setLineMagnet(args[0].toInt(), new Line(0., new Vector(args[1].toDouble(), args[2].toDouble()), new Vector(args[3].toDouble(), args[4].toDouble())), args[5].toDouble());
+			}
+		});
+	}
     
 	/**
 	 * Define whatever to do when a blob occurs.
@@ -408,31 +667,89 @@ public class Particles extends Simulation
 	 * @param position Position on which blob occurs
 	 */
 	@Override
-	protected void applyBlob(int index, Vector position)
+	protected void applyBlob(final int index, Vector position)
 	{
-		Blob blob = blobsSystem.setPosition(index, scaleFrom.Scale(position));
+		final Vector scaledPosition = scaleFrom.Scale(position);
 		
-		// On ajoute des particles
-		if(blob != null && blob.getToAdd() > 0)
-			particlesSystem.addParticles(blob.getPosition(), blob.getToAdd());
+		postMove(new Runnable() {
+			@Override
+			public void run()
+			{
+				Blob blob = blobsSystem.setPosition(index, scaledPosition);
+
+				// On ajoute des particles
+				if(blob != null && blob.getToAdd() > 0)
+					particlesSystem.addParticles(new Vector(blob.getPosition()), blob.getToAdd());
+			}
+		});
 	}
 	
 	/**
-	 * Get the current fluid force on the given position
-	 * @param position Position of the point which feels the fluid
-	 * @return The current fluid force applied to the givent point
+	 * Define whatever to do when several blobs occur at once.
+	 * Rows are copied and positions are scaled in one batch, then blobs are 
+	 * moved and particles added by a single mutation. Mutations are pooled 
+	 * with their buffers, so matrices allocate nothing once they are large
+	 * enough.
+	 * @param rows Blobs' rows {index, x, y[, force]}
+	 * @param planes Number of values per row (3 or 4)
+	 * @param count Number of rows
 	 */
-	public Vector applyFluid(Vector position)
+	@Override
+	protected void applyBlobs(float[] rows, int planes, int count)
 	{
-		Vector fluidPos = fluidScale.Scale(position);
-		int w = (int) Math.floor(fluidPos.x / stepWidth);
-		int h = (int) Math.floor(fluidPos.y / stepHeight);
-		int index = ( h * fluidWidth) + w;
-
-		if(index < fluidCells)
-			return new Vector(fluidU[index], fluidV[index]).Scalar(fluidForce);
-
-		return new Vector();
+		BlobsMove move;
+		synchronized(freeBlobsMoves) {
+			move = freeBlobsMoves.poll();
+		}
+		
+		if(move == null)
+			move = new BlobsMove();
+		
+		move.set(rows, planes, count);
+		
+		// Un mouvement abandonné retourne directement dans la réserve
+		if(!postMove(move))
+			move.recycle();
+	}
+	
+	/**
+	 * Post a mutation of the simulation : it will be executed on the updating
+	 * thread at the beginning of the next update, so updates never wait for 
+	 * messages and are never skipped.
+	 * @param command Mutation to execute
+	 */
+	@Override
+	public void execute(Runnable command) {
+		commands.post(command);
+	}
+	
+	/**
+	 * Post a blob's move (see execute). Moves are dropped when too many 
+	 * commands are waiting, so the queue stays bounded when the object is 
+	 * never banged.
+	 * @param command Move to execute
+	 * @return <code>true</code> if the move is posted, <code>false</code> if it is dropped
+	 */
+	protected boolean postMove(Runnable command)
+	{
+		if(commands.post(command, MAX_PENDING_MOVES))
+			return true;
+		
+		if(!movesDropped)
+		{
+			movesDropped = true;
+			printOut("Too many blobs' moves are waiting for a bang : moves are dropped.");
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Get the sampler of the current fluid frame (weighted by fluidForce)
+	 * @return The fluid sampler, prepared for the current update
+	 */
+	public FluidSampler getFluidSampler() {
+		return fluidSampler;
 	}
 
 	/**
@@ -442,13 +759,22 @@ public class Particles extends Simulation
     @Override
     public void notifyDeleted()
     {
-		particlesSystem.destroy();
-		outMatrix.freePeer();
-		initMatrix.freePeer();
+		commands.clear();
+		
+		// Les matrices sont libérées une fois la mise à jour en cours terminée
+		particlesSystem.destroy(new Runnable() {
+			@Override
+			public void run() {
+				outMatrix.freePeer();
+				initMatrix.freePeer();
+			}
+		});
+		super.notifyDeleted();
     }
 	
 	/**
-	 * Determine if the fluid is applied on particles
+	 * Determine if the fluid is applied on particles.
+	 * Only changed by executed commands, so it stays the same during an update.
 	 * @return <code>true</code> if fluid force is applied on particles, 
 	 * <code>false</code> otherwise
 	 */
@@ -474,6 +800,59 @@ public class Particles extends Simulation
 	public void setOutMatrix(int i, int j, Vector value) {
 		outMatrix.setcell2d(i, j, scaleTo.Scale(value.x, value.y));
 	}
+
+	/**
+	 * Set the whole output matrix from particles' histories.
+	 * Positions are scaled into outBuffer which is then copied in the matrix
+	 * at once : the i'th old position of the j'th particle is the cell (i, j).
+	 * @param particles Particles to output
+	 */
+	public void setOutMatrix(ParticlesStore particles)
+	{
+		int memory = particles.getMemory();
+		int length = particles.size() * memory * 2;
+		
+		if(outBuffer.length != length)
+			outBuffer = new float[length];
+		
+		int cell = 0;
+		for(int j = 0; j < particles.size(); j++)
+		{
+			for(int i = 0; i < memory; i++)
+			{
+				int k = particles.historyIndex(j, i);
+				outBuffer[cell++] = (float) scaleTo.ScaleX(particles.historyX[k]);
+				outBuffer[cell++] = (float) scaleTo.ScaleY(particles.historyY[k]);
+			}
+		}
+		
+		if(length > 0)
+			outMatrix.copyArrayToMatrix(outBuffer);
+	}
+	
+	/**
+	 * Set the whole output matrix from recorded positions
+	 * @param positions Positions scaled by Max.ENGINE_..., packed as the output matrix
+	 * @param nbParticles Number of particles
+	 * @param memory Number of positions of each particle
+	 * @see ParticlesSystem.TrajectoryReader
+	 */
+	public void setOutMatrix(float[] positions, int nbParticles, int memory)
+	{
+		int length = nbParticles * memory * 2;
+		
+		if(outBuffer.length != length)
+			outBuffer = new float[length];
+		
+		for(int cell = 0; cell < length; cell += 2)
+		{
+			outBuffer[cell]		= (float) scaleTo.ScaleX(positions[cell]);
+			outBuffer[cell + 1]	= (float) scaleTo.ScaleY(positions[cell + 1]);
+		}
+		
+		if(length > 0)
+			outMatrix.copyArrayToMatrix(outBuffer);
+	}
     
 	/**
 	 * Get the init matrix
@@ -522,4 +901,130 @@ public class Particles extends Simulation
 	protected void outBlob(String message) {
 		outlet(OUTLET_BLOB, message);
 	}
+	
+	/**
+	 * Save the fluid's settings, the magnets and the particles
+	 * @param out Snapshot being written
+	 * @throws IOException If the snapshot cannot be written
+	 */
+	@Override
+	protected void saveState(SnapshotWriter out) throws IOException
+	{
+		out.writeDouble(fluidForce);
+		out.writeBoolean(applyFluidForce);
+		magnetsSystem.save(out);
+		particlesSystem.save(out);
+	}
+	
+	/**
+	 * Restore the fluid's settings, the magnets and the particles.
+	 * The fluid is applied only if a Simulation.Fluid still exists.
+	 * @param in Snapshot being read
+	 * @throws IOException If the snapshot is truncated or corrupted
+	 */
+	@Override
+	protected void restoreState(SnapshotReader in) throws IOException
+	{
+		double newFluidForce	= in.readDouble();
+		boolean newApplyFluid	= in.readBoolean();
+		magnetsSystem.restore(in);
+		particlesSystem.restore(in);
+		
+		fluidForce		= newFluidForce;
+		fluidField		= VelocityField.get(Fluid.FIELD_NAME);
+		applyFluidForce	= newApplyFluid && fluidField != null;
+	}
+	
+	/**
+	 * Apply a governor's knob : lower or restore the share of particles 
+	 * updated by each update, or the memory of the histories
+	 * @param knob Index of the knob
+	 * @param percent Percentage of the knob's nominal setting
+	 */
+	@Override
+	protected void applyKnob(int knob, int percent)
+	{
+		if(knob == knobParticles)
+			particlesSystem.setUpdatePercent(percent);
+		else if(knob == knobMemory)
+			particlesSystem.setMemoryPercent(percent);
+	}
+	
+	/**
+	 * Move of several blobs posted by applyBlobs(). Rows are copied into the
+	 * move's own buffers, which only grow, and the move comes back to 
+	 * freeBlobsMoves once executed.
+	 */
+	private class BlobsMove implements Runnable
+	{
+		/** Blobs' rows {index, x, y[, force]} */
+		private float[] rows;
+		
+		/** Scaled positions of the rows : {x0, y0, x1, y1...} */
+		private double[] positions;
+		
+		/** Moved blob of each row */
+		private Blob[] moved;
+		
+		/** Number of values per row */
+		private int planes;
+		
+		/** Number of rows */
+		private int count;
+		
+		/** Construct an empty move */
+		public BlobsMove() {
+			this.rows		= new float[0];
+			this.positions	= new double[0];
+			this.moved		= new Blob[0];
+		}
+		
+		/**
+		 * Copy the rows of a blobs' matrix and scale their positions
+		 * @param rows Blobs' rows {index, x, y[, force]}
+		 * @param planes Number of values per row (3 or 4)
+		 * @param count Number of rows
+		 */
+		public void set(float[] rows, int planes, int count)
+		{
+			if(this.rows.length < count * planes)
+				this.rows = new float[count * planes];
+			
+			if(moved.length < count)
+			{
+				positions = new double[count * 2];
+				moved = new Blob[count];
+			}
+			
+			System.arraycopy(rows, 0, this.rows, 0, count * planes);
+			scaleFrom.Scale(rows, 1, planes, count, positions);
+			this.planes	= planes;
+			this.count	= count;
+		}
+		
+		@Override
+		public void run()
+		{
+			blobsSystem.setPositions(rows, planes, positions, count, moved);
+
+			// On ajoute des particles
+			for(int i = 0; i < count; i++)
+			{
+				if(moved[i] != null && moved[i].getToAdd() > 0)
+					particlesSystem.addParticles(new Vector(moved[i].getPosition()), moved[i].getToAdd());
+				
+				moved[i] = null;
+			}
+			
+			recycle();
+		}
+		
+		/** Give this move back to freeBlobsMoves */
+		public void recycle()
+		{
+			synchronized(freeBlobsMoves) {
+				freeBlobsMoves.push(this);
+			}
+		}
+	}
 }
@@ -1,8 +1,14 @@
 package Simulation;
 
 import BlobsSystem.BlobsSystem;
+import Utils.FrameGovernor;
+import Utils.PhaseTimer;
+import Utils.SnapshotReader;
+import Utils.SnapshotWriter;
 import Utils.Vector;
+import com.cycling74.jitter.JitterMatrix;
 import com.cycling74.max.Atom;
+import java.io.IOException;
 
 /**
  * Simulation is a Max's abstraction that provide blobs system for it's children
@@ -58,106 +64,505 @@ public abstract class Simulation extends Max
 	/** Blob's toAdd message : ~ blob_index brush */
 	protected static String MSG_BLOB_BRUSH = "blob_brush";
 	
+	// Common snapshot messages
+	/** Save message : ~ path (the whole state is saved in a binary file) */
+	protected static String MSG_SAVE = "save";
+	
+	/** Restore message : ~ path (the whole state is replaced by a saved one) */
+	protected static String MSG_RESTORE = "restore";
+	
+	/** 
+	 * Statistics message : ~ (output the timing of each phase of the updates)
+	 * or ~ enable (start or stop measuring updates)
+	 * @see Utils.PhaseTimer
+	 */
+	protected static String MSG_STATS = "stats";
+	
+	/** 
+	 * Budget message : ~ milliseconds (0 : quality is never traded away)
+	 * @see Utils.FrameGovernor
+	 */
+	protected static String MSG_BUDGET = "budget";
+	
+	/** Budget's bound message : ~ knob min_percent */
+	protected static String MSG_BUDGET_MIN = "budget_min";
+	
 	// Attributes
 	protected BlobsSystem blobsSystem;
 	
+	/** Timing of each phase of the updates (disabled by default) */
+	protected PhaseTimer timer;
+	
+	/** Quality traded away to hold the updates under a budget (disabled by default) */
+	protected FrameGovernor governor;
+	
+	/** Rows of the last blobs' matrix, reused while the matrix keeps its size */
+	protected float[] blobRows;
+	
+	/** Last blobs' matrix, reused while the tracker keeps its name (<code>null</code> before the first one) */
+	protected JitterMatrix blobMatrix;
+	
 	/**
 	 * Abstract constructor.
-	 * Initialise its members.
+	 * Initialise its members and register the common messages.
 	 * @param args Max Object's  arguments - not use but required
 	 */
 	public Simulation(Atom[] args) {
 		super(args);
-		blobsSystem = new BlobsSystem(this);
+		blobsSystem	= new BlobsSystem(this);
+		timer		= new PhaseTimer();
+		governor	= new FrameGovernor();
+		blobRows	= new float[0];
+		blobMatrix	= null;
+		registerMessages();
 	}
 	
 	/**
-	 * Execute appropriates routines for known messages
-	 * Call first Max.TreatMessage.
-	 * @param message Max's header message
-	 * @param args Max's parameters message
-	 * @return <code>true</code> if the message in unknown, <code>false</code> otherwise
+	 * Register the messages common to every simulation : blobs' settings,
+	 * snapshots, statistics and budget
 	 */
-	@Override
-    protected boolean TreatMessage(String message, Atom[] args)
-    {
-		if(super.TreatMessage(message, args))
-			return false;
+	private void registerMessages()
+	{
+		messages.register(MSG_BLOB_RESET, 0, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args)
+			{
+				execute(new Runnable() {
+					@Override
+					public void run() {
+						blobsSystem.reset();
+					}
+				});
+			}
+		});
 		
-		boolean unknownMessage = false;
-		
-        // Messages de paramétrage
-		if(args.length == 0)
-		{
-			if(message.contentEquals(MSG_BLOB_RESET))
-				blobsSystem.reset();
-			
-			else if(message.contentEquals(MSG_BLOB_LIST))
+		messages.register(MSG_BLOB_LIST, 0, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
 				outBlob(blobsSystem.getList());
-
-			else
-				unknownMessage = true;
-		}
+			}
+		});
 		
-		else if(args.length == 1)
-		{
-			if(message.contentEquals(MSG_BLOB_INFO))
+		messages.register(MSG_STATS, 0, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				outStats();
+			}
+		});
+		
+		messages.register(MSG_BLOB_INFO, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
 				outBlob(blobsSystem.getInfo(args[0].toInt()));
-			
-			else
-				unknownMessage = true;
-		}
-
+			}
+		});
+		
+		messages.register(MSG_SAVE, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				save(args[0].toString());
+			}
+		});
+		
+		messages.register(MSG_RESTORE, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				restore(args[0].toString());
+			}
+		});
 		
-		else if(args.length == 2)
-		{			
-			if(message.contentEquals(MSG_BLOB_FORCE))
+		messages.register(MSG_STATS, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args)
+			{
+				final boolean enabled = args[0].toBoolean();
+				execute(new Runnable() {
+					@Override
+					public void run() {
+						timer.setEnabled(enabled);
+					}
+				});
+			}
+		});
+		
+		messages.register(MSG_BUDGET, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				setBudget(args[0].toDouble());
+			}
+		});
+		
+		messages.register(MSG_BLOB_FORCE, 2, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
 				blobsSystem.setForce(args[0].toInt(), args[1].toFloat());
-			
-			else if(message.contentEquals(MSG_BLOB_ATTRACTIVE_FORCE))
+			}
+		});
+		
+		messages.register(MSG_BLOB_ATTRACTIVE_FORCE, 2, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
 				blobsSystem.setAttractiveForce(args[0].toInt(), args[1].toFloat());
-			
-			else if(message.contentEquals(MSG_BLOB_BRUSH))
-				blobsSystem.setBrush(args[0].toInt(), args[1].toInt());
-			
-			else if(message.contentEquals(MSG_BLOB_CIRCLE))
+			}
+		});
+		
+		messages.register(MSG_BLOB_BRUSH, 2, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args)
+			{
+				final int index = args[0].toInt();
+				final int brush = args[1].toInt();
+				execute(new Runnable() {
+					@Override
+					public void run() {
+						blobsSystem.setBrush(index, brush);
+					}
+				});
+			}
+		});
+		
+		messages.register(MSG_BLOB_CIRCLE, 2, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
 				blobsSystem.setCircleBrush(args[0].toInt(), args[1].toDouble());
-			
-			else if(message.contentEquals(MSG_BLOB_APPLY_ERASER))
+			}
+		});
+		
+		messages.register(MSG_BLOB_APPLY_ERASER, 2, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
 				blobsSystem.setApplyEraser(args[0].toInt(), args[1].toBoolean());
-			
-			else if(message.contentEquals(MSG_BLOB_APPLY_FORCE))
+			}
+		});
+		
+		messages.register(MSG_BLOB_APPLY_FORCE, 2, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
 				blobsSystem.setApplyForce(args[0].toInt(), args[1].toBoolean());
-			
-			else if(message.contentEquals(MSG_BLOB_APPLY_ATTRACTIVITY))
+			}
+		});
+		
+		messages.register(MSG_BLOB_APPLY_ATTRACTIVITY, 2, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
 				blobsSystem.setApplyAttractivity(args[0].toInt(), args[1].toBoolean());
-			
-			else if(message.contentEquals(MSG_BLOB_ADD))
+			}
+		});
+		
+		messages.register(MSG_BLOB_ADD, 2, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
 				blobsSystem.setAdder(args[0].toInt(), args[1].toInt());
-				
-			else
-				unknownMessage = true;
-		}
+			}
+		});
 		
-		else if(args.length == 3)
-		{			
-			if(message.contentEquals(MSG_BLOB_THRESHOLD))
+		messages.register(MSG_BUDGET_MIN, 2, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				setBudgetMin(args[0].toString(), args[1].toInt());
+			}
+		});
+		
+		messages.register(MSG_BLOB_THRESHOLD, 3, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
 				blobsSystem.setThreshold(args[0].toInt(), args[1].toDouble(), args[2].toDouble());
-			
-			else if(message.contentEquals(MSG_BLOB_RECTANGLE))
+			}
+		});
+		
+		messages.register(MSG_BLOB_RECTANGLE, 3, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
 				blobsSystem.setRectangleBrush(args[0].toInt(), args[1].toDouble(), args[2].toDouble());
-			
-			else if(message.contentEquals(MSG_BLOB_POSITION))
+			}
+		});
+		
+		// Message le plus fréquent (un par blob et par image du tracker)
+		messages.register(MSG_BLOB_POSITION, 3, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
 				applyBlob(args[0].toInt(), new Vector(args[1].toDouble(), args[2].toDouble()));
-			
-			else
-				unknownMessage = true;
+			}
+		});
+		
+		// Tous les blobs d'une image du tracker en un seul message
+		messages.register(MSG_MATRIX, 1, new MessageTable.Handler() {
+			@Override
+			public void handle(Atom[] args) {
+				applyBlobMatrix(getBlobMatrix(args[0].toString()));
+			}
+		});
+	}
+	
+	/**
+	 * Get the blobs' matrix of the given name : the matrix is reused while the
+	 * name stays the same, and the previous one is freed when it changes
+	 * @param name Name of the matrix
+	 * @return The matrix bound to this name
+	 */
+	protected JitterMatrix getBlobMatrix(String name)
+	{
+		if(blobMatrix == null || !blobMatrix.getName().equals(name))
+		{
+			if(blobMatrix != null)
+				blobMatrix.freePeer();
+			blobMatrix = new JitterMatrix(name);
 		}
-		else
-			unknownMessage = true;
 		
-		return unknownMessage;
-    }
+		return blobMatrix;
+	}
+	
+	/**
+	 * Routine when max object is deleted.
+	 * Free the blobs' matrix : children must call it.
+	 */
+	@Override
+	public void notifyDeleted()
+	{
+		if(blobMatrix != null)
+		{
+			blobMatrix.freePeer();
+			blobMatrix = null;
+		}
+	}
+	
+	/**
+	 * Apply every blob of a matrix at once : each cell is a blob's row 
+	 * {index, x, y[, force]}. This is the bulk version of the blob message,
+	 * for trackers which output dozens of blobs per frame.
+	 * The matrix is read immediately, it may change before the next update.
+	 * @param jm A float32 matrix with 3 or 4 planes
+	 */
+	protected void applyBlobMatrix(JitterMatrix jm)
+	{
+		int planes = jm.getPlanecount();
+		if(!jm.getType().equals("float32") || planes < 3 || planes > 4)
+		{
+			printOut("Blobs' matrix must be a float32 matrix of 3 or 4 planes : index x y [force]");
+			return;
+		}
+		
+		int count = 1;
+		for(int dim : jm.getDim())
+			count *= dim;
+		
+		if(blobRows.length != count * planes)
+			blobRows = new float[count * planes];
+		
+		jm.copyMatrixToArray(blobRows);
+		applyBlobs(blobRows, planes, count);
+	}
+	
+	/**
+	 * Execute a mutation of the simulation.
+	 * By default, the mutation is executed immediately. Children which are 
+	 * updated on another thread than the one receiving messages can post it
+	 * to be executed at the beginning of the next update.
+	 * @param command Mutation to execute
+	 */
+	public void execute(Runnable command) {
+		command.run();
+	}
+	
+	/**
+	 * Output the statistics of the updates on the info outlet, one message per
+	 * phase : stats phase mean p50 p99 max (in milliseconds), then the whole 
+	 * frame, the throughput (items per second) and the allocations of the 
+	 * updating thread (bytes per frame, -1 if not measured).
+	 * Statistics are read by execute(), so they are consistent with the updates.
+	 */
+	protected void outStats()
+	{
+		execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				if(!timer.isEnabled())
+				{
+					printOut("Statistics are disabled : send \"" + MSG_STATS + " 1\" first");
+					return;
+				}
+				
+				double[] stats = new double[4];
+				for(int phase = 0; phase < timer.getPhaseCount(); phase++)
+				{
+					timer.getStats(phase, stats);
+					outStat(timer.getPhaseName(phase), stats);
+				}
+				
+				timer.getStats(PhaseTimer.FRAME, stats);
+				outStat("frame", stats);
+				outlet(getInfoIdx(), MSG_STATS, new Atom[] {Atom.newAtom("throughput"), Atom.newAtom(timer.getThroughput())});
+				outlet(getInfoIdx(), MSG_STATS, new Atom[] {Atom.newAtom("allocations"), Atom.newAtom(timer.getAllocations())});
+				outlet(getInfoIdx(), MSG_STATS, new Atom[] {Atom.newAtom("frames"), Atom.newAtom(timer.getFrames())});
+			}
+		});
+	}
+	
+	/**
+	 * Output the statistics of one phase on the info outlet
+	 * @param name Name of the phase
+	 * @param stats {mean, p50, p99, max} in milliseconds
+	 */
+	private void outStat(String name, double[] stats)
+	{
+		outlet(getInfoIdx(), MSG_STATS, new Atom[] {Atom.newAtom(name), Atom.newAtom(stats[0]), 
+			Atom.newAtom(stats[1]), Atom.newAtom(stats[2]), Atom.newAtom(stats[3])});
+	}
+	
+	/**
+	 * Get the timing of the updates
+	 * @return The phase timer of this simulation
+	 */
+	public PhaseTimer getTimer() {
+		return timer;
+	}
+	
+	/**
+	 * Set the budget of an update : quality is traded away while updates take
+	 * longer, and restored once they are fast again. Every knob is brought back
+	 * to full quality.
+	 * @param milliseconds Budget of an update (0 : quality is never traded away)
+	 * @see FrameGovernor
+	 */
+	public void setBudget(final double milliseconds)
+	{
+		execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				governor.setBudget(milliseconds);
+				for(int knob = 0; knob < governor.getKnobCount(); knob++)
+					applyKnob(knob, governor.getValue(knob));
+			}
+		});
+	}
+	
+	/**
+	 * Set how far the governor may lower a knob
+	 * @param name Name of the knob
+	 * @param min Lowest percentage of the knob's nominal setting
+	 */
+	public void setBudgetMin(final String name, final int min)
+	{
+		execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				int knob = governor.findKnob(name);
+				if(knob < 0)
+				{
+					printOut("Unknown budget knob \"" + name + "\"");
+					return;
+				}
+				
+				governor.setMin(knob, min);
+				applyKnob(knob, governor.getValue(knob));
+			}
+		});
+	}
+	
+	/**
+	 * Give the duration of an update to the governor, then apply its decision
+	 * and report it on the info outlet : budget knob percent frame_time (ms).
+	 * Must be called by the updating thread at the end of each update.
+	 * @param duration Duration of the update in nanoseconds
+	 */
+	protected void govern(long duration)
+	{
+		int knob = governor.update(duration);
+		if(knob < 0)
+			return;
+		
+		applyKnob(knob, governor.getValue(knob));
+		outlet(getInfoIdx(), MSG_BUDGET, new Atom[] {Atom.newAtom(governor.getName(knob)), 
+			Atom.newAtom(governor.getValue(knob)), Atom.newAtom(governor.getFrameTime())});
+	}
+	
+	/**
+	 * Apply a knob of the governor
+	 * Abstract : Must be overrode
+	 * @param knob Index of the knob
+	 * @param percent Percentage of the knob's nominal setting
+	 */
+	protected abstract void applyKnob(int knob, int percent);
+	
+	/**
+	 * Save the whole state of the simulation (its systems and its blobs) in a
+	 * binary snapshot. The snapshot is written by execute(), so it is 
+	 * consistent with the updates.
+	 * @param path Path of the snapshot (overwritten)
+	 * @see SnapshotWriter
+	 */
+	public void save(final String path)
+	{
+		execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				try
+				{
+					SnapshotWriter out = new SnapshotWriter(path, Simulation.this.getClass().getName());
+					try
+					{
+						saveState(out);
+						blobsSystem.save(out);
+					}
+					finally {
+						out.close();
+					}
+					printOut("Snapshot saved in " + path);
+				}
+				catch(IOException e) {
+					printOut("Unable to save in \"" + path + "\" : " + e.getMessage());
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Replace the whole state of the simulation by a snapshot written by 
+	 * save(). The snapshot is read by execute(), between two updates.
+	 * A truncated or corrupted snapshot is rejected before anything is 
+	 * replaced (see SnapshotReader).
+	 * @param path Path of the snapshot
+	 * @see SnapshotReader
+	 */
+	public void restore(final String path)
+	{
+		execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				try
+				{
+					SnapshotReader in = new SnapshotReader(path, Simulation.this.getClass().getName());
+					restoreState(in);
+					blobsSystem.restore(in);
+					printOut("Snapshot restored from " + path);
+				}
+				catch(IOException e) {
+					printOut("Unable to restore \"" + path + "\" : " + e.getMessage());
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Save the state of the simulation's own systems
+	 * Abstract : Must be overrode
+	 * @param out Snapshot being written
+	 * @throws IOException If the snapshot cannot be written
+	 */
+	protected abstract void saveState(SnapshotWriter out) throws IOException;
+	
+	/**
+	 * Restore the state saved by saveState()
+	 * Abstract : Must be overrode
+	 * @param in Snapshot being read
+	 * @throws IOException If the snapshot is truncated or corrupted
+	 */
+	protected abstract void restoreState(SnapshotReader in) throws IOException;
 	
 	/**
 	 * Define whatever to do when a blob occurs.
@@ -167,5 +572,17 @@ public abstract class Simulation extends Max
 	 */
 	protected abstract void applyBlob(int index, Vector position);
 	
+	/**
+	 * Define whatever to do when several blobs occur at once.
+	 * Abstract : Must be overrode
+	 * Rows are overwritten by the next matrix : they must be copied to be read
+	 * after the call.
+	 * @param rows Blobs' rows {index, x, y[, force]}, planes values per row (unscaled)
+	 * @param planes Number of values per row (3 or 4)
+	 * @param count Number of rows
+	 * @see BlobsSystem#setPositions
+	 */
+	protected abstract void applyBlobs(float[] rows, int planes, int count);
+	
 	protected abstract void outBlob(String message);
 }
@@ -0,0 +1,97 @@
+package Utils;
+
+/**
+ * An activity tracker detects when a simulation has been calm long enough to
+ * skip its updates : the simulation reports after each update if it was calm
+ * (every measure under its thresholds), and becomes idle after a number of
+ * consecutive calm updates.
+ * Any thread can wake the simulation up (forces, blobs, parameter changes) :
+ * the next update is then computed whatever the measures.
+ *
+ * @author	CreArtCom's Studio
+ * @author	Léo LEFEBVRE
+ * @version	1.0
+ */
+public class ActivityTracker
+{
+	// Default parameters
+	private static final int	IDLE_UPDATES	= 30;
+
+	/** Determine if the simulation may become idle */
+	protected boolean enabled;
+
+	/** Number of consecutive calm updates before being idle */
+	protected int idleUpdates;
+
+	/** Number of consecutive calm updates */
+	protected int calmUpdates;
+
+	/** Set by wake(), consumed by the updating thread */
+	protected volatile boolean woken;
+
+	/** Construct a disabled tracker */
+	public ActivityTracker()
+	{
+		this.enabled		= false;
+		this.idleUpdates	= IDLE_UPDATES;
+		this.calmUpdates	= 0;
+		this.woken			= false;
+	}
+
+	/**
+	 * Wake the simulation up : it will not be idle before idleUpdates calm
+	 * updates. May be called by any thread.
+	 */
+	public void wake() {
+		woken = true;
+	}
+
+	/**
+	 * Determine if the next update can be skipped.
+	 * Must only be called by the updating thread, before each update.
+	 * @return <code>true</code> if the simulation is idle, <code>false</code> otherwise
+	 */
+	public boolean isIdle()
+	{
+		if(woken)
+		{
+			woken = false;
+			calmUpdates = 0;
+		}
+
+		return enabled && calmUpdates >= idleUpdates;
+	}
+
+	/**
+	 * Report the activity of the last update.
+	 * Must only be called by the updating thread, after each computed update.
+	 * @param calm <code>true</code> if every measure was under its threshold
+	 */
+	public void report(boolean calm)
+	{
+		if(!calm)
+			calmUpdates = 0;
+		else if(calmUpdates < idleUpdates)
+			calmUpdates++;
+	}
+
+	/**
+	 * Enable or disable idle detection (the simulation is woken up)
+	 * @param enabled <code>true</code> to skip updates when idle
+	 */
+	public void setEnabled(boolean enabled)
+	{
+		this.enabled = enabled;
+		wake();
+	}
+
+	/**
+	 * Set the number of consecutive calm updates before being idle
+	 * @param idleUpdates New number of updates
+	 */
+	public void setIdleUpdates(int idleUpdates)
+	{
+		this.idleUpdates = Math.max(1, idleUpdates);
+		wake();
+	}
+}
@@ -0,0 +1,98 @@
+package Utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A command queue lets any thread post mutations which are executed later by
+ * the single thread that owns the simulation (multiple producers, single
+ * consumer).
+ * The queue is lock free : posting never blocks, and the consumer never waits
+ * for a producer.
+ * Commands which may be dropped (ie blobs' moves) are posted with a limit, so
+ * the queue stays bounded when it is never drained.
+ *
+ * @author	CreArtCom's Studio
+ * @author	Léo LEFEBVRE
+ * @version	1.0
+ */
+public class CommandQueue
+{
+	/** Commands posted and not yet executed, in posting order */
+	protected Queue<Runnable> commands;
+
+	/** Number of commands posted and not yet executed */
+	protected AtomicInteger size;
+
+	/** Construct an empty queue */
+	public CommandQueue() {
+		this.commands	= new ConcurrentLinkedQueue<Runnable>();
+		this.size		= new AtomicInteger(0);
+	}
+
+	/**
+	 * Post a command to be executed by the next call to drain()
+	 * @param command Command to post
+	 */
+	public void post(Runnable command)
+	{
+		size.incrementAndGet();
+		commands.offer(command);
+	}
+
+	/**
+	 * Post a command only if less than <code>limit</code> commands are waiting
+	 * (the limit may be overpassed by concurrent producers)
+	 * @param command Command to post
+	 * @param limit Maximum number of waiting commands
+	 * @return <code>true</code> if the command is posted, <code>false</code> if it is dropped
+	 */
+	public boolean post(Runnable command, int limit)
+	{
+		if(size.get() >= limit)
+			return false;
+
+		post(command);
+		return true;
+	}
+
+	/**
+	 * Execute the commands posted before the call, in posting order.
+	 * Commands posted meanwhile (by producers or by executed commands) are 
+	 * left for the next call, so a producer which keeps posting never holds
+	 * the consumer.
+	 * Must only be called by the consumer thread.
+	 * @return Number of executed commands
+	 */
+	public int drain()
+	{
+		int nbCommands = 0;
+		int nbPosted = size.get();
+		Runnable command;
+
+		while(nbCommands < nbPosted && (command = commands.poll()) != null)
+		{
+			size.decrementAndGet();
+			command.run();
+			nbCommands++;
+		}
+
+		return nbCommands;
+	}
+
+	/** Forget every posted command */
+	public void clear()
+	{
+		while(commands.poll() != null)
+			size.decrementAndGet();
+	}
+
+	/**
+	 * Get the number of waiting commands
+	 * @return Number of commands posted and not yet executed
+	 */
+	public int size() {
+		return size.get();
+	}
+}
@@ -0,0 +1,240 @@
+package Utils;
+
+/**
+ * A frame governor holds the duration of the updates under a budget by
+ * trading quality away.
+ * Quality is split in knobs, each one a percentage of its nominal setting
+ * (100 : full quality) which may not go under a minimum. When the smoothed
+ * duration of the updates stays over the budget, the first knob which can
+ * still be lowered is lowered; when it stays well under the budget, the last
+ * lowered knob is raised again. Knobs are lowered quickly and raised slowly,
+ * so the governor does not oscillate around the budget.
+ * The governor only decides : applying a knob is up to its owner.
+ * Every method must be called by the updating thread (see Simulation.execute).
+ *
+ * @author	CreArtCom's Studio
+ * @author	Léo LEFEBVRE
+ * @version	1.0
+ */
+public class FrameGovernor
+{
+	// Default parameters
+	private static final int	MAX_KNOBS		= 8;
+	private static final double	SMOOTHING		= 0.2;
+	private static final int	DEGRADE_FRAMES	= 5;
+	private static final int	RESTORE_FRAMES	= 30;
+	private static final double	RESTORE_RATIO	= 0.75;
+	private static final int	DEGRADE_STEP	= 25;
+	private static final int	RESTORE_STEP	= 10;
+
+	/** Full quality of a knob (percentage of its nominal setting) */
+	public static final int		FULL			= 100;
+
+	/** Names of the knobs */
+	protected String[] names;
+
+	/** Current percentage of each knob */
+	protected int[] values;
+
+	/** Lowest percentage of each knob */
+	protected int[] mins;
+
+	/** Number of knobs */
+	protected int knobs;
+
+	/** Budget of an update in nanoseconds (0 : the governor is disabled) */
+	protected long budget;
+
+	/** Smoothed duration of the updates in nanoseconds */
+	protected double frameTime;
+
+	/** Number of consecutive updates over the budget */
+	protected int overFrames;
+
+	/** Number of consecutive updates well under the budget */
+	protected int underFrames;
+
+	/** Construct a disabled governor with no knob */
+	public FrameGovernor()
+	{
+		this.names			= new String[MAX_KNOBS];
+		this.values			= new int[MAX_KNOBS];
+		this.mins			= new int[MAX_KNOBS];
+		this.knobs			= 0;
+		this.budget			= 0;
+		this.frameTime		= 0.;
+		this.overFrames		= 0;
+		this.underFrames	= 0;
+	}
+
+	/**
+	 * Declare a knob, at full quality. Knobs are lowered in the order they are
+	 * declared, and raised in the reverse order.
+	 * @param name Name of the knob
+	 * @param min Lowest percentage of the knob
+	 * @return Index of the knob
+	 */
+	public int addKnob(String name, int min)
+	{
+		if(knobs == MAX_KNOBS)
+			throw new IllegalStateException("Too many knobs");
+
+		names[knobs]	= name;
+		values[knobs]	= FULL;
+		mins[knobs]		= clamp(min);
+		return knobs++;
+	}
+
+	/**
+	 * Clamp a percentage in [1, FULL]
+	 * @param percent Percentage
+	 * @return The clamped percentage
+	 */
+	private static int clamp(int percent) {
+		return Math.max(1, Math.min(FULL, percent));
+	}
+
+	/**
+	 * Take the duration of an update into account and decide whether a knob
+	 * has to change
+	 * @param duration Duration of the update in nanoseconds
+	 * @return Index of the changed knob, -1 if no knob changed
+	 */
+	public int update(long duration)
+	{
+		if(budget == 0)
+			return -1;
+
+		frameTime = (frameTime == 0.) ? duration : frameTime + ((duration - frameTime) * SMOOTHING);
+
+		if(frameTime > budget)
+		{
+			underFrames = 0;
+			if(++overFrames < DEGRADE_FRAMES)
+				return -1;
+
+			overFrames = 0;
+			for(int k = 0; k < knobs; k++)
+			{
+				if(values[k] > mins[k])
+				{
+					values[k] = Math.max(mins[k], values[k] - DEGRADE_STEP);
+					return k;
+				}
+			}
+		}
+		else if(frameTime < budget * RESTORE_RATIO)
+		{
+			overFrames = 0;
+			if(++underFrames < RESTORE_FRAMES)
+				return -1;
+
+			underFrames = 0;
+			for(int k = knobs - 1; k >= 0; k--)
+			{
+				if(values[k] < FULL)
+				{
+					values[k] = Math.min(FULL, values[k] + RESTORE_STEP);
+					return k;
+				}
+			}
+		}
+		else
+		{
+			overFrames	= 0;
+			underFrames	= 0;
+		}
+
+		return -1;
+	}
+
+	/** Bring every knob back to full quality and forget the past updates */
+	public void reset()
+	{
+		for(int k = 0; k < knobs; k++)
+			values[k] = FULL;
+
+		frameTime	= 0.;
+		overFrames	= 0;
+		underFrames	= 0;
+	}
+
+	/**
+	 * Set the budget of an update. Knobs are brought back to full quality.
+	 * @param milliseconds Budget in milliseconds (0 : the governor is disabled)
+	 */
+	public void setBudget(double milliseconds)
+	{
+		budget = Math.max(0L, (long) (milliseconds * 1e6));
+		reset();
+	}
+
+	/**
+	 * Getter : budget
+	 * @return Budget of an update in milliseconds (0 : the governor is disabled)
+	 */
+	public double getBudget() {
+		return budget / 1e6;
+	}
+
+	/**
+	 * Set the lowest percentage of a knob. The knob is raised if it is under it.
+	 * @param knob Index of the knob
+	 * @param min Lowest percentage
+	 */
+	public void setMin(int knob, int min)
+	{
+		mins[knob]		= clamp(min);
+		values[knob]	= Math.max(values[knob], mins[knob]);
+	}
+
+	/**
+	 * Find a knob by its name
+	 * @param name Name of the knob
+	 * @return Index of the knob, -1 if there is no such knob
+	 */
+	public int findKnob(String name)
+	{
+		for(int k = 0; k < knobs; k++)
+		{
+			if(names[k].equals(name))
+				return k;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Get the number of knobs
+	 * @return Number of declared knobs
+	 */
+	public int getKnobCount() {
+		return knobs;
+	}
+
+	/**
+	 * Get the name of a knob
+	 * @param knob Index of the knob
+	 * @return Name of the knob
+	 */
+	public String getName(int knob) {
+		return names[knob];
+	}
+
+	/**
+	 * Get the current percentage of a knob
+	 * @param knob Index of the knob
+	 * @return Percentage of the nominal setting
+	 */
+	public int getValue(int knob) {
+		return values[knob];
+	}
+
+	/**
+	 * Get the smoothed duration of the updates
+	 * @return Duration in milliseconds
+	 */
+	public double getFrameTime() {
+		return frameTime / 1e6;
+	}
+}
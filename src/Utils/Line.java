@@ -1,5 +1,7 @@
 package Utils;
 
+import java.io.IOException;
+
 /**
  * Line is a common implementation of a 2D infinite line.
  * Every lines verify this equation for every (x, y) : (a * x) + (b * y) + c = 0
@@ -138,4 +140,32 @@ public class Line
 //		
 //		return new Vector(hx, hy);
 	}
+	
+	/**
+	 * Save the coefficients of this line
+	 * @param out Snapshot being written
+	 * @throws IOException If the snapshot cannot be written
+	 */
+	public void save(SnapshotWriter out) throws IOException
+	{
+		out.writeDouble(a);
+		out.writeDouble(b);
+		out.writeDouble(c);
+		out.writeDouble(precision);
+	}
+	
+	/**
+	 * Restore a line saved by save()
+	 * @param in Snapshot being read
+	 * @return The restored line
+	 * @throws IOException If the snapshot is truncated
+	 */
+	public static Line restore(SnapshotReader in) throws IOException
+	{
+		double a			= in.readDouble();
+		double b			= in.readDouble();
+		double c			= in.readDouble();
+		double precision	= in.readDouble();
+		return new Line(a, b, c, precision);
+	}
 }
@@ -71,6 +71,24 @@ public class LinearScale2
 		return Scale(new Vector(x, y)).toFloatArray();
 	}
 	
+	/**
+	 * Computes and return the scaled abscissa : y = (A.x * x) + B.x
+	 * @param x The abscissa to scale
+	 * @return The scaled abscissa
+	 */
+	public double ScaleX(double x) {
+		return (A.x * x) + B.x;
+	}
+	
+	/**
+	 * Computes and return the scaled ordinate : y = (A.y * x) + B.y
+	 * @param y The ordinate to scale
+	 * @return The scaled ordinate
+	 */
+	public double ScaleY(double y) {
+		return (A.y * y) + B.y;
+	}
+	
 	/**
 	 * Computes and return the scaled vector :  Y = (A * X) + B
 	 * @param X The vector to scale
@@ -99,6 +117,24 @@ public class LinearScale2
 		return result;
 	}
 	
+	/**
+	 * Computes Y = (A * X) + B for a batch of packed positions, without 
+	 * allocating any vector
+	 * @param from Source values : the i'th position is {x, y} at offset + (i * stride)
+	 * @param offset Index of the first abscissa in from
+	 * @param stride Number of values between two positions in from
+	 * @param count Number of positions to scale
+	 * @param to Scaled positions {x0, y0, x1, y1...}, at least 2 * count long
+	 */
+	public void Scale(float[] from, int offset, int stride, int count, double[] to)
+	{
+		for(int i = 0, j = offset; i < count; i++, j += stride)
+		{
+			to[2 * i]		= (A.x * from[j]) + B.x;
+			to[(2 * i) + 1]	= (A.y * from[j + 1]) + B.y;
+		}
+	}
+	
 	/**
 	 * Return a readable string which contains A and B vectors.
 	 * Usefull for debug.
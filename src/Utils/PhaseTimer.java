@@ -0,0 +1,342 @@
+package Utils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * A phase timer measures how long each phase of an update takes.
+ * An update is a sequence of laps : begin() starts the frame, each call to
+ * lap(phase) adds the time elapsed since the previous lap to the phase, and
+ * end() commits the frame. The last <code>window</code> frames are kept for
+ * each phase, so statistics (mean, median, 99th percentile and maximum) are
+ * rolling.
+ * The timer also counts the items processed per frame (throughput) and the
+ * bytes allocated by the updating thread per frame, when the JVM measures it
+ * (see AllocationCounter). The JVM is asked to measure allocations only once
+ * a timer is enabled, and a disabled timer costs a single test per call.
+ * Every method but the getters must be called by the updating thread; getters
+ * are consistent when called by the updating thread too (see Simulation.execute).
+ *
+ * @author	CreArtCom's Studio
+ * @author	Léo LEFEBVRE
+ * @version	1.0
+ */
+public class PhaseTimer
+{
+	// Default parameters
+	private static final int	WINDOW		= 256;
+	private static final int	MAX_PHASES	= 16;
+
+	/** Index of the whole frame in the statistics */
+	public static final int		FRAME		= -1;
+
+	/** Names of the phases */
+	protected String[] names;
+
+	/** Number of phases */
+	protected int phases;
+
+	/** Durations (ns) of each phase in the last frames : samples[phase][frame % window] */
+	protected long[][] samples;
+
+	/** Durations (ns) of the last frames */
+	protected long[] frames;
+
+	/** Items processed in the last frames */
+	protected long[] items;
+
+	/** Bytes allocated in the last frames (-1 : not measured) */
+	protected long[] allocations;
+
+	/** Number of frames kept in the statistics */
+	protected int window;
+
+	/** Number of committed frames */
+	protected long count;
+
+	/** Durations (ns) of each phase in the current frame */
+	protected long[] current;
+
+	/** Items processed in the current frame */
+	protected long currentItems;
+
+	/** Time of the beginning of the current frame */
+	protected long start;
+
+	/** Time of the last lap */
+	protected long last;
+
+	/** Bytes allocated by the updating thread at the beginning of the current frame */
+	protected long startAllocated;
+
+	/** Determine if the timer measures updates */
+	protected boolean enabled;
+
+	/** Determine if the current frame is measured */
+	protected boolean running;
+
+	/** Determine if the JVM measures the allocations of each thread */
+	protected boolean allocationSupported;
+
+	/** Construct a disabled timer with no phase */
+	public PhaseTimer()
+	{
+		this.names			= new String[MAX_PHASES];
+		this.phases			= 0;
+		this.window			= WINDOW;
+		this.samples		= new long[MAX_PHASES][window];
+		this.frames			= new long[window];
+		this.items			= new long[window];
+		this.allocations	= new long[window];
+		this.current		= new long[MAX_PHASES];
+		this.count			= 0;
+		this.enabled		= false;
+		this.running		= false;
+		this.allocationSupported	= AllocationCounter.isSupported();
+	}
+
+	/**
+	 * Access to the allocations measured by the JVM. The extension of Sun's
+	 * bean does not exist on every JVM : this class is only loaded through
+	 * isSupported(), which catches the missing class.
+	 */
+	private static class AllocationCounter
+	{
+		/**
+		 * Determine if the JVM measures the allocations of each thread
+		 * @return <code>true</code> if the allocations are measured, <code>false</code> otherwise
+		 */
+		static boolean isSupported()
+		{
+			try {
+				return bean() != null;
+			}
+			catch(LinkageError e) {
+				return false;
+			}
+		}
+
+		/**
+		 * Get Sun's bean of the JVM
+		 * @return The bean, <code>null</code> if it does not measure allocations
+		 */
+		private static com.sun.management.ThreadMXBean bean()
+		{
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if(!(bean instanceof com.sun.management.ThreadMXBean))
+				return null;
+
+			com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+			return sunBean.isThreadAllocatedMemorySupported() ? sunBean : null;
+		}
+
+		/** Ask the JVM to measure the allocations of each thread */
+		static void enable() {
+			bean().setThreadAllocatedMemoryEnabled(true);
+		}
+
+		/**
+		 * Get the bytes allocated by the current thread since it started
+		 * @return Allocated bytes
+		 */
+		static long allocatedBytes() {
+			return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+	}
+
+	/**
+	 * Declare a phase. Phases are reported in the order they are declared.
+	 * @param name Name of the phase
+	 * @return Index of the phase, to be given to lap()
+	 */
+	public int addPhase(String name)
+	{
+		if(phases == MAX_PHASES)
+			throw new IllegalStateException("Too many phases");
+
+		names[phases] = name;
+		return phases++;
+	}
+
+	/** Begin a frame (ignored if the timer is disabled) */
+	public void begin()
+	{
+		running = enabled;
+		if(!running)
+			return;
+
+		for(int p = 0; p < phases; p++)
+			current[p] = 0;
+		currentItems	= 0;
+		startAllocated	= allocatedBytes();
+		start			= System.nanoTime();
+		last			= start;
+	}
+
+	/**
+	 * Add the time elapsed since the previous lap (or the beginning of the
+	 * frame) to a phase
+	 * @param phase Index of the phase
+	 */
+	public void lap(int phase)
+	{
+		if(!running)
+			return;
+
+		long now = System.nanoTime();
+		current[phase] += now - last;
+		last = now;
+	}
+
+	/**
+	 * Count items processed in the current frame
+	 * @param processed Number of items
+	 */
+	public void count(long processed)
+	{
+		if(running)
+			currentItems += processed;
+	}
+
+	/** Commit the current frame in the statistics */
+	public void end()
+	{
+		if(!running)
+			return;
+
+		running = false;
+		long now = System.nanoTime();
+		int slot = (int) (count % window);
+
+		for(int p = 0; p < phases; p++)
+			samples[p][slot] = current[p];
+		frames[slot]		= now - start;
+		items[slot]			= currentItems;
+		allocations[slot]	= (startAllocated < 0) ? -1 : allocatedBytes() - startAllocated;
+		count++;
+	}
+
+	/**
+	 * Get the bytes allocated by the current thread since it started
+	 * @return Allocated bytes, -1 if the JVM does not measure them
+	 */
+	private long allocatedBytes()
+	{
+		if(!allocationSupported)
+			return -1;
+		return AllocationCounter.allocatedBytes();
+	}
+
+	/**
+	 * Enable or disable the timer. Statistics are reset when it is enabled,
+	 * and the JVM starts measuring allocations (for every thread : it is never
+	 * stopped, other timers may use it).
+	 * @param enabled <code>true</code> to measure the next updates
+	 */
+	public void setEnabled(boolean enabled)
+	{
+		if(enabled && !this.enabled)
+		{
+			count = 0;
+			if(allocationSupported)
+				AllocationCounter.enable();
+		}
+
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Determine if the timer measures updates
+	 * @return <code>true</code> if the timer is enabled, <code>false</code> otherwise
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Get the number of frames in the statistics
+	 * @return Number of frames, at most the window
+	 */
+	public int getFrames() {
+		return (int) Math.min(count, window);
+	}
+
+	/**
+	 * Get the number of phases
+	 * @return Number of declared phases
+	 */
+	public int getPhaseCount() {
+		return phases;
+	}
+
+	/**
+	 * Get the name of a phase
+	 * @param phase Index of the phase
+	 * @return Name of the phase
+	 */
+	public String getPhaseName(int phase) {
+		return names[phase];
+	}
+
+	/**
+	 * Compute the statistics of a phase (or of the whole frame) over the window
+	 * @param phase Index of the phase, or FRAME
+	 * @param result Array filled with {mean, p50, p99, max} in milliseconds
+	 */
+	public void getStats(int phase, double[] result)
+	{
+		int n = getFrames();
+		if(n == 0)
+		{
+			Arrays.fill(result, 0, 4, 0.);
+			return;
+		}
+
+		long[] sorted = Arrays.copyOf((phase == FRAME) ? frames : samples[phase], n);
+		Arrays.sort(sorted);
+
+		long sum = 0;
+		for(int i = 0; i < n; i++)
+			sum += sorted[i];
+
+		result[0] = sum / (double) n / 1e6;
+		result[1] = sorted[(n - 1) / 2] / 1e6;
+		result[2] = sorted[(int) Math.ceil(0.99 * n) - 1] / 1e6;
+		result[3] = sorted[n - 1] / 1e6;
+	}
+
+	/**
+	 * Get the number of items processed per second of update over the window
+	 * @return Items per second (0 if nothing was measured)
+	 */
+	public double getThroughput()
+	{
+		int n = getFrames();
+		long totalItems = 0;
+		long totalTime = 0;
+
+		for(int i = 0; i < n; i++) {
+			totalItems += items[i];
+			totalTime += frames[i];
+		}
+
+		return (totalTime > 0) ? totalItems * 1e9 / totalTime : 0.;
+	}
+
+	/**
+	 * Get the mean number of bytes allocated by the updating thread per frame
+	 * @return Bytes per frame, -1 if the JVM does not measure them
+	 */
+	public double getAllocations()
+	{
+		int n = getFrames();
+		if(n == 0 || !allocationSupported)
+			return -1;
+
+		long total = 0;
+		for(int i = 0; i < n; i++)
+			total += allocations[i];
+		return total / (double) n;
+	}
+}
@@ -0,0 +1,178 @@
+package Utils;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A snapshot reader restores the state saved by a SnapshotWriter.
+ * The whole file is mapped at once : arrays are copied in bulk from the
+ * mapping, without converting each value.
+ * Values must be read in the order they were written.
+ * The length and the checksum of the file are checked when it is opened, so a
+ * truncated or corrupted file is rejected before any state is replaced.
+ *
+ * @author	CreArtCom's Studio
+ * @author	Léo LEFEBVRE
+ * @version	1.0
+ * @see SnapshotWriter
+ */
+public class SnapshotReader
+{
+	/** Mapped content of the file (the mapping outlives the closed file) */
+	protected ByteBuffer buffer;
+
+	/**
+	 * Map a snapshot file and check its header
+	 * @param path Path of the file
+	 * @param kind Kind of simulation expected in the file
+	 * @throws IOException If the file cannot be read or is not a snapshot of this kind
+	 */
+	public SnapshotReader(String path, String kind) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+
+		try
+		{
+			FileChannel channel = file.getChannel();
+			if(channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Snapshot too large");
+
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(SnapshotWriter.ORDER);
+		}
+		finally {
+			file.close();
+		}
+
+		if(buffer.remaining() < 8 || readInt() != SnapshotWriter.MAGIC)
+			throw new IOException("Not a snapshot file");
+		if(readInt() != SnapshotWriter.VERSION)
+			throw new IOException("Unsupported snapshot version");
+
+		String fileKind = readString();
+		if(!fileKind.equals(kind))
+			throw new IOException("Snapshot of a " + fileKind + ", not of a " + kind);
+
+		// La fin d'un ancien fichier plus long est ignorée
+		long length = readLong();
+		long checksum = readLong();
+		if(length < buffer.position() || length > buffer.limit())
+			throw new IOException("Truncated snapshot");
+
+		buffer.limit((int) length);
+		CRC32 crc = new CRC32();
+		SnapshotWriter.checksum(crc, buffer, buffer.position(), buffer.limit());
+		if(crc.getValue() != checksum)
+			throw new IOException("Corrupted snapshot");
+	}
+
+	/**
+	 * Make sure that some bytes remain in the file.
+	 * States check the length of their blocks before replacing anything.
+	 * @param bytes Number of bytes to read
+	 * @throws IOException If the file is truncated
+	 */
+	public void require(long bytes) throws IOException
+	{
+		if(bytes < 0 || buffer.remaining() < bytes)
+			throw new IOException("Truncated snapshot");
+	}
+
+	public int readInt() throws IOException {
+		require(4);
+		return buffer.getInt();
+	}
+
+	public long readLong() throws IOException {
+		require(8);
+		return buffer.getLong();
+	}
+
+	public float readFloat() throws IOException {
+		require(4);
+		return buffer.getFloat();
+	}
+
+	public double readDouble() throws IOException {
+		require(8);
+		return buffer.getDouble();
+	}
+
+	public boolean readBoolean() throws IOException {
+		require(1);
+		return buffer.get() != 0;
+	}
+
+	/**
+	 * Read a string written by SnapshotWriter.writeString()
+	 * @return The string
+	 * @throws IOException If the file is truncated
+	 */
+	public String readString() throws IOException
+	{
+		int length = readInt();
+		require(length);
+
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, SnapshotWriter.CHARSET);
+	}
+
+	/**
+	 * Read values into a part of an array
+	 * @param values Destination array
+	 * @param offset Index of the first value
+	 * @param length Number of values
+	 * @throws IOException If the file is truncated
+	 */
+	public void readDoubles(double[] values, int offset, int length) throws IOException
+	{
+		require(length * 8L);
+		buffer.asDoubleBuffer().get(values, offset, length);
+		buffer.position(buffer.position() + (length * 8));
+	}
+
+	/**
+	 * Read values into a part of an array
+	 * @param values Destination array
+	 * @param offset Index of the first value
+	 * @param length Number of values
+	 * @throws IOException If the file is truncated
+	 */
+	public void readFloats(float[] values, int offset, int length) throws IOException
+	{
+		require(length * 4L);
+		buffer.asFloatBuffer().get(values, offset, length);
+		buffer.position(buffer.position() + (length * 4));
+	}
+
+	/**
+	 * Read values into a part of an array
+	 * @param values Destination array
+	 * @param offset Index of the first value
+	 * @param length Number of values
+	 * @throws IOException If the file is truncated
+	 */
+	public void readInts(int[] values, int offset, int length) throws IOException
+	{
+		require(length * 4L);
+		buffer.asIntBuffer().get(values, offset, length);
+		buffer.position(buffer.position() + (length * 4));
+	}
+
+	/**
+	 * Read values into a part of an array (one byte per value)
+	 * @param values Destination array
+	 * @param offset Index of the first value
+	 * @param length Number of values
+	 * @throws IOException If the file is truncated
+	 */
+	public void readBooleans(boolean[] values, int offset, int length) throws IOException
+	{
+		require(length);
+		for(int i = offset; i < offset + length; i++)
+			values[i] = buffer.get() != 0;
+	}
+}
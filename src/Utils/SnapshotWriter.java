@@ -0,0 +1,287 @@
+package Utils;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * A snapshot writer saves the state of a simulation in a compact binary file,
+ * to be restored later by a SnapshotReader.
+ * Values are written in a direct buffer flushed to the file's channel when it
+ * is full : arrays are copied in bulk, without converting each value.
+ * The file begins with a magic number, the version of the layout, the kind
+ * of simulation which wrote it, the length of the file and the checksum of
+ * the states (both written by close()). Then each system writes its state in
+ * turn and must read it back in the same order.
+ *
+ * @author	CreArtCom's Studio
+ * @author	Léo LEFEBVRE
+ * @version	1.0
+ * @see SnapshotReader
+ */
+public class SnapshotWriter
+{
+	/** First int of every snapshot file ("FPSS") */
+	public static final int			MAGIC	= 0x46505353;
+
+	/** Version of the file layout */
+	public static final int			VERSION	= 3;
+
+	/** Byte order of every value in the file */
+	public static final ByteOrder	ORDER	= ByteOrder.LITTLE_ENDIAN;
+
+	/** Charset of the strings */
+	public static final Charset		CHARSET	= Charset.forName("UTF-8");
+
+	// Default parameters
+	private static final int		BUFFER_SIZE	= 1 << 20;
+	private static final int		CHUNK_SIZE	= 1 << 16;
+
+	/** Written file */
+	protected RandomAccessFile file;
+
+	/** Channel of the written file */
+	protected FileChannel channel;
+
+	/** Values waiting to be written */
+	protected ByteBuffer buffer;
+
+	/** Position of the length and the checksum in the file, the states follow them */
+	protected long trailerPosition;
+
+	/** Checksum of the states already flushed */
+	protected CRC32 crc;
+
+	/**
+	 * Create the file (or overwrite it from its beginning) and write its header
+	 * @param path Path of the file
+	 * @param kind Kind of simulation saved in the file
+	 * @throws IOException If the file cannot be written
+	 */
+	public SnapshotWriter(String path, String kind) throws IOException
+	{
+		this.file		= new RandomAccessFile(path, "rw");
+		this.channel	= file.getChannel();
+		this.buffer		= ByteBuffer.allocateDirect(BUFFER_SIZE).order(ORDER);
+		this.crc		= new CRC32();
+
+		try
+		{
+			writeInt(MAGIC);
+			writeInt(VERSION);
+			writeString(kind);
+			
+			// Longueur et somme de contrôle, écrites par close()
+			trailerPosition = buffer.position();
+			writeLong(0L);
+			writeLong(0L);
+		}
+		catch(IOException e)
+		{
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Make room for some bytes in the buffer
+	 * @param bytes Number of bytes (at most the buffer's capacity)
+	 * @throws IOException If the buffer cannot be flushed
+	 */
+	private void ensure(int bytes) throws IOException
+	{
+		if(buffer.remaining() < bytes)
+			flush();
+	}
+
+	/**
+	 * Write the content of the buffer in the file
+	 * @throws IOException If the file cannot be written
+	 */
+	private void flush() throws IOException
+	{
+		// Les états (après l'en-tête) entrent dans la somme de contrôle
+		long statesPosition = trailerPosition + 16;
+		long position = channel.position();
+		int from = (int) Math.max(0L, Math.min(buffer.position(), statesPosition - position));
+		checksum(crc, buffer, from, buffer.position());
+		
+		buffer.flip();
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	public void writeInt(int value) throws IOException {
+		ensure(4);
+		buffer.putInt(value);
+	}
+
+	public void writeLong(long value) throws IOException {
+		ensure(8);
+		buffer.putLong(value);
+	}
+
+	public void writeFloat(float value) throws IOException {
+		ensure(4);
+		buffer.putFloat(value);
+	}
+
+	public void writeDouble(double value) throws IOException {
+		ensure(8);
+		buffer.putDouble(value);
+	}
+
+	public void writeBoolean(boolean value) throws IOException {
+		ensure(1);
+		buffer.put(value ? (byte) 1 : (byte) 0);
+	}
+
+	/**
+	 * Write a string : its length in bytes, then its UTF-8 bytes
+	 * @param value String to write
+	 * @throws IOException If the file cannot be written
+	 */
+	public void writeString(String value) throws IOException
+	{
+		byte[] bytes = value.getBytes(CHARSET);
+		writeInt(bytes.length);
+
+		for(int offset = 0; offset < bytes.length; )
+		{
+			ensure(1);
+			int count = Math.min(bytes.length - offset, buffer.remaining());
+			buffer.put(bytes, offset, count);
+			offset += count;
+		}
+	}
+
+	/**
+	 * Write a part of an array (without its length)
+	 * @param values Array to write
+	 * @param offset Index of the first value
+	 * @param length Number of values
+	 * @throws IOException If the file cannot be written
+	 */
+	public void writeDoubles(double[] values, int offset, int length) throws IOException
+	{
+		while(length > 0)
+		{
+			ensure(8);
+			int count = Math.min(length, buffer.remaining() / 8);
+			buffer.asDoubleBuffer().put(values, offset, count);
+			buffer.position(buffer.position() + (count * 8));
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Write a part of an array (without its length)
+	 * @param values Array to write
+	 * @param offset Index of the first value
+	 * @param length Number of values
+	 * @throws IOException If the file cannot be written
+	 */
+	public void writeFloats(float[] values, int offset, int length) throws IOException
+	{
+		while(length > 0)
+		{
+			ensure(4);
+			int count = Math.min(length, buffer.remaining() / 4);
+			buffer.asFloatBuffer().put(values, offset, count);
+			buffer.position(buffer.position() + (count * 4));
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Write a part of an array (without its length)
+	 * @param values Array to write
+	 * @param offset Index of the first value
+	 * @param length Number of values
+	 * @throws IOException If the file cannot be written
+	 */
+	public void writeInts(int[] values, int offset, int length) throws IOException
+	{
+		while(length > 0)
+		{
+			ensure(4);
+			int count = Math.min(length, buffer.remaining() / 4);
+			buffer.asIntBuffer().put(values, offset, count);
+			buffer.position(buffer.position() + (count * 4));
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Write a part of an array (without its length), one byte per value
+	 * @param values Array to write
+	 * @param offset Index of the first value
+	 * @param length Number of values
+	 * @throws IOException If the file cannot be written
+	 */
+	public void writeBooleans(boolean[] values, int offset, int length) throws IOException
+	{
+		for(int i = offset; i < offset + length; i++)
+			writeBoolean(values[i]);
+	}
+
+	/**
+	 * Add a part of a buffer to a checksum
+	 * @param crc Checksum to update
+	 * @param content Buffer (its position and limit are kept)
+	 * @param from Index of the first byte
+	 * @param to Index after the last byte
+	 */
+	public static void checksum(CRC32 crc, ByteBuffer content, int from, int to)
+	{
+		byte[] chunk = new byte[CHUNK_SIZE];
+		ByteBuffer view = content.duplicate();
+		view.limit(to).position(from);
+
+		while(view.hasRemaining())
+		{
+			int count = Math.min(chunk.length, view.remaining());
+			view.get(chunk, 0, count);
+			crc.update(chunk, 0, count);
+		}
+	}
+
+	/**
+	 * Write the remaining values, the length and the checksum of the file, 
+	 * and close it
+	 * @throws IOException If the file cannot be written
+	 */
+	public void close() throws IOException
+	{
+		try
+		{
+			flush();
+			
+			// On complète l'en-tête : longueur du fichier et somme de contrôle des états
+			buffer.putLong(channel.position());
+			buffer.putLong(crc.getValue());
+			buffer.flip();
+			while(buffer.hasRemaining())
+				channel.write(buffer, trailerPosition + buffer.position());
+			buffer.clear();
+			
+			// Le fichier est réécrit depuis le début : on retire l'ancienne fin 
+			// (impossible sur certains systèmes tant qu'une lecture le projette,
+			// la fin reste alors ignorée par SnapshotReader)
+			try {
+				channel.truncate(channel.position());
+			} catch(IOException e) {}
+		}
+		finally {
+			file.close();
+		}
+	}
+}
@@ -117,6 +117,43 @@ public final class Vector
 		return result;
 	}
 	
+	/**
+	 * Computes the distance between a point and a segment [a, b]
+	 * @param x Abscissa of the point
+	 * @param y Ordinate of the point
+	 * @param a First end of the segment
+	 * @param b Second end of the segment
+	 * @return The distance between the point and the closest point of the segment
+	 */
+	static public double DistanceToSegment(double x, double y, Vector a, Vector b) {
+		return DistanceToSegment(x, y, a.x, a.y, b.x, b.y);
+	}
+	
+	/**
+	 * Computes the distance between a point and a segment [a, b]
+	 * @param x Abscissa of the point
+	 * @param y Ordinate of the point
+	 * @param aX Abscissa of the first end of the segment
+	 * @param aY Ordinate of the first end of the segment
+	 * @param bX Abscissa of the second end of the segment
+	 * @param bY Ordinate of the second end of the segment
+	 * @return The distance between the point and the closest point of the segment
+	 */
+	static public double DistanceToSegment(double x, double y, double aX, double aY, double bX, double bY)
+	{
+		double abX = bX - aX;
+		double abY = bY - aY;
+		double length = (abX * abX) + (abY * abY);
+		double t = 0.;
+		
+		if(length > 0.)
+			t = Math.max(0., Math.min(1., (((x - aX) * abX) + ((y - aY) * abY)) / length));
+		
+		double dx = x - (aX + (t * abX));
+		double dy = y - (aY + (t * abY));
+		return Math.sqrt((dx * dx) + (dy * dy));
+	}
+	
 	/**
 	 * Computes the dot product : this . vector
 	 * @param vector Product vector
@@ -155,6 +192,21 @@ public final class Vector
 		return this;
 	}
 	
+	/**
+	 * Set both coordinates
+	 * @param x New abscissa
+	 * @param y New ordinate
+	 * @return A reference to this vector
+	 */
+	public Vector Set(double x, double y)
+	{
+		this.x = x;
+		this.y = y;
+		
+		updated();
+		return this;
+	}
+	
 	/**
 	 * Getter : Norm
 	 * @return Current norm